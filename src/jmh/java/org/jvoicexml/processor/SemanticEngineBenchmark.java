@@ -0,0 +1,120 @@
+package org.jvoicexml.processor;
+
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jvoicexml.processor.grammar.Grammar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the semantic engines on the trees of the pizza grammars and the
+ * grammars of JSInterpreterTest. Run with
+ * <pre>
+ *   mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ * Engine names:
+ * <ul>
+ * <li>native: the Java evaluator for simple tags, Rhino for the rest</li>
+ * <li>rhino: precompiled tags in Rhino</li>
+ * <li>rhino-program: a generated program per tree, in Rhino</li>
+ * <li>jsr223: the first JavaScript engine found by javax.script,
+ *   jsr223:name for a specific one</li>
+ * </ul>
+ *
+ * @author Bernd Kiefer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SemanticEngineBenchmark {
+
+  @Param({ "native", "rhino", "rhino-program", "jsr223" })
+  public String engine;
+
+  @Param({ "pizza.srgs", "pizza2.gram", "tags.gram", "hysoc.xml" })
+  public String grammar;
+
+  private static final String[][] INPUTS = {
+      { "pizza.srgs" }, pizzainputs,
+      { "pizza2.gram" }, { pizzainputs[pizzainputs.length - 1] },
+      { "tags.gram" }, { "1 is 2" },
+      { "hysoc.xml" }, { "gloria i also need the parcel tape" },
+  };
+
+  private final List<String[]> tokens = new ArrayList<>();
+  private final List<ChartNode> trees = new ArrayList<>();
+
+  private static SemanticEngine getEngine(String name) {
+    if (name.equals("rhino-program")) {
+      final SemanticEngine rhino = new RhinoEngine();
+      return new SemanticEngine() {
+        @Override
+        public String getName() {
+          return name;
+        }
+
+        @Override
+        public Program compile(String source) {
+          return rhino.compile(source);
+        }
+      };
+    }
+    if (name.startsWith("jsr223")) {
+      ScriptEngineSemantics result = name.startsWith("jsr223:")
+          ? ScriptEngineSemantics.find(name.substring(7))
+          : ScriptEngineSemantics.find();
+      if (result == null) {
+        throw new IllegalStateException("no javax.script engine for " + name);
+      }
+      return result;
+    }
+    return new RhinoEngine();
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    SemanticsInterpreter.engine = getEngine(engine);
+    SemanticsInterpreter.useNativeEvaluator = engine.equals("native");
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI(grammar));
+    for (int i = 0; i < INPUTS.length; i += 2) {
+      if (INPUTS[i][0].equals(grammar)) {
+        for (String s : INPUTS[i + 1]) {
+          String[] in = s.split(" +");
+          AbstractParser checker = AbstractParser.getParser(manager);
+          ChartNode tree = checker.parse(ruleGrammar, in);
+          if (tree != null) {
+            tokens.add(in);
+            trees.add(tree);
+          }
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public void evaluate(Blackhole bh) {
+    for (int i = 0; i < trees.size(); ++i) {
+      bh.consume(SemanticsInterpreter.evaluate(tokens.get(i), trees.get(i)));
+    }
+  }
+}
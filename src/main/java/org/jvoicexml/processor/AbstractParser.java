@@ -25,22 +25,32 @@
  */
 package org.jvoicexml.processor;
 
+import java.net.URI;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.jvoicexml.processor.grammar.Grammar;
 import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.Recognizer;
 import org.jvoicexml.processor.grammar.Rule;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
 import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.grammar.RuleDynamic;
 import org.jvoicexml.processor.grammar.RuleParse;
 import org.jvoicexml.processor.grammar.RuleReference;
 import org.jvoicexml.processor.grammar.RuleToken;
+import org.jvoicexml.processor.grammar.RuleTrie;
 import org.jvoicexml.processor.srgs.GrammarException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +69,12 @@ public abstract class AbstractParser {
 
   public static boolean useLeftCorner = true;
 
+  /** Reject inputs containing tokens no terminal can match before parsing */
+  public static boolean useVocabularyCheck = true;
+
+  /** Reject inputs containing impossible pairs of tokens before parsing */
+  public static boolean useBigramFilter = true;
+
   public static AbstractParser getParser(final GrammarManager grammarManager) {
     return useLeftCorner ? new LeftCornerParser(grammarManager)
         : new ChartGrammarChecker(grammarManager);
@@ -66,6 +82,17 @@ public abstract class AbstractParser {
 
   private final GrammarManager manager;
 
+  /** The grammars references are resolved in, fixed for one parse */
+  private GrammarManager view;
+
+  /** The phrases bound to dynamic rules for the parses of this parser */
+  private final Map<RuleReference, Overlay> overlays = new LinkedHashMap<>();
+
+  /** Returns the recognizer of a builtin or dynamic rule, fixed for one
+   *  parse */
+  private Function<RuleBuiltin, Recognizer> recognizerOf =
+      RuleBuiltin::getRecognizer;
+
   /** Lazy expansion of RuleReference, to avoid tainting the RuleReference with
    * grammar resolution code.
    */
@@ -77,6 +104,9 @@ public abstract class AbstractParser {
   /** The current input */
   protected String[] input;
 
+  /** The vocabulary IDs of the current input, if the grammar provides them */
+  protected int[] inputIds;
+
   /** A chart */
   protected List<ChartNode>[] chartIn, chartOut;
 
@@ -93,6 +123,70 @@ public abstract class AbstractParser {
     agenda = new ArrayDeque<ChartNode>();
   }
 
+  /** Phrases bound to a dynamic rule, with their index for the rule they
+   *  were last resolved to */
+  private static final class Overlay {
+    final Map<String, String> phrases;
+    RuleDynamic rule;
+    Recognizer recognizer;
+
+    Overlay(Map<String, String> p) {
+      phrases = p;
+    }
+  }
+
+  /**
+   * Bind a dynamic rule to the given phrases, for the parses of this parser
+   * only. They replace the phrases of the rule, which is not changed, so the
+   * grammars stay shared by all parsers. The phrases are indexed when the
+   * rule is resolved by the next parse.
+   *
+   * @param rule a reference to a dynamic rule, see RuleDynamic, with an
+   *        absolute grammar URI
+   * @param phrases the phrases, with their semantic values; a null value
+   *        means the phrase text is the value
+   */
+  public void bind(RuleReference rule, Map<String, String> phrases) {
+    overlays.put(rule, new Overlay(new LinkedHashMap<>(phrases)));
+  }
+
+  /** Use the phrases of the dynamic rule again */
+  public void unbind(RuleReference rule) {
+    overlays.remove(rule);
+  }
+
+  /** Return the function that returns the recognizers for this parse, with
+   *  the bound phrases of the dynamic rules */
+  private Function<RuleBuiltin, Recognizer> resolveOverlays()
+      throws GrammarException {
+    if (overlays.isEmpty()) {
+      return RuleBuiltin::getRecognizer;
+    }
+    final Map<RuleBuiltin, Recognizer> bound = new IdentityHashMap<>();
+    for (Map.Entry<RuleReference, Overlay> e : overlays.entrySet()) {
+      final Rule rule = view.resolve(e.getKey());
+      if (rule == null) {
+        // not loaded (yet), so it can not be used by this parse
+        continue;
+      }
+      if (! (rule.getRuleComponent() instanceof RuleDynamic)) {
+        throw new GrammarException("Not a dynamic rule: "
+            + e.getKey().getRepresentation());
+      }
+      final Overlay o = e.getValue();
+      final RuleDynamic dynamic = (RuleDynamic) rule.getRuleComponent();
+      if (o.rule != dynamic) {
+        o.rule = dynamic;
+        o.recognizer = dynamic.withPhrases(o.phrases);
+      }
+      bound.put(dynamic, o.recognizer);
+    }
+    return b -> {
+      final Recognizer r = bound.get(b);
+      return r != null ? r : b.getRecognizer();
+    };
+  }
+
   protected final RuleComponent getResolved(RuleComponent c) {
     return (c instanceof RuleParse)
       ? ((RuleParse) c).getRuleReference()
@@ -119,6 +213,33 @@ public abstract class AbstractParser {
     return returnAllResults().findFirst().orElse(null);
   }
 
+  /** Return the results of returnAllResults(), with lazily computed
+   *  semantics */
+  public Stream<ParseResult> results() {
+    final String[] in = input;
+    return returnAllResults().map(n -> new ParseResult(in, n));
+  }
+
+  /** Return the best tree over all results, as determined by BestTreeFinder,
+   *  or null if there is none. Its semantics is computed on demand. */
+  public ParseResult bestResult() {
+    List<ChartNode> all = returnAllResults().collect(Collectors.toList());
+    return all.isEmpty()
+        ? null : new ParseResult(input, BestTreeFinder.findBestTree(all));
+  }
+
+  /** Return all trees of all results, best first. None of the semantics is
+   *  computed before it is asked for. */
+  public List<ParseResult> enumerateResults() {
+    final String[] in = input;
+    return BestTreeFinder
+        .enumerateTrees(returnAllResults().collect(Collectors.toList()))
+        .stream()
+        .map(c -> new ParseResult(in, c))
+        .sorted(ParseResult.BY_WEIGHT)
+        .collect(Collectors.toList());
+  }
+
   protected final boolean agendaNotEmpty() {
     return ! agenda.isEmpty();
   }
@@ -137,10 +258,17 @@ public abstract class AbstractParser {
       throws GrammarException {
     agenda.clear();
     resolved.clear();
+    view = manager instanceof JVoiceXmlGrammarManager
+        ? ((JVoiceXmlGrammarManager) manager).getVersion() : manager;
     input = in;
+    inputIds = null;
     chartIn = new ArrayList[in.length + 1];
     chartOut = new ArrayList[in.length + 1];
     grammar = gram;
+    if (grammar instanceof JVoiceXmlGrammar) {
+      ((JVoiceXmlGrammar) grammar).touch();
+    }
+    recognizerOf = resolveOverlays();
     final String root = grammar.getRoot();
     final Rule rule = grammar.getRule(root);
     if (rule == null) {
@@ -150,6 +278,30 @@ public abstract class AbstractParser {
     return rule.getRuleComponent();
   }
 
+  /** Map the input to vocabulary IDs once per parse */
+  protected final int[] getInputIds() {
+    if (inputIds == null) {
+      inputIds = ((JVoiceXmlGrammar)grammar).intern(input);
+    }
+    return inputIds;
+  }
+
+  /** Check if all input tokens can be matched by some terminal of the current
+   *  grammar, and if all adjacent tokens can be adjacent in the grammar.
+   *  If not, there is no need to run the parser at all.
+   *
+   * @return false if the input can be rejected right away, true otherwise
+   */
+  protected final boolean inputFeasible() {
+    if (! (grammar instanceof JVoiceXmlGrammar)) {
+      return true;
+    }
+    final JVoiceXmlGrammar g = (JVoiceXmlGrammar) grammar;
+    final int[] ids = getInputIds();
+    return (! useVocabularyCheck || g.covers(input, ids, recognizerOf))
+        && (! useBigramFilter || g.admits(input, ids, recognizerOf));
+  }
+
   /** Check (possibly parser specific) conditions for adding a chart node to
    *  the agenda
    *
@@ -166,24 +318,70 @@ public abstract class AbstractParser {
     }
   };
 
+  /** Thrown by resolve if the parse predicted into a grammar that was not
+   *  loaded yet, see JVoiceXmlGrammarManager.loadLazily, or was evicted, and
+   *  is loaded now */
+  @SuppressWarnings("serial")
+  private static class GrammarsChanged extends GrammarException {
+    /** The grammar that was loaded */
+    final URI loaded;
+
+    GrammarsChanged(URI grammarReference) {
+      loaded = grammarReference;
+    }
+  }
+
   /**
    * Checks if the given tokens can be represented using the given graph.
+   * If the parse predicts into a grammar whose loading was deferred, or that
+   * was evicted, it is loaded, and the parse starts again with the current
+   * version of the grammar.
    *
    * @param grammar the grammar to check
    * @param input the tokens
    * @return <code>true</code> if the tokens are valid.
    * @throws GrammarException
    */
-  public abstract ChartNode parse(final Grammar gram, final String[] in)
+  public final ChartNode parse(final Grammar gram, final String[] in)
+      throws GrammarException {
+    Grammar g = gram;
+    // every grammar is loaded at most once per parse, which bounds the
+    // retries by the number of deferred and evicted grammars
+    final Set<URI> loaded = new HashSet<>();
+    while (true) {
+      try {
+        return parseOnce(g, in);
+      } catch (GrammarsChanged ex) {
+        if (! loaded.add(ex.loaded)) {
+          throw new GrammarException("Grammar " + ex.loaded
+              + " was loaded twice in one parse, the memory budget may be"
+              + " too small");
+        }
+        g = manager.getGrammar(g.getReference());
+        if (g == null) {
+          throw new GrammarException("Grammar is no longer registered: "
+              + gram.getReference());
+        }
+      }
+    }
+  }
+
+  /** Parse with the grammars of one version, see parse */
+  protected abstract ChartNode parseOnce(final Grammar gram, final String[] in)
       throws GrammarException;
 
   /** Return the input string covered by the chart node n */
   public String covered (ChartNode n) {
+    return covered(input, n.start, n.end);
+  }
+
+  /** Return the tokens from start to end, separated by single spaces */
+  static String covered(String[] input, int start, int end) {
     StringBuilder sb = new StringBuilder();
-    for(int i = n.start; i < n.end; ++i) {
+    for(int i = start; i < end; ++i) {
       sb.append(input[i]).append(' ');
     }
-    if (n.start != n.end)
+    if (start != end)
       sb.deleteCharAt(sb.length()-1); // delete trailing space
     return sb.toString();
   }
@@ -230,8 +428,14 @@ public abstract class AbstractParser {
         r = resolved.get(r);
       } else {
         final RuleReference reference = (RuleReference) r;
-        final Rule rule = manager.resolve(reference);
+        final Rule rule = view.resolve(reference);
         if (rule == null) {
+          final URI ref = reference.getGrammarReference();
+          if (manager instanceof JVoiceXmlGrammarManager
+              && (((JVoiceXmlGrammarManager) manager).loadDeferred(ref)
+                  || ((JVoiceXmlGrammarManager) manager).reloadEvicted(ref))) {
+            throw new GrammarsChanged(ref);
+          }
           // TODO: SHOULD NEVER HAPPEN, SHOULD BE CAUGHT WHEN GRAMMAR IS READ
           throw new GrammarException("Invalid rule reference: "
               + reference.getRepresentation());
@@ -258,33 +462,55 @@ public abstract class AbstractParser {
    *
    * @param start the start position of the input token
    */
-  private final void addPreterminals(int start) {
+  private final void addPreterminals(int[] ids, int start,
+      RuleBuiltin[] builtins, Recognizer[] recognizers, int[][] trieIds) {
     JVoiceXmlGrammar g = ((JVoiceXmlGrammar)grammar);
     if (start >= input.length) {
       return;
     }
-    g.getPreterminals(input, start,
+    g.getPreterminals(ids, start,
         (RuleComponent r, Integer end) -> add(new ChartNode(start, end, r, -1)));
 
-    for (RuleToken token : g.getPatternTerminals()) {
-      Pattern p = token.getPattern();
-      final String currentInput = input[start];
-      if (p.matcher(currentInput).matches()) {
-        // now we add a complete token
-        add(new ChartNode(start, start + 1, token, -1));
+    for (RuleToken token : g.getMatchingPatterns(input[start])) {
+      // now we add a complete token
+      add(new ChartNode(start, start + 1, token, -1));
+    }
+
+    for (int i = 0; i < builtins.length; ++i) {
+      final RuleBuiltin builtin = builtins[i];
+      if (builtin instanceof RuleTrie) {
+        final RuleTrie trie = (RuleTrie) builtin;
+        trie.match(trieIds[i], start,
+            (end, tag) -> add(new ChartNode(start, end, trie, tag)));
+        continue;
       }
+      recognizers[i].match(input, start, (end, value) -> add(
+          new ChartNode(start, end, builtin, NativeEvaluator.toNative(value))));
     }
   }
 
 
-  /** Apply all rules that work on input tokens
-   *
-   *  TODO: Possible target for adding "lexicon" functionality
+  /** Apply all rules that work on input tokens, including the recognizers
    */
   protected void addPreterminals() {
+    final int[] ids = getInputIds();
+    // the recognizers of dynamic rules may change, all positions use the same,
+    // or the ones bound for this parse
+    final RuleBuiltin[] builtins = ((JVoiceXmlGrammar) grammar).getBuiltins()
+        .toArray(new RuleBuiltin[0]);
+    final Recognizer[] recognizers = new Recognizer[builtins.length];
+    // the tries match the input mapped to their words once
+    final int[][] trieIds = new int[builtins.length][];
+    for (int i = 0; i < builtins.length; ++i) {
+      recognizers[i] = recognizerOf.apply(builtins[i]);
+      if (builtins[i] instanceof RuleTrie) {
+        trieIds[i] = ((JVoiceXmlGrammar) grammar)
+            .intern((RuleTrie) builtins[i], input, ids);
+      }
+    }
     // Add all token nodes for that are applicable to the input tokens
-    for (int start = 0; start < input.length; ++ start) {
-      addPreterminals(start);
+    for (int start = 0; start < input.length; ++start) {
+      addPreterminals(ids, start, builtins, recognizers, trieIds);
     }
   }
 
@@ -66,6 +66,8 @@ public class BestTreeFinder {
    *
    */
   private static List<Configuration> walkChildren(Configuration c) {
+    ChartNode node = c.getAlternative();
+    c.weight = node.rule.weight() * (node.end - node.start);
     List<Configuration> l = new ArrayList<>();
     l.add(c);
     List<Configuration> temp = new ArrayList<>();
@@ -94,7 +96,7 @@ public class BestTreeFinder {
     return result;
   }
 
-  /** Determine the best tree out of all parsing results */
+  /** Return all trees of all parsing results, with their weights */
   public static List<Configuration> enumerateTrees(Iterable<ChartNode> results) {
     List<Configuration> result = new ArrayList<>();
     for (ChartNode n : results) {
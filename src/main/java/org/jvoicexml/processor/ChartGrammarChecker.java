@@ -70,9 +70,12 @@ public class ChartGrammarChecker extends AbstractParser {
    * @throws GrammarException
    */
   @Override
-  public ChartNode parse(final Grammar gram, final String[] in)
+  protected ChartNode parseOnce(final Grammar gram, final String[] in)
       throws GrammarException {
     RuleComponent component = initParse(gram, in);
+    if (! inputFeasible()) {
+      return null;
+    }
     addPrediction(0, component);
 
     addPreterminals();
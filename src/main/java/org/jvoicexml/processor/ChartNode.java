@@ -4,9 +4,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.jvoicexml.processor.grammar.RuleBuiltin;
 import org.jvoicexml.processor.grammar.RuleComponent;
 import org.jvoicexml.processor.grammar.RuleSpecial;
 import org.jvoicexml.processor.grammar.RuleTag;
+import org.jvoicexml.processor.grammar.RuleTrie;
 
 // A chart node structure, a replacement for the rule walker
 public class ChartNode implements Traversable {
@@ -16,6 +18,9 @@ public class ChartNode implements Traversable {
   // multiple parents needed, in case added multiple times
   List<ChartNode> children;
   List<ChartNode> equivs;
+  /** The semantic value of a recognizer match, in the representation of
+   *  NativeEvaluator */
+  Object value;
   //ChartNode parent;
 
   public RuleComponent getRule() {
@@ -61,6 +66,21 @@ public class ChartNode implements Traversable {
     children.add(passive);
   }
 
+  /** Constructor for the passive item of a recognizer match */
+  protected ChartNode(int s, int e, RuleBuiltin r, Object v) {
+    this(s, e, r, -1);
+    value = v;
+  }
+
+  /** Constructor for the passive item of a trie match, whose only child is
+   *  the tag of the entry, if it has one */
+  protected ChartNode(int s, int e, RuleTrie r, RuleTag tag) {
+    this(s, e, r, -1);
+    if (tag != null) {
+      children.add(new ChartNode(e, tag));
+    }
+  }
+
   /** Constructor advancing the dot for RuleSequence when the next item is
    *  a RuleTag (only LeftCornerParser)
    */
@@ -91,7 +111,7 @@ public class ChartNode implements Traversable {
     }
   }
 
-  public void preorder(TreeWalker acceptor) {
+  public void preorder(TreeWalker<ChartNode> acceptor) {
     acceptor.enter(this, children.isEmpty());
     for (ChartNode child : children) {
       child.preorder(acceptor);
@@ -125,4 +145,7 @@ public class ChartNode implements Traversable {
   public int getStart() { return start; }
 
   public int getEnd() { return end; }
+
+  /** Return the value of a recognizer match, null for all other nodes */
+  public Object getValue() { return value; }
 }
\ No newline at end of file
@@ -59,18 +59,19 @@ public class Configuration implements Comparable<Configuration>, Traversable {
   }
 
   /** Create a new copy of this Configuration and append the child configuration
-   *  to the children
+   *  to the children, adding its weight
    * @param child
    * @return a copy of this configuration with the added child
    */
   public Configuration newWithChild(Configuration child) {
     Configuration result = new Configuration(this);
     result.children.add(child);
+    result.weight += child.weight;
     return result;
   }
 
   @Override
-  public void preorder(TreeWalker acceptor) {
+  public void preorder(TreeWalker<ChartNode> acceptor) {
     ChartNode current = getAlternative();
     acceptor.enter(current, current.getChildren().isEmpty());
     for (Configuration child : children) {
@@ -0,0 +1,178 @@
+package org.jvoicexml.processor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the loaded grammars that are local files, and
+ * reloads a grammar together with its dependents when its file changes.
+ * Created by JVoiceXmlGrammarManager.watch().
+ *
+ * @author Bernd Kiefer
+ */
+public class GrammarWatcher implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(GrammarWatcher.class);
+
+  /** How long to wait for more changes, in milliseconds, since editors often
+   *  write a file in several steps */
+  public static long settleTime = 100;
+
+  private final JVoiceXmlGrammarManager manager;
+
+  private final WatchService service;
+
+  /** The watched directories, with their keys */
+  private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+
+  /** The files of the loaded grammars, with their references */
+  private final Map<Path, URI> files = new HashMap<>();
+
+  /** The number of the version the files were taken from */
+  private long version = -1;
+
+  private final Thread thread;
+
+  private volatile boolean running = true;
+
+  GrammarWatcher(JVoiceXmlGrammarManager mgr) throws IOException {
+    manager = mgr;
+    service = FileSystems.getDefault().newWatchService();
+    register();
+    thread = new Thread(this::run, "GrammarWatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Watch the directories of the grammars of a new version, and stop watching
+   * the directories without grammars. A directory that can not be watched is
+   * tried again with the next version.
+   */
+  private void register() {
+    final JVoiceXmlGrammarManager.Version v = manager.getVersion();
+    if (v.getNumber() == version) {
+      return;
+    }
+    version = v.getNumber();
+    files.clear();
+    final Set<Path> dirs = new HashSet<>();
+    for (Grammar g : v.grammars.values()) {
+      final URI uri = g.getReference();
+      if (! "file".equals(uri.getScheme())) {
+        continue;
+      }
+      final Path file = Paths.get(uri).toAbsolutePath().normalize();
+      files.put(file, uri);
+      final Path dir = file.getParent();
+      if (dir != null && dirs.add(dir) && ! directories.containsKey(dir)) {
+        try {
+          directories.put(dir,
+              dir.register(service, ENTRY_CREATE, ENTRY_MODIFY));
+        } catch (IOException ex) {
+          log.error("Can not watch {}: {}", dir, ex.getMessage());
+        }
+      }
+    }
+    final Iterator<Map.Entry<Path, WatchKey>> it =
+        directories.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Path, WatchKey> e = it.next();
+      if (! dirs.contains(e.getKey())) {
+        e.getValue().cancel();
+        it.remove();
+      }
+    }
+  }
+
+  /** Return the directories that are watched now */
+  Set<Path> getDirectories() {
+    return new HashSet<>(directories.keySet());
+  }
+
+  private void run() {
+    try {
+      while (running) {
+        register();
+        WatchKey key = service.poll(settleTime, TimeUnit.MILLISECONDS);
+        final Set<Path> changed = new LinkedHashSet<>();
+        // collect all changes until there are no more
+        while (key != null) {
+          final Path dir = (Path) key.watchable();
+          for (WatchEvent<?> e : key.pollEvents()) {
+            if (e.kind() != OVERFLOW) {
+              changed.add(dir.resolve((Path) e.context()));
+            } else {
+              // events were lost, reloading unchanged files does nothing
+              for (Path file : files.keySet()) {
+                if (dir.equals(file.getParent())) {
+                  changed.add(file);
+                }
+              }
+            }
+          }
+          key.reset();
+          key = service.poll(settleTime, TimeUnit.MILLISECONDS);
+        }
+        for (Path file : changed) {
+          final URI uri = files.get(file);
+          if (uri != null) {
+            reload(uri);
+          }
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException ex) {
+      // closed
+    }
+  }
+
+  private void reload(URI uri) {
+    // it may have been deleted in the meantime
+    if (! manager.getVersion().grammars.containsKey(uri)) {
+      return;
+    }
+    try {
+      manager.reloadGrammar(uri);
+      log.info("Reloaded {}", uri);
+    } catch (GrammarException | IOException ex) {
+      // the file may be incomplete, it is read again on its next change
+      log.warn("Reloading {} failed: {}", uri, ex.getMessage());
+    }
+  }
+
+  /** Stop watching */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    service.close();
+    try {
+      thread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
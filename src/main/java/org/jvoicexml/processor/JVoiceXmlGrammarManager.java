@@ -1,18 +1,49 @@
 package org.jvoicexml.processor;
 
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.GrammarImage;
 import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.Recognizers;
 import org.jvoicexml.processor.grammar.Rule;
 import org.jvoicexml.processor.grammar.RuleAlternatives;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
 import org.jvoicexml.processor.grammar.RuleComponent;
 import org.jvoicexml.processor.grammar.RuleCount;
 import org.jvoicexml.processor.grammar.RuleReference;
@@ -21,142 +52,1063 @@ import org.jvoicexml.processor.srgs.GrammarException;
 import org.jvoicexml.processor.srgs.RuleGrammarParser;
 import org.jvoicexml.processor.srgs.abnf.AbnfRuleGrammarParser;
 import org.jvoicexml.processor.srgs.xml.SrgsRuleGrammarParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class JVoiceXmlGrammarManager implements GrammarManager {
+  private static final Logger log =
+      LoggerFactory.getLogger(JVoiceXmlGrammarManager.class);
 
-  private final Stack<Grammar> grammarStack;
+  /** Is told when a loaded grammar is replaced or deleted */
+  public interface Listener {
+    void grammarChanged(URI grammarReference);
+  }
+
+  /**
+   * An immutable version of the registered grammars. Every change builds a
+   * new version, which is published as a whole, so lookups never lock. A
+   * parse resolves all references in the version that was current when it
+   * started.
+   */
+  public static final class Version implements GrammarManager {
+    private final JVoiceXmlGrammarManager owner;
+
+    private final long number;
+
+    /** Only modified while the version is built */
+    final Map<URI, Grammar> grammars;
+
+    private Version(JVoiceXmlGrammarManager mgr, long nr,
+        Map<URI, Grammar> registered) {
+      owner = mgr;
+      number = nr;
+      grammars = registered;
+    }
+
+    /** Return an unpublished copy, to be modified */
+    private Version next() {
+      return new Version(owner, number + 1, new HashMap<>(grammars));
+    }
+
+    /** The number of changes before this version was published */
+    public long getNumber() {
+      return number;
+    }
+
+    @Override
+    public Grammar[] listGrammars() {
+      final Grammar[] listed = new Grammar[grammars.size()];
+      return grammars.values().toArray(listed);
+    }
+
+    @Override
+    public Grammar getGrammar(URI grammarReference) {
+      return touch(grammars.get(grammarReference));
+    }
+
+    /** The estimated memory of all grammars in bytes */
+    public long estimateSize() {
+      long size = 0;
+      for (Grammar g : grammars.values()) {
+        if (g instanceof JVoiceXmlGrammar) {
+          size += ((JVoiceXmlGrammar) g).estimateSize();
+        }
+      }
+      return size;
+    }
+
+    /** Load the grammar into a new version of the owning manager */
+    @Override
+    public Grammar loadGrammar(URI grammarReference)
+        throws GrammarException, IOException {
+      return owner.loadGrammar(grammarReference);
+    }
+
+    /** Delete the grammar from a new version of the owning manager */
+    @Override
+    public void deleteGrammar(Grammar grammar) {
+      owner.deleteGrammar(grammar);
+    }
+
+    @Override
+    public Rule resolve(RuleReference reference) {
+      final URI ref = reference.getGrammarReference();
+      if (Recognizers.isBuiltin(ref)) {
+        final RuleBuiltin builtin = Recognizers.get(ref);
+        return builtin == null ? null : builtin.getRule();
+      }
+      final Grammar grammar = touch(grammars.get(ref));
+      if (ref == null || grammar == null) {
+        return null;
+      }
+      String name = reference.getRuleName();
+      if (name == null || name.equals("___root")) {
+        name = grammar.getRoot();
+      }
+      return grammar.getRule(name);
+    }
+  }
+
+  /** How evict chooses the grammars to remove */
+  public enum EvictionPolicy {
+    /** The least recently used first */
+    LRU,
+    /** The least frequently used first, the least recently used of those */
+    LFU
+  }
+
+  private static Grammar touch(Grammar g) {
+    if (g instanceof JVoiceXmlGrammar) {
+      ((JVoiceXmlGrammar) g).touch();
+    }
+    return g;
+  }
+
+  /** The published version */
+  private final AtomicReference<Version> current;
 
-  private final Map<URI, Grammar> grammars;
+  /** Serializes the changes, lookups do not need it */
+  private final Object updateLock = new Object();
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  /** The estimated memory in bytes all grammars may use, unbounded if <= 0 */
+  private volatile long memoryBudget = 0;
+
+  private volatile EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+  /** The grammars that are never evicted */
+  private final Set<URI> pinned = ConcurrentHashMap.newKeySet();
+
+  /** The grammars that were evicted, and are loaded again when requested */
+  private final Set<URI> evicted = ConcurrentHashMap.newKeySet();
+
+  /** The referenced grammars whose loading was deferred, see loadLazily */
+  private final Set<URI> deferred = ConcurrentHashMap.newKeySet();
+
+  /** If true, the grammars a grammar references are read and post processed
+   *  in parallel */
+  public static boolean loadInParallel = true;
+
+  /** If true, referenced grammars are only checked to exist when a grammar is
+   *  loaded. They are loaded when a parse predicts into them for the first
+   *  time. */
+  public static boolean loadLazily = false;
 
   public JVoiceXmlGrammarManager() {
-    grammars = new java.util.HashMap<URI, Grammar>();
-    grammarStack = new Stack<>();
+    current = new AtomicReference<>(
+        new Version(this, 0, new HashMap<URI, Grammar>()));
+  }
+
+  public void addListener(Listener l) {
+    listeners.add(l);
+  }
+
+  public void removeListener(Listener l) {
+    listeners.remove(l);
+  }
+
+  private void fireGrammarChanged(URI grammarReference) {
+    for (Listener l : listeners) {
+      l.grammarChanged(grammarReference);
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /** Return the current version, which does not change anymore */
+  public Version getVersion() {
+    return current.get();
+  }
+
+  /**
+   * Publish the new version, while holding the update lock. The grammars
+   * built in it refer to this manager from now on, not to the version.
+   */
+  private void publish(Version next) {
+    assert next.number == current.get().number + 1;
+    for (Grammar g : next.grammars.values()) {
+      final JVoiceXmlGrammar grammar = (JVoiceXmlGrammar) g;
+      if (grammar.getGrammarManager() == next) {
+        grammar.setGrammarManager(this);
+      }
+    }
+    current.set(next);
   }
 
   @Override
   public Grammar[] listGrammars() {
-    final Grammar[] listed = new Grammar[grammars.size()];
-    return grammars.values().toArray(listed);
+    return current.get().listGrammars();
   }
 
+  /**
+   * Return the grammar, loading it again if it was evicted. If loading fails,
+   * null is returned like for grammars that were never loaded.
+   */
   @Override
   public Grammar getGrammar(URI grammarReference) {
-    return grammars.get(grammarReference);
+    final Grammar g = current.get().getGrammar(grammarReference);
+    return g != null || ! evicted.contains(grammarReference) ? g
+        : reload(grammarReference);
+  }
+
+  /**
+   * Limit the estimated memory of the loaded grammars. If a load exceeds it,
+   * unpinned grammars that are not referenced by other loaded grammars are
+   * evicted, in the order of the eviction policy, until the limit is met or
+   * nothing can be evicted anymore. Evicted grammars are loaded again from
+   * their source when they are requested by getGrammar or resolve. Grammars
+   * with dynamic rules are never evicted, their phrases could not be
+   * restored.
+   *
+   * @param bytes the limit, no limit if less or equal zero, which is the
+   *        default
+   */
+  public void setMemoryBudget(long bytes) {
+    synchronized (updateLock) {
+      memoryBudget = bytes;
+      evict(Collections.emptySet());
+    }
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public void setEvictionPolicy(EvictionPolicy policy) {
+    evictionPolicy = policy;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /** Never evict the grammar with the given reference */
+  public void pin(URI grammarReference) {
+    pinned.add(grammarReference);
   }
 
+  public void unpin(URI grammarReference) {
+    pinned.remove(grammarReference);
+  }
+
+  /** Return true if the grammar was evicted and not loaded again yet */
+  public boolean isEvicted(URI grammarReference) {
+    return evicted.contains(grammarReference);
+  }
+
+  /**
+   * Evict grammars until the budget is met, while holding the update lock.
+   * A grammar is only evicted if no other loaded grammar references it, so
+   * evicting a grammar can make the grammars it references evictable.
+   * Grammars in a reference cycle stay until the cycle is broken.
+   *
+   * The listeners are not told, since a grammar loaded again from an
+   * unchanged source is equivalent to the evicted one.
+   *
+   * @param keep the references of grammars that must not be evicted
+   */
+  private void evict(Set<URI> keep) {
+    final long budget = memoryBudget;
+    final Version version = current.get();
+    long size;
+    if (budget <= 0 || (size = version.estimateSize()) <= budget) {
+      return;
+    }
+    final Map<URI, Integer> referenced = new HashMap<>();
+    for (Grammar g : version.grammars.values()) {
+      for (URI ref : ((JVoiceXmlGrammar) g).getReferences()) {
+        if (! ref.equals(g.getReference())) {
+          referenced.merge(ref, 1, Integer::sum);
+        }
+      }
+    }
+    final Comparator<JVoiceXmlGrammar> lru =
+        (a, b) -> Long.signum(a.getLastUsed() - b.getLastUsed());
+    final PriorityQueue<JVoiceXmlGrammar> candidates = new PriorityQueue<>(
+        evictionPolicy == EvictionPolicy.LRU ? lru
+            : Comparator.comparingInt(JVoiceXmlGrammar::getUses)
+                .thenComparing(lru));
+    for (Grammar g : version.grammars.values()) {
+      if (! referenced.containsKey(g.getReference())) {
+        candidates.add((JVoiceXmlGrammar) g);
+      }
+    }
+    final Version next = version.next();
+    while (size > budget && ! candidates.isEmpty()) {
+      final JVoiceXmlGrammar g = candidates.poll();
+      final URI uri = g.getReference();
+      if (pinned.contains(uri) || keep.contains(uri)
+          || ! g.getDynamicRules().isEmpty()) {
+        continue;
+      }
+      next.grammars.remove(uri);
+      evicted.add(uri);
+      size -= g.estimateSize();
+      for (URI ref : g.getReferences()) {
+        if (! ref.equals(uri)
+            && referenced.merge(ref, -1, Integer::sum) == 0
+            && next.grammars.containsKey(ref)) {
+          candidates.add((JVoiceXmlGrammar) next.grammars.get(ref));
+        }
+      }
+    }
+    if (next.grammars.size() < version.grammars.size()) {
+      publish(next);
+    }
+  }
+
+  /** Load an evicted grammar again, unless another thread did it already */
+  private Grammar reload(URI grammarReference) {
+    synchronized (updateLock) {
+      final Grammar g = current.get().getGrammar(grammarReference);
+      if (g != null || ! evicted.contains(grammarReference)) {
+        return g;
+      }
+      try {
+        return loadGrammar(grammarReference);
+      } catch (GrammarException | IOException ex) {
+        log.warn("Reloading evicted grammar {} failed: {}", grammarReference,
+            ex.getMessage());
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Load a grammar again if it was evicted. Called by the parsers when a
+   * reference does not resolve in the version they use, e.g., for a grammar
+   * that was evicted while the parser held it.
+   *
+   * @return true if the grammar was evicted and is loaded now
+   */
+  boolean reloadEvicted(URI grammarReference) {
+    return evicted.contains(grammarReference)
+        && reload(grammarReference) != null;
+  }
+
+  /** The number of bytes looked at to tell XML from ABNF grammars */
+  private static final int SNIFF_LIMIT = 8192;
+
+  /** Return '<' for an XML source, 'A' or -1 for ABNF, leave in unchanged */
+  private static int sniff(InputStream in) throws IOException {
+    in.mark(SNIFF_LIMIT);
+    int c;
+    int n = 0;
+    while ((c = in.read()) != '<' && c >= 0 && c != 'A' && ++n < SNIFF_LIMIT) {
+    }
+    in.reset();
+    return c;
+  }
+
+  /**
+   * Read a grammar, without loading the grammars it references. The source
+   * is streamed, its digest is computed while the parser reads it.
+   */
+  private Parsed parse(URI grammarReference, GrammarManager mgr)
+      throws GrammarException, IOException {
+    final MessageDigest md = newDigest();
+    try (InputStream in = new BufferedInputStream(new DigestInputStream(
+        grammarReference.toURL().openStream(), md))) {
+      final RuleGrammarParser parser = sniff(in) == '<'
+          ? new SrgsRuleGrammarParser()
+          : new AbnfRuleGrammarParser(grammarReference.toString());
+
+      List<Rule> rules = null;
+      try {
+        // the rest of the source is needed for the digest
+        rules = parser.load(new FilterInputStream(in) {
+          @Override
+          public void close() {
+          }
+        });
+      } catch (URISyntaxException e) {
+        throw new GrammarException(e.getMessage() + "loading "
+            + grammarReference, e);
+      } catch (Exception e) {
+        throw new GrammarException(e.getMessage() + "loading "
+            + grammarReference, e);
+      }
+      if (rules == null || rules.isEmpty()) {
+        throw new GrammarException(
+            "Failure in parsing '" + grammarReference + "'");
+      }
+      // Initialize rule grammar
+      final JVoiceXmlGrammar grammar = new JVoiceXmlGrammar(mgr,
+          grammarReference, rules, parser.getAttributes());
+
+      // the parsers may stop before the end of the source
+      final byte[] buf = new byte[8192];
+      while (in.read(buf) >= 0) {
+        // just complete the digest
+      }
+      grammar.setSourceDigest(md.digest());
+      return new Parsed(grammar, rules);
+    }
+  }
+
+  /**
+   * Load the grammar and the grammars it references, which are not loaded
+   * yet, into a new version. Lookups and parses use the current version until
+   * the new one is complete and published.
+   */
   @Override
   public Grammar loadGrammar(URI grammarReference)
       throws GrammarException, IOException {
-    final URL url = grammarReference.toURL();
-    InputStream in = url.openStream();
-    int c;
-    while ((c = in.read()) != '<' && c >= 0 && c != 'A') {
+    if (deferred.contains(grammarReference)) {
+      // the grammars referencing it have to be recompiled
+      final Grammar g = loadIfDeferred(grammarReference);
+      if (g != null) {
+        return g;
+      }
+    }
+    final Loading loading;
+    final JVoiceXmlGrammar grammar;
+    synchronized (updateLock) {
+      loading = new Loading(current.get().next());
+      if (loadInParallel) {
+        loading.parseAll(grammarReference);
+      }
+      grammar = loading.link(grammarReference);
+      loading.postProcess();
+      publish(loading.next);
+      final Set<URI> keep = new HashSet<>();
+      for (JVoiceXmlGrammar g : loading.loaded) {
+        keep.add(g.getReference());
+      }
+      evicted.removeAll(keep);
+      evict(keep);
+    }
+    for (URI replaced : loading.replaced) {
+      fireGrammarChanged(replaced);
+    }
+    return grammar;
+  }
+
+  /** Return the registered grammars that depend on ref, and ref itself */
+  private static Set<URI> dependents(Version version, URI ref) {
+    final Map<URI, List<URI>> users = new HashMap<>();
+    for (Grammar g : version.grammars.values()) {
+      for (URI r : ((JVoiceXmlGrammar) g).getReferences()) {
+        users.computeIfAbsent(r, k -> new ArrayList<>()).add(g.getReference());
+      }
+    }
+    final Set<URI> result = new LinkedHashSet<>();
+    final Deque<URI> todo = new ArrayDeque<>();
+    todo.add(ref);
+    while (! todo.isEmpty()) {
+      final URI uri = todo.poll();
+      if (result.add(uri)) {
+        todo.addAll(users.getOrDefault(uri, Collections.emptyList()));
+      }
     }
-    in.close();
-    in = url.openStream();
-    final RuleGrammarParser parser = c == '<' ? new SrgsRuleGrammarParser()
-        : new AbnfRuleGrammarParser(grammarReference.toString());
+    return result;
+  }
+
+  /**
+   * Return the grammar and all registered grammars that reference it,
+   * directly or indirectly. These are recompiled when it changes.
+   */
+  public Set<URI> getDependents(URI grammarReference) {
+    return dependents(current.get(), grammarReference);
+  }
+
+  /**
+   * Recompile a changed grammar and the grammars that depend on it, while
+   * all other grammars are kept as they are. The dependents are read again,
+   * but the left corners of their nonterminals that can not be affected by
+   * the change are taken over from the replaced grammars.
+   *
+   * @return the new grammar, or the registered one if its source did not
+   *         change
+   */
+  public Grammar reloadGrammar(URI grammarReference)
+      throws GrammarException, IOException {
+    final Set<URI> affected;
+    synchronized (updateLock) {
+      final Version version = current.get();
+      final JVoiceXmlGrammar old =
+          (JVoiceXmlGrammar) version.grammars.get(grammarReference);
+      if (old == null) {
+        return loadGrammar(grammarReference);
+      }
+      if (Arrays.equals(old.getSourceDigest(),
+          GrammarImage.digest(grammarReference))) {
+        return old;
+      }
+      affected = recompile(version, grammarReference);
+    }
+    for (URI ref : affected) {
+      fireGrammarChanged(ref);
+    }
+    return current.get().getGrammar(grammarReference);
+  }
 
-    List<Rule> rules = null;
+  /**
+   * Read the changed grammar and the grammars that depend on it into a new
+   * version, and publish it, while holding the update lock.
+   *
+   * @return the references of the grammars read
+   */
+  private Set<URI> recompile(Version version, URI grammarReference)
+      throws GrammarException, IOException {
+    final Set<URI> affected = dependents(version, grammarReference);
+    final Loading loading = new Loading(version.next());
+    loading.next.grammars.keySet().removeAll(affected);
+    // the changed grammar comes first, as it did when loaded
+    for (URI uri : affected) {
+      if (! loading.next.grammars.containsKey(uri)) {
+        if (loadInParallel && ! loading.scheduled.contains(uri)) {
+          loading.parseAll(uri);
+        }
+        loading.link(uri);
+      }
+    }
+    final Set<URI> changed = Collections.singleton(grammarReference);
+    for (JVoiceXmlGrammar g : loading.loaded) {
+      final Grammar prev = version.grammars.get(g.getReference());
+      if (prev != null) {
+        log.debug("Reused {} left corners of {}",
+            g.reuseLeftCorners((JVoiceXmlGrammar) prev, changed),
+            g.getReference());
+        // the runtime phrases stay, unless the own source changed
+        if (! changed.contains(g.getReference())) {
+          g.keepDynamicRules((JVoiceXmlGrammar) prev);
+        }
+      }
+    }
+    loading.postProcess();
+    publish(loading.next);
+    final Set<URI> keep = new HashSet<>(affected);
+    for (JVoiceXmlGrammar g : loading.loaded) {
+      keep.add(g.getReference());
+    }
+    evicted.removeAll(keep);
+    evict(keep);
+    return affected;
+  }
+
+  /**
+   * Add and remove phrases of a dynamic rule of a loaded grammar, see
+   * JVoiceXmlGrammar.updateAlternatives, and tell the listeners that the
+   * grammar and the grammars depending on it have changed.
+   *
+   * @throws GrammarException if the grammar is not loaded
+   * @throws IllegalArgumentException if it has no such dynamic rule
+   */
+  public void updateAlternatives(URI grammarReference, String ruleName,
+      Map<String, String> added, Collection<String> removed)
+      throws GrammarException {
+    // a recompile copies the phrases to the new grammar under the lock, an
+    // update must not come in between
+    synchronized (updateLock) {
+      final JVoiceXmlGrammar g =
+          (JVoiceXmlGrammar) getGrammar(grammarReference);
+      if (g == null) {
+        throw new GrammarException("Grammar not loaded: " + grammarReference);
+      }
+      g.updateAlternatives(ruleName, added, removed);
+    }
+    for (URI ref : getDependents(grammarReference)) {
+      fireGrammarChanged(ref);
+    }
+  }
+
+  /** Return true if the grammar is referenced, but was not loaded yet */
+  public boolean isDeferred(URI grammarReference) {
+    return deferred.contains(grammarReference);
+  }
+
+  /**
+   * Load a grammar whose loading was deferred, and recompile the grammars
+   * that reference it, see loadLazily. Called by the parsers when they
+   * predict into a grammar that is not loaded. Concurrent calls load it
+   * only once.
+   *
+   * @return true if the grammar is loaded now, false if it is unknown
+   */
+  boolean loadDeferred(URI grammarReference) throws GrammarException {
     try {
-      rules = parser.load(in);
-    } catch (URISyntaxException e) {
-      throw new GrammarException(e.getMessage() + "loading " + grammarReference,
-          e);
-    } catch (Exception e) {
-      throw new GrammarException(e.getMessage() + "loading " + grammarReference,
-          e);
-    }
-    if (rules == null || rules.isEmpty()) {
-      throw new GrammarException(
-          "Failure in parsing '" + grammarReference + "'");
-    }
-    // Initialize rule grammar
-    final JVoiceXmlGrammar grammar = new JVoiceXmlGrammar(this,
-        grammarReference, rules, parser.getAttributes());
-
-    // Register grammar
-    grammars.put(grammar.getReference(), grammar);
-
-    grammarStack.push(grammar);
-    loadExternalGrammars(rules, grammar);
-    grammarStack.pop();
-
-    grammar.postProcess();
-    return grammar;
+      return loadIfDeferred(grammarReference) != null;
+    } catch (IOException ex) {
+      throw new GrammarException("Loading deferred grammar "
+          + grammarReference + " failed: " + ex.getMessage(), ex);
+    }
+  }
+
+  private Grammar loadIfDeferred(URI grammarReference)
+      throws GrammarException, IOException {
+    final Set<URI> affected;
+    synchronized (updateLock) {
+      final Grammar known = current.get().grammars.get(grammarReference);
+      if (known != null || ! deferred.contains(grammarReference)) {
+        return known;
+      }
+      affected = recompile(current.get(), grammarReference);
+      deferred.remove(grammarReference);
+    }
+    // the grammar itself is new
+    affected.remove(grammarReference);
+    for (URI ref : affected) {
+      fireGrammarChanged(ref);
+    }
+    return current.get().grammars.get(grammarReference);
+  }
+
+  /** Make sure a grammar source exists, without reading it */
+  private static void checkExists(URI grammarReference) throws IOException {
+    if ("file".equals(grammarReference.getScheme())) {
+      if (! Files.isReadable(Paths.get(grammarReference))) {
+        throw new FileNotFoundException(grammarReference.toString());
+      }
+    } else {
+      grammarReference.toURL().openStream().close();
+    }
+  }
+
+  /**
+   * Watch the files of the loaded grammars, and reload them with reloadGrammar
+   * when they change, until the watcher is closed.
+   */
+  public GrammarWatcher watch() throws IOException {
+    return new GrammarWatcher(this);
+  }
+
+  /**
+   * Load the grammar like loadGrammar, but in another thread.
+   */
+  public CompletableFuture<Grammar> loadGrammarAsync(URI grammarReference) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return loadGrammar(grammarReference);
+      } catch (GrammarException | IOException ex) {
+        throw new CompletionException(ex);
+      }
+    }, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Write all loaded grammars into a binary image, see GrammarImage. The
+   * image can not contain grammars that reference deferred ones, see
+   * loadLazily. The current phrases of the dynamic rules are stored, too.
+   *
+   * @throws IOException if writing fails
+   */
+  public void saveImage(Path image) throws IOException {
+    final List<JVoiceXmlGrammar> all = new ArrayList<>();
+    for (Grammar g : current.get().listGrammars()) {
+      all.add((JVoiceXmlGrammar) g);
+    }
+    GrammarImage.write(all, image);
+  }
+
+  /**
+   * Add the grammars stored in a binary image, replacing loaded grammars with
+   * the same reference.
+   *
+   * @return false if the image could not be used, e.g., because it does not
+   *         exist or one of the grammar sources has changed.
+   */
+  public boolean loadImage(Path image) {
+    final List<URI> replaced = new ArrayList<>();
+    synchronized (updateLock) {
+      final Version next = current.get().next();
+      final List<JVoiceXmlGrammar> loaded = GrammarImage.read(next, image);
+      if (loaded == null) {
+        return false;
+      }
+      final Set<URI> keep = new HashSet<>();
+      for (JVoiceXmlGrammar grammar : loaded) {
+        TagScript.precompile(grammar);
+        if (next.grammars.put(grammar.getReference(), grammar) != null) {
+          replaced.add(grammar.getReference());
+        }
+        keep.add(grammar.getReference());
+      }
+      publish(next);
+      evicted.removeAll(keep);
+      evict(keep);
+    }
+    for (URI ref : replaced) {
+      fireGrammarChanged(ref);
+    }
+    return true;
+  }
+
+  /**
+   * Load the grammars from the image if it is usable and contains all of
+   * them. Otherwise, load them from their sources and write a new image.
+   *
+   * @return the grammars, in the order of the references
+   */
+  public Grammar[] loadGrammars(Path image, URI ... grammarReferences)
+      throws GrammarException, IOException {
+    boolean complete = loadImage(image);
+    final Grammar[] result = new Grammar[grammarReferences.length];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = getGrammar(grammarReferences[i]);
+      if (result[i] == null) {
+        result[i] = loadGrammar(grammarReferences[i]);
+        complete = false;
+      }
+    }
+    if (! complete) {
+      saveImage(image);
+    }
+    return result;
   }
 
   @Override
   public void deleteGrammar(Grammar grammar) {
-    grammars.remove(grammar.getReference());
+    synchronized (updateLock) {
+      evicted.remove(grammar.getReference());
+      final Version next = current.get().next();
+      if (next.grammars.remove(grammar.getReference()) == null) {
+        return;
+      }
+      publish(next);
+    }
+    fireGrammarChanged(grammar.getReference());
   }
 
+  /** Resolve the reference, loading its grammar again if it was evicted */
   @Override
   public Rule resolve(RuleReference reference) {
+    final Rule rule = current.get().resolve(reference);
     final URI ref = reference.getGrammarReference();
-    final Grammar grammar = grammars.get(ref);
-    if (ref == null || grammar == null) {
-      return null;
+    if (rule != null || ref == null || ! evicted.contains(ref)
+        || reload(ref) == null) {
+      return rule;
     }
-    String name = reference.getRuleName();
-    if (name == null || name.equals("___root")) {
-      name = grammar.getRoot();
+    return current.get().resolve(reference);
+  }
+
+  /** A grammar that was read, but whose references are not loaded yet */
+  private static class Parsed {
+    final JVoiceXmlGrammar grammar;
+    final List<Rule> rules;
+
+    Parsed(JVoiceXmlGrammar g, List<Rule> r) {
+      grammar = g;
+      rules = r;
     }
-    return grammar.getRule(name);
   }
 
-  /**
-   * Recursively walk the elements of this grammar to look for external
-   * references.
-   *
-   * @param component
-   * @throws IOException
-   * @throws GrammarException
-   */
-  private void walkSubcomponents(RuleComponent component, JVoiceXmlGrammar grammar)
-      throws GrammarException, IOException {
+  /** Carries the checked exceptions of a ParseTask */
+  @SuppressWarnings("serial")
+  private static class LoadFailure extends RuntimeException {
+    LoadFailure(Exception cause) {
+      super(cause);
+    }
+  }
+
+  /** Collect the URIs of the external grammars the component references */
+  private static void collectReferences(RuleComponent component,
+      JVoiceXmlGrammar grammar, Set<URI> result) throws GrammarException {
     if (component instanceof RuleSequence) {
-      final RuleSequence sequence = (RuleSequence) component;
-      for (RuleComponent c : sequence.getRuleComponents()) {
-        walkSubcomponents(c, grammar);
+      for (RuleComponent c : ((RuleSequence) component).getRuleComponents()) {
+        collectReferences(c, grammar, result);
       }
     } else if (component instanceof RuleAlternatives) {
       final RuleAlternatives alternatives = (RuleAlternatives) component;
       for (int i = 0; i < alternatives.size(); ++i) {
-        walkSubcomponents(alternatives.getAlternative(i), grammar);
+        collectReferences(alternatives.getAlternative(i), grammar, result);
       }
     } else if (component instanceof RuleCount) {
-      final RuleCount count = (RuleCount) component;
-      walkSubcomponents(count.getRuleComponent(), grammar);
+      collectReferences(((RuleCount) component).getRuleComponent(), grammar,
+          result);
     } else if (component instanceof RuleReference) {
-      final RuleReference ref = grammarStack.peek()
-          .resolve((RuleReference) component);
-      // check if this is an unknown external reference
-      if (!grammars.containsKey(ref.getGrammarReference())) {
-        JVoiceXmlGrammar sub = (JVoiceXmlGrammar) loadGrammar(ref.getGrammarReference());
-        grammar.addSymbols(sub);
-      }
-      // now it must be possible to resolve the reference!
-      if (resolve(ref) == null) {
-        throw new GrammarException("Unresolvable rule reference loading "
-            + grammarStack.peek().getReference() + ": "
-            + ref.getRepresentation());
+      final URI uri =
+          grammar.resolve((RuleReference) component).getGrammarReference();
+      if (! Recognizers.isBuiltin(uri)) {
+        result.add(uri);
       }
     }
   }
 
   /**
-   * Check all right hand sides for external references and load the referenced
-   * grammars
-   *
-   * @param rules a list of Rules
-   * @throws IOException
-   * @throws GrammarException
+   * The state of one call to loadGrammar. The grammar and the grammars it
+   * references are loaded in three steps:
+   * 1. parseAll reads all new grammars in parallel, optionally
+   * 2. link registers them and adds the symbols of referenced grammars, in
+   *    the same order as a depth first, serial load. Grammars not read in
+   *    step 1 are read here.
+   * 3. postProcess post processes them, in parallel where possible
    */
-  private void loadExternalGrammars(List<Rule> rules, JVoiceXmlGrammar grammar)
-      throws GrammarException, IOException {
-    for (Rule r : rules) {
-      walkSubcomponents(r.getRuleComponent(), grammar);
+  private class Loading {
+    /** The version the grammars are added to */
+    private final Version next;
+
+    private final Stack<Grammar> grammarStack = new Stack<>();
+
+    private final Map<URI, Parsed> parsed = new ConcurrentHashMap<>();
+
+    private final Set<URI> scheduled = ConcurrentHashMap.newKeySet();
+
+    /** The new grammars, in the order a serial load post processes them */
+    private final List<JVoiceXmlGrammar> loaded = new ArrayList<>();
+
+    /** The references of grammars that replaced loaded ones */
+    private final List<URI> replaced = new ArrayList<>();
+
+    Loading(Version version) {
+      next = version;
+    }
+
+    /** Reads a grammar, and then in parallel the grammars it references that
+     *  are neither loaded nor scheduled */
+    private class ParseTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+
+      private final URI uri;
+
+      ParseTask(URI u) {
+        uri = u;
+      }
+
+      @Override
+      protected void compute() {
+        final List<ParseTask> subs = new ArrayList<>();
+        try {
+          final Parsed p = parse(uri, next);
+          parsed.put(uri, p);
+          final Set<URI> refs = new LinkedHashSet<>();
+          for (Rule r : p.rules) {
+            collectReferences(r.getRuleComponent(), p.grammar, refs);
+          }
+          for (URI ref : refs) {
+            if (! loadLazily && ! next.grammars.containsKey(ref)
+                && scheduled.add(ref)) {
+              subs.add(new ParseTask(ref));
+            }
+          }
+        } catch (GrammarException | IOException ex) {
+          throw new LoadFailure(ex);
+        }
+        invokeAll(subs);
+      }
+    }
+
+    void parseAll(URI grammarReference) throws GrammarException, IOException {
+      scheduled.add(grammarReference);
+      try {
+        ForkJoinPool.commonPool().invoke(new ParseTask(grammarReference));
+      } catch (LoadFailure ex) {
+        if (ex.getCause() instanceof GrammarException) {
+          throw (GrammarException) ex.getCause();
+        }
+        throw (IOException) ex.getCause();
+      }
+    }
+
+    /** Register the grammar, and link it with the grammars it references */
+    JVoiceXmlGrammar link(URI grammarReference)
+        throws GrammarException, IOException {
+      Parsed p = parsed.remove(grammarReference);
+      if (p == null) {
+        p = parse(grammarReference, next);
+      }
+      final JVoiceXmlGrammar grammar = p.grammar;
+      // Register grammar
+      if (next.grammars.put(grammar.getReference(), grammar) != null) {
+        replaced.add(grammar.getReference());
+      }
+
+      grammarStack.push(grammar);
+      loadExternalGrammars(p.rules, grammar);
+      grammarStack.pop();
+      loaded.add(grammar);
+      return grammar;
+    }
+
+    /**
+     * Post process the new next.grammars. The grammars in a strongly connected
+     * component of the reference graph are post processed serially, as in a
+     * serial load, and after all components they reference.
+     */
+    void postProcess() {
+      if (! loadInParallel || loaded.size() == 1) {
+        for (JVoiceXmlGrammar grammar : loaded) {
+          grammar.postProcess();
+          TagScript.precompile(grammar);
+        }
+        return;
+      }
+      final List<List<JVoiceXmlGrammar>> components = new Components().get();
+      final Map<JVoiceXmlGrammar, CompletableFuture<Void>> done =
+          new IdentityHashMap<>();
+      final List<CompletableFuture<Void>> all = new ArrayList<>();
+      // the components referenced come first
+      for (List<JVoiceXmlGrammar> component : components) {
+        final List<CompletableFuture<Void>> deps = new ArrayList<>();
+        for (JVoiceXmlGrammar g : component) {
+          for (URI ref : g.getReferences()) {
+            final CompletableFuture<Void> dep = done.get(next.grammars.get(ref));
+            if (dep != null) {
+              deps.add(dep);
+            }
+          }
+        }
+        final CompletableFuture<Void> f = CompletableFuture.allOf(
+            deps.toArray(new CompletableFuture<?>[deps.size()]))
+            .thenRunAsync(() -> {
+              for (JVoiceXmlGrammar grammar : component) {
+                grammar.postProcess();
+                TagScript.precompile(grammar);
+              }
+            }, ForkJoinPool.commonPool());
+        for (JVoiceXmlGrammar g : component) {
+          done.put(g, f);
+        }
+        all.add(f);
+      }
+      try {
+        CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()]))
+            .join();
+      } catch (CompletionException ex) {
+        if (ex.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) ex.getCause();
+        }
+        throw ex;
+      }
     }
+
+    /** Tarjan's algorithm for the strongly connected components of the new
+     *  grammars, each ordered like the serial post processing */
+    private class Components {
+      private final Map<JVoiceXmlGrammar, Integer> position =
+          new IdentityHashMap<>();
+      private final Map<JVoiceXmlGrammar, Integer> index =
+          new IdentityHashMap<>();
+      private final Map<JVoiceXmlGrammar, Integer> low =
+          new IdentityHashMap<>();
+      private final Deque<JVoiceXmlGrammar> stack = new ArrayDeque<>();
+      private final Set<JVoiceXmlGrammar> onStack =
+          Collections.newSetFromMap(new IdentityHashMap<>());
+      private final List<List<JVoiceXmlGrammar>> result = new ArrayList<>();
+
+      List<List<JVoiceXmlGrammar>> get() {
+        for (JVoiceXmlGrammar g : loaded) {
+          position.put(g, position.size());
+        }
+        for (JVoiceXmlGrammar g : loaded) {
+          if (! index.containsKey(g)) {
+            visit(g);
+          }
+        }
+        return result;
+      }
+
+      private void visit(JVoiceXmlGrammar g) {
+        index.put(g, index.size());
+        low.put(g, index.get(g));
+        stack.push(g);
+        onStack.add(g);
+        for (URI ref : g.getReferences()) {
+          final Grammar sub = next.grammars.get(ref);
+          if (! position.containsKey(sub)) {
+            // loaded before, it is post processed already
+          } else if (! index.containsKey(sub)) {
+            visit((JVoiceXmlGrammar) sub);
+            low.put(g, Math.min(low.get(g), low.get(sub)));
+          } else if (onStack.contains(sub)) {
+            low.put(g, Math.min(low.get(g), index.get(sub)));
+          }
+        }
+        if (low.get(g).equals(index.get(g))) {
+          final List<JVoiceXmlGrammar> component = new ArrayList<>();
+          JVoiceXmlGrammar member;
+          do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+          } while (member != g);
+          component.sort((a, b) -> position.get(a) - position.get(b));
+          result.add(component);
+        }
+      }
+    }
+
+    /**
+     * Recursively walk the elements of this grammar to look for external
+     * references.
+     *
+     * @param component
+     * @throws IOException
+     * @throws GrammarException
+     */
+    private void walkSubcomponents(RuleComponent component, JVoiceXmlGrammar grammar)
+        throws GrammarException, IOException {
+      if (component instanceof RuleSequence) {
+        final RuleSequence sequence = (RuleSequence) component;
+        for (RuleComponent c : sequence.getRuleComponents()) {
+          walkSubcomponents(c, grammar);
+        }
+      } else if (component instanceof RuleAlternatives) {
+        final RuleAlternatives alternatives = (RuleAlternatives) component;
+        for (int i = 0; i < alternatives.size(); ++i) {
+          walkSubcomponents(alternatives.getAlternative(i), grammar);
+        }
+      } else if (component instanceof RuleCount) {
+        final RuleCount count = (RuleCount) component;
+        walkSubcomponents(count.getRuleComponent(), grammar);
+      } else if (component instanceof RuleReference) {
+        final RuleReference ref = grammarStack.peek()
+            .resolve((RuleReference) component);
+        if (Recognizers.isBuiltin(ref.getGrammarReference())) {
+          final RuleBuiltin builtin = Recognizers.get(ref.getGrammarReference());
+          if (builtin == null) {
+            throw new GrammarException("Unknown recognizer loading "
+                + grammarStack.peek().getReference() + ": "
+                + ref.getRepresentation());
+          }
+          grammar.addBuiltin(builtin);
+          return;
+        }
+        // check if this is an unknown external reference
+        final Grammar known = next.grammars.get(ref.getGrammarReference());
+        grammar.addReference(ref.getGrammarReference());
+        if (known == null && loadLazily) {
+          checkExists(ref.getGrammarReference());
+          deferred.add(ref.getGrammarReference());
+          grammar.setIncomplete();
+          return;
+        } else if (known == null) {
+          grammar.addSymbols(link(ref.getGrammarReference()));
+        } else if (! grammarStack.contains(known)) {
+          // loaded before, but not currently being loaded (cyclic reference):
+          // its symbols are complete and must also be visible here
+          grammar.addSymbols((JVoiceXmlGrammar) known);
+        }
+        // now it must be possible to resolve the reference!
+        if (next.resolve(ref) == null) {
+          throw new GrammarException("Unresolvable rule reference loading "
+              + grammarStack.peek().getReference() + ": "
+              + ref.getRepresentation());
+        }
+      }
+    }
+
+    /**
+     * Check all right hand sides for external references and load the referenced
+     * grammars
+     *
+     * @param rules a list of Rules
+     * @throws IOException
+     * @throws GrammarException
+     */
+    private void loadExternalGrammars(List<Rule> rules, JVoiceXmlGrammar grammar)
+        throws GrammarException, IOException {
+      for (Rule r : rules) {
+        walkSubcomponents(r.getRuleComponent(), grammar);
+      }
+    }
+
   }
 }
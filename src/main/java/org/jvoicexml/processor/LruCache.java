@@ -0,0 +1,128 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * A thread safe map with a maximal size that evicts the least recently used
+ * entry if the size is exceeded, and counts hits, misses and evictions.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ *
+ * @author Bernd Kiefer
+ */
+public class LruCache<K, V> {
+
+  private final int maxSize;
+
+  private final LinkedHashMap<K, V> impl;
+
+  private long hits, misses, evictions;
+
+  /** Create a cache holding at most maxSize entries */
+  public LruCache(int maxSize) {
+    this.maxSize = maxSize;
+    impl = new LinkedHashMap<K, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        if (size() > LruCache.this.maxSize) {
+          ++evictions;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** Return the value for key, or null if there is none */
+  public synchronized V get(K key) {
+    V result = impl.get(key);
+    if (result == null) {
+      ++misses;
+    } else {
+      ++hits;
+    }
+    return result;
+  }
+
+  public synchronized void put(K key, V value) {
+    if (maxSize > 0) {
+      impl.put(key, value);
+    }
+  }
+
+  /**
+   * Return the value for key, computing and storing it if there is none. The
+   * computation is done outside of the lock, so it may be done more than once
+   * for the same key by concurrent callers, the last one wins.
+   */
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> fn) {
+    V result = get(key);
+    if (result == null) {
+      result = fn.apply(key);
+      put(key, result);
+    }
+    return result;
+  }
+
+  public synchronized V remove(K key) {
+    return impl.remove(key);
+  }
+
+  /** Remove all entries for which the predicate holds, return how many */
+  public synchronized int removeIf(BiPredicate<? super K, ? super V> p) {
+    int removed = 0;
+    for (Iterator<Map.Entry<K, V>> it = impl.entrySet().iterator();
+        it.hasNext();) {
+      Map.Entry<K, V> e = it.next();
+      if (p.test(e.getKey(), e.getValue())) {
+        it.remove();
+        ++removed;
+      }
+    }
+    return removed;
+  }
+
+  /** Return a copy of the values, which does not change the access order */
+  public synchronized List<V> values() {
+    return new ArrayList<>(impl.values());
+  }
+
+  public synchronized void clear() {
+    impl.clear();
+  }
+
+  public synchronized int size() {
+    return impl.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("size %d/%d, hits %d, misses %d, evictions %d",
+        impl.size(), maxSize, hits, misses, evictions);
+  }
+}
@@ -0,0 +1,218 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jvoicexml.processor.grammar.RuleAlternative;
+import org.jvoicexml.processor.grammar.RuleAlternatives;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
+import org.jvoicexml.processor.grammar.RuleParse;
+import org.jvoicexml.processor.grammar.RuleTag;
+import org.jvoicexml.processor.grammar.RuleTrie;
+
+/**
+ * Computes the semantics of a parse tree in Java, if all its tags are in the
+ * subset supported by NativeTag. The structure is the same as in
+ * TagEvaluator, only the values are Java objects.
+ *
+ * If a tag is not supported, or the evaluation runs into a case that is
+ * not handled in Java, a NativeTag.Fallback exception is thrown, and the
+ * tree has to be evaluated with Rhino.
+ *
+ * @author Bernd Kiefer
+ */
+class NativeEvaluator implements TreeWalker<ChartNode>, NativeTag.Env {
+
+  /** The out variable of a rule */
+  private static class RuleScope {
+    Object out = new LinkedHashMap<String, Object>();
+  }
+
+  private static class Frame {
+    final RuleScope scope;
+    final List<ChartNode> children = new ArrayList<>();
+    final List<Object> values = new ArrayList<>();
+
+    Frame(RuleScope s) {
+      scope = s;
+    }
+  }
+
+  /** The input tokens, for $$n */
+  private final String[] input;
+  private final Map<String, Object> rules = new HashMap<>();
+  private final Deque<Frame> stack = new ArrayDeque<>();
+
+  /** The current tag, and the frame of its parent */
+  private ChartNode tag;
+  private Frame parent;
+
+  /** Skips and stores pure subtrees, null if they are not cached */
+  private final SubtreeMemo.Cursor memo;
+
+  NativeEvaluator(String[] in, SubtreeMemo.Cursor cursor) {
+    input = in;
+    memo = cursor;
+  }
+
+  /** Compute the value of the root rule, or throw NativeTag.Fallback */
+  Object evaluate(Traversable root) {
+    stack.clear();
+    Frame top = new Frame(new RuleScope());
+    stack.push(top);
+    root.preorder(this);
+    rules.put("root", top.scope.out);
+    return top.scope.out;
+  }
+
+  /** Compute the semantics like SemanticsInterpreter.evaluate, or throw
+   *  NativeTag.Fallback */
+  static SemanticResult interpret(AbstractParser checker, Traversable root) {
+    return interpret(checker.input, root, null);
+  }
+
+  static SemanticResult interpret(String[] input, Traversable root,
+      SubtreeMemo.Cursor cursor) {
+    return SemanticResult.fromNative(
+        new NativeEvaluator(input, cursor).evaluate(root));
+  }
+
+  @Override
+  public Object getOut() {
+    return parent.scope.out;
+  }
+
+  @Override
+  public void setOut(Object value) {
+    parent.scope.out = value;
+  }
+
+  @Override
+  public Object getRule(String name) {
+    Object result = rules.get(name);
+    return result == null && ! rules.containsKey(name)
+        ? NativeTag.UNDEFINED : result;
+  }
+
+  @Override
+  public String text(int delta) {
+    if (delta == 0) {
+      return AbstractParser.covered(input, tag.start, tag.end);
+    }
+    int index = parent.children.size() - delta;
+    if (index < 0) {
+      return "";
+    }
+    ChartNode target = parent.children.get(index);
+    return AbstractParser.covered(input, target.start, target.end);
+  }
+
+  @Override
+  public Object value(int delta) {
+    int index = parent.children.size() - delta;
+    if (delta == 0 || index < 0) {
+      return NativeTag.UNDEFINED;
+    }
+    return parent.values.get(index);
+  }
+
+  /**
+   * Convert the value of a recognizer match to the representation used here,
+   * which also returns a fresh copy of a native value.
+   *
+   * @throws IllegalArgumentException if the value can not be converted
+   */
+  @SuppressWarnings("unchecked")
+  static Object toNative(Object v) {
+    if (v == null || v instanceof String || v instanceof Boolean) {
+      return v;
+    }
+    if (v instanceof Number) {
+      return ((Number) v).doubleValue();
+    }
+    if (v instanceof Map) {
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+        result.put(e.getKey(), toNative(e.getValue()));
+      }
+      return result;
+    }
+    if (v instanceof List) {
+      List<Object> result = new ArrayList<>(((List<?>) v).size());
+      for (Object o : (List<?>) v) {
+        result.add(toNative(o));
+      }
+      return result;
+    }
+    throw new IllegalArgumentException("Not a semantic value: " + v);
+  }
+
+  @Override
+  public void enter(ChartNode node, boolean leaf) {
+    if (memo != null && memo.enter(node)) {
+      return;
+    }
+    Frame current = stack.peek();
+    if (node.getRule() instanceof RuleBuiltin
+        && ! (node.getRule() instanceof RuleTrie)) {
+      // the precomputed value of a recognizer match, tags may modify it
+      current.scope.out = toNative(node.value);
+    } else if (node.getRule() instanceof RuleTag) {
+      NativeTag t = TagScript.get((RuleTag) node.getRule()).nativeTag;
+      if (t == null) {
+        throw NativeTag.FALLBACK;
+      }
+      tag = node;
+      parent = current;
+      t.execute(this);
+    }
+    stack.push(new Frame(node.getRule() instanceof RuleParse
+        ? new RuleScope() : current.scope));
+  }
+
+  @Override
+  public void leave(ChartNode node, boolean leaf) {
+    Object value = NativeTag.UNDEFINED;
+    if (memo != null && memo.leave(node)) {
+      SubtreeMemo.Entry hit = memo.hit();
+      if (hit == null) {
+        return; // inside of a skipped subtree
+      }
+      rules.putAll(hit.rules);
+      value = hit.out;
+      rules.put(ruleName(node), value);
+      stack.peek().children.add(node);
+      stack.peek().values.add(value);
+      return;
+    }
+    Frame frame = stack.pop();
+    if (node.getRule() instanceof RuleParse) {
+      value = frame.scope.out;
+      rules.put(ruleName(node), value);
+      SubtreeMemo.Info info = memo == null ? null : memo.leaveRule();
+      if (info != null) {
+        Map<String, Object> assigned = new LinkedHashMap<>();
+        for (String name : info.assigned) {
+          assigned.put(name, rules.get(name));
+        }
+        memo.store(info, new SubtreeMemo.Entry(value, assigned).copy());
+      }
+    } else if ((node.getRule() instanceof RuleAlternatives
+        || node.getRule() instanceof RuleAlternative)
+        && ! frame.values.isEmpty()) {
+      value = frame.values.get(0);
+    }
+    Frame p = stack.peek();
+    p.children.add(node);
+    p.values.add(value);
+  }
+
+  private static String ruleName(ChartNode node) {
+    return ((RuleParse)node.getRule()).getRuleName();
+  }
+}
@@ -0,0 +1,502 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A tag from the subset of SISR that can be evaluated in Java, without
+ * Rhino. The subset consists of a sequence of assignments to out or to a
+ * property path of out, like out.a.b, where the value is one of:
+ * <ul>
+ * <li>a string, number, boolean or null literal, where strings may contain
+ * $$n references</li>
+ * <li>a $%n reference</li>
+ * <li>rules.name, out, or $%n, followed by a property path</li>
+ * <li>an object or array literal of values, or new Object(), new Array()</li>
+ * </ul>
+ *
+ * JavaScript objects are represented by LinkedHashMaps, arrays by
+ * ArrayLists, numbers by Doubles, undefined by UNDEFINED.
+ *
+ * All cases where JavaScript would report an error, or which are not
+ * straightforward, like assigning a property of a string, throw a Fallback
+ * exception, and the whole tree is evaluated by Rhino.
+ *
+ * @author Bernd Kiefer
+ */
+class NativeTag {
+
+  /** The JavaScript value undefined */
+  static final Object UNDEFINED = new Object() {
+    @Override
+    public String toString() {
+      return "undefined";
+    }
+  };
+
+  /** Thrown if the tree can not be evaluated without Rhino */
+  @SuppressWarnings("serial")
+  static class Fallback extends RuntimeException {
+    Fallback() {
+      super(null, null, false, false);
+    }
+  }
+
+  static final Fallback FALLBACK = new Fallback();
+
+  /** The properties of Object.prototype, which are not undefined */
+  private static final Set<String> INHERITED = new HashSet<>(Arrays.asList(
+      "__proto__", "constructor", "toString", "toLocaleString", "valueOf",
+      "hasOwnProperty", "isPrototypeOf", "propertyIsEnumerable",
+      "__defineGetter__", "__defineSetter__", "__lookupGetter__",
+      "__lookupSetter__"));
+
+  /** What a native tag can access during evaluation */
+  interface Env {
+    Object getOut();
+    void setOut(Object value);
+    Object getRule(String name);
+    /** The text matched n positions before the tag */
+    String text(int n);
+    /** The value of the rule n positions before the tag */
+    Object value(int n);
+  }
+
+  private interface Expr {
+    Object eval(Env env);
+  }
+
+  /** An assignment to out, or to a property path below it */
+  private static class Assignment {
+    final String[] path;
+    final Expr value;
+
+    Assignment(List<String> p, Expr v) {
+      path = p.toArray(new String[p.size()]);
+      value = v;
+    }
+
+    @SuppressWarnings("unchecked")
+    void execute(Env env) {
+      Object val = value.eval(env);
+      if (path.length == 0) {
+        env.setOut(val);
+        return;
+      }
+      Object target = env.getOut();
+      for (int i = 0; i < path.length - 1; ++i) {
+        target = get(target, path[i]);
+      }
+      if (! (target instanceof Map)) {
+        throw FALLBACK;
+      }
+      ((Map<String, Object>) target).put(path[path.length - 1], val);
+    }
+  }
+
+  private final List<Assignment> statements;
+
+  /** The names of all rules.name references */
+  final Set<String> ruleReads;
+
+  private NativeTag(List<Assignment> s, Set<String> r) {
+    statements = s;
+    ruleReads = r;
+  }
+
+  void execute(Env env) {
+    for (Assignment a : statements) {
+      a.execute(env);
+    }
+  }
+
+  /** Get the property of an object, or throw Fallback for other values */
+  static Object get(Object obj, String property) {
+    if (! (obj instanceof Map)) {
+      throw FALLBACK;
+    }
+    Object result = ((Map<?, ?>) obj).get(property);
+    if (result == null && ! ((Map<?, ?>) obj).containsKey(property)) {
+      if (INHERITED.contains(property)) {
+        throw FALLBACK;
+      }
+      return UNDEFINED;
+    }
+    return result;
+  }
+
+  /** Return the native form of the tag source, or null if it is outside of
+   *  the supported subset */
+  static NativeTag parse(String source) {
+    try {
+      return new Parser(source).parse();
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  /** A recursive descent parser for the subset */
+  private static class Parser {
+    private final String in;
+    private int pos;
+    private final Set<String> ruleReads = new HashSet<>();
+
+    Parser(String s) {
+      in = s;
+      pos = 0;
+    }
+
+    private static IllegalArgumentException unsupported() {
+      return new IllegalArgumentException();
+    }
+
+    private void skipSpace() {
+      while (pos < in.length()) {
+        char c = in.charAt(pos);
+        if (Character.isWhitespace(c)) {
+          ++pos;
+        } else if (in.startsWith("//", pos)) {
+          int end = in.indexOf('\n', pos);
+          pos = end < 0 ? in.length() : end;
+        } else if (in.startsWith("/*", pos)) {
+          int end = in.indexOf("*/", pos + 2);
+          if (end < 0) throw unsupported();
+          pos = end + 2;
+        } else {
+          break;
+        }
+      }
+    }
+
+    private boolean at(char c) {
+      skipSpace();
+      return pos < in.length() && in.charAt(pos) == c;
+    }
+
+    private boolean accept(char c) {
+      if (at(c)) {
+        ++pos;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(char c) {
+      if (! accept(c)) throw unsupported();
+    }
+
+    private static boolean isIdStart(char c) {
+      return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    private String identifier() {
+      skipSpace();
+      int start = pos;
+      if (pos < in.length() && isIdStart(in.charAt(pos))) {
+        ++pos;
+        while (pos < in.length() && (isIdStart(in.charAt(pos))
+            || Character.isDigit(in.charAt(pos)))) {
+          ++pos;
+        }
+      }
+      if (start == pos) throw unsupported();
+      return in.substring(start, pos);
+    }
+
+    /** Peek at the identifier at the current position, without consuming */
+    private boolean atKeyword(String word) {
+      skipSpace();
+      int end = pos + word.length();
+      return in.startsWith(word, pos) && (end == in.length()
+          || ! (isIdStart(in.charAt(end)) || Character.isDigit(in.charAt(end))));
+    }
+
+    /** Parse a reference of the form $$n or $%n, returning n */
+    private int reference(char kind) {
+      skipSpace();
+      if (! (in.startsWith("$", pos) && pos + 1 < in.length()
+          && in.charAt(pos + 1) == kind)) {
+        return -1;
+      }
+      int start = pos + 2;
+      int end = start;
+      while (end < in.length() && Character.isDigit(in.charAt(end))) {
+        ++end;
+      }
+      if (end == start) {
+        return -1;
+      }
+      pos = end;
+      return Integer.parseInt(in.substring(start, end));
+    }
+
+    /** Parse .name or ["name"] accessors */
+    private List<String> path() {
+      List<String> result = new ArrayList<>();
+      while (true) {
+        if (accept('.')) {
+          result.add(identifier());
+        } else if (at('[')) {
+          ++pos;
+          skipSpace();
+          if (! at('"') && ! at('\'')) throw unsupported();
+          Object name = stringLiteral();
+          if (! (name instanceof String)) throw unsupported();
+          result.add((String) name);
+          expect(']');
+        } else {
+          return result;
+        }
+        if (result.get(result.size() - 1).equals("__proto__")) {
+          throw unsupported();
+        }
+      }
+    }
+
+    NativeTag parse() {
+      List<Assignment> result = new ArrayList<>();
+      while (true) {
+        while (accept(';')) {
+          // empty statement
+        }
+        skipSpace();
+        if (pos == in.length()) {
+          return new NativeTag(result, ruleReads);
+        }
+        if (! atKeyword("out")) throw unsupported();
+        pos += 3;
+        List<String> path = path();
+        expect('=');
+        if (at('=')) throw unsupported(); // comparison
+        result.add(new Assignment(path, expression()));
+        skipSpace();
+        if (pos < in.length() && ! accept(';')) throw unsupported();
+      }
+    }
+
+    private Expr withPath(Expr base) {
+      final List<String> path = path();
+      if (path.isEmpty()) {
+        return base;
+      }
+      return env -> {
+        Object val = base.eval(env);
+        for (String p : path) {
+          val = get(val, p);
+        }
+        return val;
+      };
+    }
+
+    private Expr expression() {
+      skipSpace();
+      if (pos == in.length()) throw unsupported();
+      char c = in.charAt(pos);
+      Expr result;
+      int n;
+      if (c == '"' || c == '\'') {
+        Object lit = stringLiteral();
+        result = (lit instanceof String) ? constant(lit) : (Expr) lit;
+      } else if (c == '-' || c == '.' || Character.isDigit(c)) {
+        result = constant(number());
+      } else if (c == '{') {
+        result = objectLiteral();
+      } else if (c == '[') {
+        result = arrayLiteral();
+      } else if ((n = reference('%')) >= 0) {
+        final int delta = n;
+        result = withPath(env -> env.value(delta));
+      } else if (atKeyword("rules")) {
+        pos += 5;
+        expect('.');
+        final String name = identifier();
+        ruleReads.add(name);
+        result = withPath(env -> env.getRule(name));
+      } else if (atKeyword("out")) {
+        pos += 3;
+        result = withPath(env -> env.getOut());
+      } else if (atKeyword("true") || atKeyword("false")) {
+        result = constant(Boolean.valueOf(identifier()));
+      } else if (atKeyword("null")) {
+        pos += 4;
+        result = constant(null);
+      } else if (atKeyword("new")) {
+        pos += 3;
+        String type = identifier();
+        if (accept('(')) {
+          expect(')');
+        }
+        if (type.equals("Object")) {
+          result = env -> new LinkedHashMap<String, Object>();
+        } else if (type.equals("Array")) {
+          result = env -> new ArrayList<Object>();
+        } else {
+          throw unsupported();
+        }
+      } else {
+        throw unsupported();
+      }
+      // no operators
+      skipSpace();
+      if (pos < in.length() && in.charAt(pos) != ';'
+          && in.charAt(pos) != ',' && in.charAt(pos) != '}'
+          && in.charAt(pos) != ']') {
+        throw unsupported();
+      }
+      return result;
+    }
+
+    private static Expr constant(Object value) {
+      return env -> value;
+    }
+
+    private Expr objectLiteral() {
+      expect('{');
+      final List<String> keys = new ArrayList<>();
+      final List<Expr> values = new ArrayList<>();
+      while (! accept('}')) {
+        if (! keys.isEmpty()) {
+          expect(',');
+          if (accept('}')) break;
+        }
+        skipSpace();
+        Object key;
+        if (at('"') || at('\'')) {
+          key = stringLiteral();
+          if (! (key instanceof String)) throw unsupported();
+        } else {
+          key = identifier();
+        }
+        expect(':');
+        keys.add((String) key);
+        values.add(expression());
+      }
+      return env -> {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); ++i) {
+          result.put(keys.get(i), values.get(i).eval(env));
+        }
+        return result;
+      };
+    }
+
+    private Expr arrayLiteral() {
+      expect('[');
+      final List<Expr> values = new ArrayList<>();
+      while (! accept(']')) {
+        if (! values.isEmpty()) {
+          expect(',');
+        }
+        values.add(expression());
+      }
+      return env -> {
+        List<Object> result = new ArrayList<>(values.size());
+        for (Expr e : values) {
+          result.add(e.eval(env));
+        }
+        return result;
+      };
+    }
+
+    private Double number() {
+      int start = pos;
+      if (in.charAt(pos) == '-') ++pos;
+      while (pos < in.length()
+          && (Character.isDigit(in.charAt(pos)) || in.charAt(pos) == '.')) {
+        ++pos;
+      }
+      if (pos < in.length() && (in.charAt(pos) == 'e' || in.charAt(pos) == 'E')) {
+        ++pos;
+        if (pos < in.length() && (in.charAt(pos) == '+' || in.charAt(pos) == '-')) {
+          ++pos;
+        }
+        while (pos < in.length() && Character.isDigit(in.charAt(pos))) {
+          ++pos;
+        }
+      }
+      String num = in.substring(start, pos);
+      // no hex or octal numbers
+      if (num.matches("-?0[0-9xX].*")) throw unsupported();
+      try {
+        return Double.valueOf(num);
+      } catch (NumberFormatException ex) {
+        throw unsupported();
+      }
+    }
+
+    /** Return the String, or an Expr if the literal contains $$n */
+    private Object stringLiteral() {
+      skipSpace();
+      final char quote = in.charAt(pos++);
+      final List<Object> parts = new ArrayList<>();
+      StringBuilder sb = new StringBuilder();
+      while (true) {
+        if (pos >= in.length()) throw unsupported();
+        char c = in.charAt(pos++);
+        if (c == quote) {
+          break;
+        }
+        if (c == '\\') {
+          if (pos >= in.length()) throw unsupported();
+          c = in.charAt(pos++);
+          switch (c) {
+          case 'n': sb.append('\n'); break;
+          case 't': sb.append('\t'); break;
+          case 'r': sb.append('\r'); break;
+          case 'b': sb.append('\b'); break;
+          case 'f': sb.append('\f'); break;
+          case 'v': sb.append('\u000b'); break;
+          case 'u':
+            if (pos + 4 > in.length()) throw unsupported();
+            try {
+              sb.append((char) Integer.parseInt(in.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException ex) {
+              throw unsupported();
+            }
+            pos += 4;
+            break;
+          case '\n': break;
+          default:
+            if (Character.isDigit(c) || c == 'x') throw unsupported();
+            sb.append(c);
+          }
+        } else if (c == '\n') {
+          throw unsupported();
+        } else if (c == '$' && pos + 1 < in.length() && in.charAt(pos) == '%'
+            && Character.isDigit(in.charAt(pos + 1))) {
+          // replaced by code in a string, see TagScript
+          throw unsupported();
+        } else if (c == '$' && pos < in.length() && in.charAt(pos) == '$'
+            && pos + 1 < in.length() && Character.isDigit(in.charAt(pos + 1))) {
+          --pos;
+          int n = reference('$');
+          parts.add(sb.toString());
+          sb = new StringBuilder();
+          parts.add(n);
+        } else {
+          sb.append(c);
+        }
+      }
+      if (parts.isEmpty()) {
+        return sb.toString();
+      }
+      parts.add(sb.toString());
+      return (Expr) env -> {
+        StringBuilder result = new StringBuilder();
+        for (Object part : parts) {
+          if (part instanceof Integer) {
+            result.append(env.text((Integer) part));
+          } else {
+            result.append((String) part);
+          }
+        }
+        return result.toString();
+      };
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package org.jvoicexml.processor;
+
+import java.util.Comparator;
+
+/**
+ * One result of a parse, whose semantics is only computed when it is first
+ * asked for, and then kept. The tree, its weight and the covered input are
+ * available without running any tags, so a caller can rank and filter the
+ * results first, and only evaluate the ones that are actually used.
+ *
+ * A result keeps the input tokens it was parsed from, and so stays valid when
+ * the parser is used for the next input.
+ *
+ * @author Bernd Kiefer
+ */
+public class ParseResult implements Traversable {
+
+  /** Orders results by increasing weight, i.e., the best result first */
+  public static final Comparator<ParseResult> BY_WEIGHT =
+      (r1, r2) -> Double.compare(r1.weight, r2.weight);
+
+  private final String[] input;
+  private final Traversable tree;
+  private final ChartNode node;
+  private final double weight;
+
+  private String covered;
+  private volatile SemanticResult semantics;
+
+  /** A result for the tree that ChartNode.preorder traverses */
+  ParseResult(String[] in, ChartNode n) {
+    this(in, n, n, weight(n));
+  }
+
+  /** A result for one configuration of the alternatives in the chart */
+  ParseResult(String[] in, Configuration c) {
+    this(in, c, c.getAlternative(), c.getWeight());
+  }
+
+  private ParseResult(String[] in, Traversable t, ChartNode n, double w) {
+    input = in;
+    tree = t;
+    node = n;
+    weight = w;
+  }
+
+  /** The weight of the tree below n, computed like in BestTreeFinder */
+  private static double weight(ChartNode n) {
+    double result = n.rule.weight() * (n.end - n.start);
+    for (ChartNode child : n.children) {
+      result += weight(child);
+    }
+    return result;
+  }
+
+  /** Return the tree, a ChartNode or a Configuration */
+  public Traversable getTree() {
+    return tree;
+  }
+
+  /** Return the root node of the tree */
+  public ChartNode getNode() {
+    return node;
+  }
+
+  /** Return the weight of the tree, lower is better */
+  public double getWeight() {
+    return weight;
+  }
+
+  public int getStart() {
+    return node.start;
+  }
+
+  public int getEnd() {
+    return node.end;
+  }
+
+  /** Return the input string covered by the whole tree */
+  public String getCovered() {
+    if (covered == null) {
+      covered = covered(node);
+    }
+    return covered;
+  }
+
+  /** Return the input string covered by the node n of this tree */
+  public String covered(ChartNode n) {
+    return AbstractParser.covered(input, n.start, n.end);
+  }
+
+  /** Return true if the semantics has already been computed */
+  public boolean isEvaluated() {
+    return semantics != null;
+  }
+
+  /**
+   * Return the semantics of the tree, which is computed on the first call
+   * with SemanticsInterpreter.evaluate. If the evaluation fails, the next call
+   * will try again.
+   *
+   * @throws SemanticsLimitException if one of the limits is exceeded
+   */
+  public SemanticResult getSemantics() {
+    SemanticResult result = semantics;
+    if (result == null) {
+      synchronized (this) {
+        result = semantics;
+        if (result == null) {
+          result = SemanticsInterpreter.evaluate(input, tree);
+          semantics = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void preorder(TreeWalker<ChartNode> acceptor) {
+    tree.preorder(acceptor);
+  }
+
+  @Override
+  public String toString() {
+    return "[" + node.start + "," + node.end + "] " + weight + " "
+        + getCovered();
+  }
+}
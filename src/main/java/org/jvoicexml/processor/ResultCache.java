@@ -0,0 +1,324 @@
+package org.jvoicexml.processor;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+/**
+ * Caches the outcome of parsing an input and computing its semantics, for
+ * inputs that are repeated often, like "yes" or "main menu".
+ *
+ * The key is a fingerprint of the content of the grammar and of all grammars
+ * it refers to, directly or indirectly, together with the normalized input
+ * tokens, and the number of updates of their dynamic rules. When the manager
+ * replaces or deletes a grammar, or changes a dynamic rule, all entries whose
+ * fingerprint is no longer valid are removed. Reloading a grammar with the
+ * same content keeps the entries. The key also contains the settings of
+ * AbstractParser and SemanticsInterpreter that can change the result, so
+ * entries computed before one of them changed are not used anymore.
+ *
+ * Evaluations that fail, e.g., because of the limits in SemanticsInterpreter,
+ * are not cached.
+ *
+ * @author Bernd Kiefer
+ */
+public class ResultCache implements JVoiceXmlGrammarManager.Listener {
+
+  /** The outcome of parsing an input */
+  public static final class Result {
+    private final SemanticResult semantics;
+
+    private Result(SemanticResult s) {
+      semantics = s;
+    }
+
+    /** Return true if the grammar accepts the input */
+    public boolean isAccepted() {
+      return semantics != null;
+    }
+
+    /** Return the semantics of the parse result, null if the input is not
+     *  accepted */
+    public SemanticResult getSemantics() {
+      return semantics;
+    }
+  }
+
+  private static final Result REJECTED = new Result(null);
+
+  private static final class Key {
+    final String fingerprint;
+    final List<Object> settings;
+    final String[] tokens;
+    final int hash;
+
+    Key(String f, String[] t) {
+      fingerprint = f;
+      settings = settings();
+      tokens = t;
+      hash = (f.hashCode() * 31 + Arrays.hashCode(t)) * 31
+          + settings.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (! (o instanceof Key)) return false;
+      Key k = (Key) o;
+      return hash == k.hash && settings.equals(k.settings)
+          && fingerprint.equals(k.fingerprint)
+          && Arrays.equals(tokens, k.tokens);
+    }
+  }
+
+  /** The settings that can change the result of an input: the parsers may
+   *  return different trees for ambiguous inputs, the engines may compute
+   *  different values, and the limits may reject an evaluation */
+  private static List<Object> settings() {
+    return Arrays.asList(AbstractParser.useLeftCorner,
+        SemanticsInterpreter.engine, SemanticsInterpreter.useNativeEvaluator,
+        SemanticsInterpreter.maxInstructions, SemanticsInterpreter.maxMillis,
+        SemanticsInterpreter.maxOutputSize);
+  }
+
+  private static final class Entry {
+    final Result result;
+    /** The root grammar, and all grammars it depends on */
+    final URI root;
+    final Set<URI> dependencies;
+
+    Entry(Result r, URI g, Set<URI> deps) {
+      result = r;
+      root = g;
+      dependencies = deps;
+    }
+  }
+
+  /** The fingerprint of a grammar, with the grammars it depends on */
+  private static final class Fingerprint {
+    final JVoiceXmlGrammar grammar;
+    final String value;
+    final Set<URI> dependencies;
+
+    Fingerprint(JVoiceXmlGrammar g, String v, Set<URI> deps) {
+      grammar = g;
+      value = v;
+      dependencies = deps;
+    }
+  }
+
+  private final JVoiceXmlGrammarManager manager;
+
+  private final LruCache<Key, Entry> cache;
+
+  /** The fingerprints of the loaded grammars, computed on demand */
+  private final Map<URI, Fingerprint> fingerprints = new HashMap<>();
+
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /** Create a cache for at most maxSize inputs for the grammars of the
+   *  manager, which is informed about changes of these grammars */
+  public ResultCache(JVoiceXmlGrammarManager grammarManager, int maxSize) {
+    manager = grammarManager;
+    cache = new LruCache<>(maxSize);
+    manager.addListener(this);
+  }
+
+  /** Stop listening to the manager, and remove all entries */
+  public void close() {
+    manager.removeListener(this);
+    clear();
+  }
+
+  public void clear() {
+    cache.clear();
+    synchronized (fingerprints) {
+      fingerprints.clear();
+    }
+  }
+
+  /** Return the input without empty tokens and surrounding white space */
+  static String[] normalize(String[] input) {
+    List<String> result = new ArrayList<>(input.length);
+    for (String token : input) {
+      String t = token.trim();
+      if (! t.isEmpty()) {
+        result.add(t);
+      }
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Return the outcome of parsing the normalized input with the grammar and
+   * evaluating the semantics of the tree returned by the parser, from the
+   * cache, if possible.
+   *
+   * @throws GrammarException if parsing fails
+   * @throws SemanticsLimitException if one of the evaluation limits is
+   *         exceeded
+   */
+  public Result get(Grammar grammar, String[] input) throws GrammarException {
+    final String[] tokens = normalize(input);
+    Fingerprint f = (grammar instanceof JVoiceXmlGrammar)
+        ? getFingerprint((JVoiceXmlGrammar) grammar) : null;
+    if (f == null) {
+      return parse(grammar, tokens);
+    }
+    Key key = new Key(f.value, tokens);
+    Entry entry = cache.get(key);
+    if (entry == null) {
+      entry = new Entry(parse(grammar, tokens), grammar.getReference(),
+          f.dependencies);
+      cache.put(key, entry);
+    }
+    return entry.result;
+  }
+
+  private Result parse(Grammar grammar, String[] tokens)
+      throws GrammarException {
+    AbstractParser parser = AbstractParser.getParser(manager);
+    ChartNode result = parser.parse(grammar, tokens);
+    return result == null
+        ? REJECTED
+        : new Result(SemanticsInterpreter.evaluate(parser, result));
+  }
+
+  /** Remove the entries that depend on the changed grammar and whose
+   *  fingerprint changed */
+  @Override
+  public void grammarChanged(URI grammarReference) {
+    final Map<URI, String> current = new HashMap<>();
+    synchronized (fingerprints) {
+      fingerprints.values().removeIf(
+          f -> f.dependencies.contains(grammarReference));
+    }
+    // computed before removing, getGrammar may reload an evicted grammar,
+    // which must not happen while the cache is locked
+    for (Entry e : cache.values()) {
+      if (e.dependencies.contains(grammarReference)) {
+        current.computeIfAbsent(e.root, uri -> {
+          Grammar g = manager.getGrammar(uri);
+          Fingerprint f = (g instanceof JVoiceXmlGrammar)
+              ? getFingerprint((JVoiceXmlGrammar) g) : null;
+          return f == null ? "" : f.value;
+        });
+      }
+    }
+    int removed = cache.removeIf((k, e) ->
+        e.dependencies.contains(grammarReference)
+        && ! k.fingerprint.equals(current.getOrDefault(e.root, "")));
+    invalidations.addAndGet(removed);
+  }
+
+  private Fingerprint getFingerprint(JVoiceXmlGrammar grammar) {
+    synchronized (fingerprints) {
+      Fingerprint result = fingerprints.get(grammar.getReference());
+      if (result == null || result.grammar != grammar) {
+        result = computeFingerprint(grammar);
+        if (result != null
+            && manager.getGrammar(grammar.getReference()) == grammar) {
+          fingerprints.put(grammar.getReference(), result);
+        }
+      }
+      return result;
+    }
+  }
+
+  /** Combine the digests of the grammar and all grammars it depends on, or
+   *  return null if one of them is not known */
+  private Fingerprint computeFingerprint(JVoiceXmlGrammar grammar) {
+    // sorted, to get the same fingerprint for the same grammars
+    Map<URI, byte[]> digests = new TreeMap<>();
+    Deque<JVoiceXmlGrammar> todo = new ArrayDeque<>();
+    todo.push(grammar);
+    digests.put(grammar.getReference(), null);
+    // changes whenever the phrases of a dynamic rule change
+    long generation = 0;
+    while (! todo.isEmpty()) {
+      JVoiceXmlGrammar g = todo.pop();
+      if (g.getSourceDigest() == null) {
+        return null;
+      }
+      digests.put(g.getReference(), g.getSourceDigest());
+      generation += g.getDynamicGeneration();
+      for (URI ref : g.getReferences()) {
+        if (! digests.containsKey(ref)) {
+          Grammar sub = manager.getGrammar(ref);
+          if (! (sub instanceof JVoiceXmlGrammar)) {
+            return null;
+          }
+          digests.put(ref, null);
+          todo.push((JVoiceXmlGrammar) sub);
+        }
+      }
+    }
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    for (Map.Entry<URI, byte[]> e : digests.entrySet()) {
+      md.update(e.getKey().toString().getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(e.getValue());
+    }
+    md.update(Long.toString(generation).getBytes(StandardCharsets.UTF_8));
+    StringBuilder sb = new StringBuilder();
+    for (byte b : md.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return new Fingerprint(grammar, sb.toString(),
+        Collections.unmodifiableSet(new HashSet<>(digests.keySet())));
+  }
+
+  /********************** Metrics *******************************************/
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  public long getEvictions() {
+    return cache.getEvictions();
+  }
+
+  /** How many entries were removed because a grammar changed */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  @Override
+  public String toString() {
+    return cache + ", invalidations " + invalidations.get();
+  }
+}
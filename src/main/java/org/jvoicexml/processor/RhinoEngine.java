@@ -0,0 +1,62 @@
+package org.jvoicexml.processor;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * The Rhino implementation of SemanticEngine, which evaluates trees with the
+ * precompiled tags in TagEvaluator, and enforces all limits of
+ * SemanticsInterpreter.
+ *
+ * @author Bernd Kiefer
+ */
+public class RhinoEngine implements SemanticEngine {
+
+  @Override
+  public String getName() {
+    Context ctx = RhinoSupport.enter();
+    try {
+      return ctx.getImplementationVersion();
+    } finally {
+      RhinoSupport.exit();
+    }
+  }
+
+  @Override
+  public Program compile(String source) {
+    final Script script;
+    Context ctx = RhinoSupport.enter();
+    try {
+      script = ctx.compileString(source, "<cmd>", 0, null);
+    } finally {
+      RhinoSupport.exit();
+    }
+    return () -> {
+      Context cx = RhinoSupport.enter();
+      try {
+        Scriptable global = RhinoSupport.newGlobal(cx);
+        script.exec(cx, global);
+        Scriptable rules = (Scriptable) global.get("rules", global);
+        return SemanticResult.fromRhino(cx, global, rules.get("root", rules));
+      } finally {
+        RhinoSupport.exit();
+      }
+    };
+  }
+
+  /** Compute the semantics of the tree using the precompiled tags, which
+   *  gives the same result as executing the program for the tree */
+  @Override
+  public SemanticResult evaluate(String[] input, Traversable root) {
+    Context ctx = RhinoSupport.enter();
+    try {
+      Scriptable global = RhinoSupport.newGlobal(ctx);
+      Object result = new TagEvaluator(input, ctx, global,
+          SubtreeMemo.cursor(input, root)).evaluate(root);
+      return SemanticResult.fromRhino(ctx, global, result);
+    } finally {
+      RhinoSupport.exit();
+    }
+  }
+}
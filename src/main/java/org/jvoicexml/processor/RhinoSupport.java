@@ -0,0 +1,139 @@
+package org.jvoicexml.processor;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Provides Rhino contexts and scopes for the evaluation of semantic tags.
+ *
+ * Creating the standard objects is by far the most expensive part of setting
+ * up an evaluation, so this is done only once, in a sealed scope that is
+ * shared by all evaluations. Every evaluation gets a fresh global scope that
+ * inherits from the shared one, so assignments to global variables do not
+ * leak into other evaluations, and the standard objects can not be modified.
+ *
+ * Every thread reuses its own Context. The instruction and time limits of
+ * SemanticsInterpreter are enforced by the Context's instruction observer.
+ *
+ * @author Bernd Kiefer
+ */
+final class RhinoSupport {
+
+  /** How often the limits are checked, at most */
+  private static final int CHECK_INTERVAL = 10000;
+
+  /** The resources used by the current evaluation */
+  private static final class Budget {
+    final long maxInstructions = SemanticsInterpreter.maxInstructions;
+    final long maxMillis = SemanticsInterpreter.maxMillis;
+    final long deadline = System.nanoTime() + maxMillis * 1000000;
+    long instructions = 0;
+    /** Once exceeded, finally blocks may be observed, count only once */
+    SemanticsLimitException exceeded;
+
+    void add(int count) {
+      if (exceeded != null) {
+        throw exceeded;
+      }
+      instructions += count;
+      if (maxInstructions > 0 && instructions > maxInstructions) {
+        exceeded = SemanticsLimitException.exceeded(
+            SemanticsLimitException.Limit.INSTRUCTIONS, maxInstructions);
+      } else if (maxMillis > 0 && System.nanoTime() - deadline > 0) {
+        exceeded = SemanticsLimitException.exceeded(
+            SemanticsLimitException.Limit.TIME, maxMillis);
+      }
+      if (exceeded != null) {
+        throw exceeded;
+      }
+    }
+  }
+
+  private static final Object BUDGET = Budget.class;
+
+  private static final ContextFactory factory = new ContextFactory() {
+    @Override
+    protected void observeInstructionCount(Context cx, int count) {
+      Budget budget = (Budget) cx.getThreadLocal(BUDGET);
+      if (budget != null) {
+        budget.add(count);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Context> contexts = new ThreadLocal<>();
+
+  private static volatile ScriptableObject shared;
+
+  private RhinoSupport() {}
+
+  /**
+   * Associate this thread's Context with the current thread, creating it if
+   * necessary. Every call must be followed by a call to exit().
+   */
+  static Context enter() {
+    final boolean outermost = Context.getCurrentContext() == null;
+    Context ctx = contexts.get();
+    if (ctx == null) {
+      ctx = factory.enterContext();
+      contexts.set(ctx);
+    } else {
+      ctx = factory.enterContext(ctx);
+    }
+    if (outermost) {
+      ctx.setOptimizationLevel(SemanticsInterpreter.optimizationLevel);
+      // compiled code only counts instructions if told so at compile time
+      ctx.setGenerateObserverCount(true);
+      startBudget(ctx);
+    }
+    return ctx;
+  }
+
+  /** Start counting the resources for the limits in SemanticsInterpreter */
+  private static void startBudget(Context ctx) {
+    long maxInstructions = SemanticsInterpreter.maxInstructions;
+    if (maxInstructions <= 0 && SemanticsInterpreter.maxMillis <= 0) {
+      ctx.removeThreadLocal(BUDGET);
+      ctx.setInstructionObserverThreshold(0);
+      return;
+    }
+    ctx.putThreadLocal(BUDGET, new Budget());
+    ctx.setInstructionObserverThreshold(maxInstructions > 0
+        ? (int) Math.min(CHECK_INTERVAL, maxInstructions) : CHECK_INTERVAL);
+  }
+
+  static void exit() {
+    Context.exit();
+  }
+
+  private static ScriptableObject getShared(Context ctx) {
+    ScriptableObject result = shared;
+    if (result == null) {
+      synchronized (RhinoSupport.class) {
+        result = shared;
+        if (result == null) {
+          result = ctx.initStandardObjects(null, true);
+          // make JSON and RegExp available before sealing, they are lazy
+          ScriptableObject.getProperty(result, "JSON");
+          ScriptableObject.getProperty(result, "RegExp");
+          result.sealObject();
+          shared = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Create a new global scope for one evaluation, which inherits the
+   * standard objects from the shared scope.
+   */
+  static Scriptable newGlobal(Context ctx) {
+    Scriptable global = ctx.newObject(getShared(ctx));
+    global.setPrototype(getShared(ctx));
+    global.setParentScope(null);
+    return global;
+  }
+}
@@ -0,0 +1,116 @@
+package org.jvoicexml.processor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * A SemanticEngine for any JavaScript engine available through javax.script.
+ * The programs of SemanticsInterpreter.createProgram are run in fresh
+ * bindings, and rules.root is passed back as JSON text.
+ *
+ * The limits on instructions and time of SemanticsInterpreter are not
+ * enforced, since javax.script has no means for that. If the engine is not
+ * thread safe, programs are executed one at a time.
+ *
+ * @author Bernd Kiefer
+ */
+public class ScriptEngineSemantics implements SemanticEngine {
+
+  /** The names tried by find() */
+  private static final List<String> NAMES =
+      Arrays.asList("graal.js", "JavaScript", "nashorn", "js");
+
+  private static final String RESULT = "JSON.stringify(rules.root)";
+
+  private final ScriptEngine engine;
+
+  /** null if the engine is thread safe, otherwise the lock */
+  private final Object lock;
+
+  private final CompiledScript result;
+
+  public ScriptEngineSemantics(ScriptEngine scriptEngine) {
+    engine = scriptEngine;
+    lock = engine.getFactory().getParameter("THREADING") == null
+        ? engine : null;
+    result = (engine instanceof Compilable) ? compileChecked(RESULT) : null;
+  }
+
+  /** Return the engine with the given name, or null if there is none */
+  public static ScriptEngineSemantics find(String name) {
+    ScriptEngine e = new ScriptEngineManager().getEngineByName(name);
+    return e == null ? null : new ScriptEngineSemantics(e);
+  }
+
+  /** Return the first JavaScript engine found, or null if there is none */
+  public static ScriptEngineSemantics find() {
+    ScriptEngineManager manager = new ScriptEngineManager();
+    for (String name : NAMES) {
+      ScriptEngine e = manager.getEngineByName(name);
+      if (e != null) {
+        return new ScriptEngineSemantics(e);
+      }
+    }
+    for (ScriptEngineFactory f : manager.getEngineFactories()) {
+      if (f.getLanguageName().matches("(?i)ecmascript|javascript")) {
+        return new ScriptEngineSemantics(f.getScriptEngine());
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String getName() {
+    return engine.getFactory().getEngineName() + " "
+        + engine.getFactory().getEngineVersion();
+  }
+
+  private CompiledScript compileChecked(String source) {
+    try {
+      return ((Compilable) engine).compile(source);
+    } catch (ScriptException ex) {
+      throw new IllegalArgumentException(ex.getMessage(), ex);
+    }
+  }
+
+  @Override
+  public Program compile(String source) {
+    if (! (engine instanceof Compilable)) {
+      return () -> run(b -> engine.eval(source, b));
+    }
+    final CompiledScript script = compileChecked(source);
+    return () -> run(b -> script.eval(b));
+  }
+
+  private interface Body {
+    void eval(Bindings b) throws ScriptException;
+  }
+
+  private SemanticResult run(Body body) {
+    if (lock == null) {
+      return runUnlocked(body);
+    }
+    synchronized (lock) {
+      return runUnlocked(body);
+    }
+  }
+
+  private SemanticResult runUnlocked(Body body) {
+    try {
+      Bindings b = engine.createBindings();
+      body.eval(b);
+      Object json = (result != null) ? result.eval(b) : engine.eval(RESULT, b);
+      return SemanticResult.fromJson(json == null ? null : json.toString());
+    } catch (ScriptException ex) {
+      throw new IllegalStateException(ex.getMessage(), ex);
+    }
+  }
+}
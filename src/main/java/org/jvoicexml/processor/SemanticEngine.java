@@ -0,0 +1,32 @@
+package org.jvoicexml.processor;
+
+/**
+ * A JavaScript implementation that computes the semantics of parse trees for
+ * SemanticsInterpreter. The engine in use is SemanticsInterpreter.engine.
+ *
+ * The minimal implementation compiles and runs the programs created by
+ * SemanticsInterpreter.createProgram, and extracts the value of rules.root.
+ * Engines that can do better, like RhinoEngine, override evaluate.
+ *
+ * @author Bernd Kiefer
+ */
+public interface SemanticEngine {
+
+  /** A compiled program, which can be executed more than once */
+  interface Program {
+    /** Run the program in a fresh global scope, and return rules.root */
+    SemanticResult execute();
+  }
+
+  /** Return the name and version of the engine */
+  String getName();
+
+  /** Compile a program that assigns the semantics to rules.root */
+  Program compile(String source);
+
+  /** Compute the semantics of the tree over the input tokens */
+  default SemanticResult evaluate(String[] input, Traversable root) {
+    return compile(new SemanticsInterpreter(input).createProgram(root))
+        .execute();
+  }
+}
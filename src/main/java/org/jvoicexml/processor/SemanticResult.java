@@ -0,0 +1,418 @@
+package org.jvoicexml.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.mozilla.javascript.Callable;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeJSON;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * The semantic value of a parse tree, as an immutable tree of Java objects:
+ * JavaScript objects are unmodifiable Maps from String to values, arrays are
+ * unmodifiable Lists, the primitive values are String, Boolean, Integer,
+ * Long or Double, and null.
+ *
+ * The tree contains what JSON.stringify would produce from the JavaScript
+ * value, so undefined values and functions are not in objects, and are null
+ * in arrays. It can be written directly as JSON, without an intermediate
+ * string.
+ *
+ * @author Bernd Kiefer
+ */
+public class SemanticResult {
+
+  private final Object value;
+
+  private SemanticResult(Object v) {
+    value = v;
+  }
+
+  /** Return the value of the root rule */
+  public Object getValue() {
+    return value;
+  }
+
+  /** Return true if the value is an object, i.e., a Map */
+  public boolean isObject() {
+    return value instanceof Map;
+  }
+
+  /** Return the value as Map, or throw an IllegalStateException if it is not
+   *  an object */
+  @SuppressWarnings("unchecked")
+  public Map<String, Object> asMap() {
+    if (! isObject()) {
+      throw new IllegalStateException("not an object: " + this);
+    }
+    return (Map<String, Object>) value;
+  }
+
+  /** Return the property of the value, or null if it is missing or the value
+   *  is not an object */
+  public Object get(String property) {
+    return isObject() ? asMap().get(property) : null;
+  }
+
+  /** Write the value as JSON */
+  public void writeJson(Writer out) throws IOException {
+    write(value, out);
+  }
+
+  /** Write the value as UTF-8 encoded JSON, the stream is not closed */
+  public void writeJson(OutputStream out) throws IOException {
+    Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    writeJson(w);
+    w.flush();
+  }
+
+  /** Return the value as JSON string */
+  public String toJson() {
+    StringWriter w = new StringWriter();
+    try {
+      writeJson(w);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return w.toString();
+  }
+
+  /**
+   * Convert the value to a JSONObject, like new JSONObject(toJson()) would.
+   *
+   * @throws org.json.JSONException if the value is not an object
+   */
+  public JSONObject toJSONObject() {
+    if (! isObject()) {
+      // same error as for the text representation
+      return new JSONObject(toJson());
+    }
+    return (JSONObject) toJSON(value);
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof SemanticResult
+        && java.util.Objects.equals(value, ((SemanticResult) o).value);
+  }
+
+  @Override
+  public int hashCode() {
+    return java.util.Objects.hashCode(value);
+  }
+
+  /********************** Conversion to JSON *******************************/
+
+  private static Object toJSON(Object v) {
+    if (v instanceof Map) {
+      JSONObject result = new JSONObject();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+        result.put((String) e.getKey(), toJSON(e.getValue()));
+      }
+      return result;
+    }
+    if (v instanceof List) {
+      JSONArray result = new JSONArray();
+      for (Object o : (List<?>) v) {
+        result.put(toJSON(o));
+      }
+      return result;
+    }
+    if (v == null) {
+      return JSONObject.NULL;
+    }
+    if (v instanceof Double) {
+      // this is what JSONObject would make of the JSON text
+      return JSONObject.stringToValue(numberToString((Double) v));
+    }
+    return v;
+  }
+
+  private static String numberToString(double d) {
+    return ScriptRuntime.numberToString(d, 10);
+  }
+
+  private static void write(Object v, Writer out) throws IOException {
+    if (v == null) {
+      out.write("null");
+    } else if (v instanceof String) {
+      JSONObject.quote((String) v, out);
+    } else if (v instanceof Double) {
+      out.write(numberToString((Double) v));
+    } else if (v instanceof Map) {
+      out.write('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+        if (! first) out.write(',');
+        first = false;
+        JSONObject.quote((String) e.getKey(), out);
+        out.write(':');
+        write(e.getValue(), out);
+      }
+      out.write('}');
+    } else if (v instanceof List) {
+      out.write('[');
+      boolean first = true;
+      for (Object o : (List<?>) v) {
+        if (! first) out.write(',');
+        first = false;
+        write(o, out);
+      }
+      out.write(']');
+    } else {
+      out.write(v.toString());
+    }
+  }
+
+  /********************** Conversion from other values **********************/
+
+  /** The JavaScript value undefined, which is not a valid result */
+  private static final Object UNDEFINED = Undefined.instance;
+
+  /** Normalize a JavaScript number, NaN and Infinity become null */
+  private static Object number(double d) {
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      return null;
+    }
+    if (d == Math.rint(d) && ! (d == 0 && 1 / d < 0)) {
+      if (d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE) {
+        return (int) d;
+      }
+      if (Math.abs(d) < 1e18) {
+        return (long) d;
+      }
+    }
+    return d;
+  }
+
+  /** Counts the approximate size of the JSON text during a conversion */
+  private static final class Size {
+    final long max = SemanticsInterpreter.maxOutputSize;
+    long used = 0;
+
+    void add(long chars) {
+      used += chars;
+      if (max > 0 && used > max) {
+        throw SemanticsLimitException.exceeded(
+            SemanticsLimitException.Limit.OUTPUT_SIZE, max);
+      }
+    }
+
+    /** Add the size of a primitive value */
+    void addValue(Object v) {
+      add(v instanceof String ? ((String) v).length() + 2 : 6);
+    }
+  }
+
+  /** Thrown for cyclic values, the converter decides what to do */
+  @SuppressWarnings("serial")
+  private static class Cyclic extends RuntimeException {
+    Cyclic() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * Convert the Java values produced by NativeEvaluator
+   *
+   * @throws NativeTag.Fallback if the value can not be converted
+   */
+  static SemanticResult fromNative(Object v) {
+    try {
+      Object result = convertNative(v, new IdentityHashMap<>(), new Size());
+      if (result == UNDEFINED) {
+        throw NativeTag.FALLBACK;
+      }
+      return new SemanticResult(result);
+    } catch (Cyclic ex) {
+      throw NativeTag.FALLBACK;
+    }
+  }
+
+  private static Object convertNative(Object v, Map<Object, Object> open,
+      Size size) {
+    if (v == NativeTag.UNDEFINED) {
+      return UNDEFINED;
+    }
+    size.addValue(v);
+    if (v == null || v instanceof String || v instanceof Boolean) {
+      return v;
+    }
+    if (v instanceof Double) {
+      return number((Double) v);
+    }
+    if (v instanceof Map) {
+      enter(v, open);
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+        Object val = convertNative(e.getValue(), open, size);
+        if (val != UNDEFINED) {
+          size.add(((String) e.getKey()).length() + 3);
+          result.put((String) e.getKey(), val);
+        }
+      }
+      open.remove(v);
+      return Collections.unmodifiableMap(result);
+    }
+    if (v instanceof List) {
+      enter(v, open);
+      List<Object> result = new ArrayList<>(((List<?>) v).size());
+      for (Object o : (List<?>) v) {
+        Object val = convertNative(o, open, size);
+        result.add(val == UNDEFINED ? null : val);
+      }
+      open.remove(v);
+      return Collections.unmodifiableList(result);
+    }
+    throw NativeTag.FALLBACK;
+  }
+
+  private static void enter(Object v, Map<Object, Object> open) {
+    if (open.put(v, v) != null) {
+      throw new Cyclic();
+    }
+  }
+
+  /**
+   * Convert a JavaScript value directly, giving the same result as parsing
+   * the output of JSON.stringify. Must be called with an entered Context.
+   *
+   * @throws org.mozilla.javascript.EcmaError for cyclic values, like
+   *         JSON.stringify
+   */
+  static SemanticResult fromRhino(Context ctx, Scriptable scope, Object v) {
+    try {
+      return new SemanticResult(
+          convertRhino(ctx, scope, v, new IdentityHashMap<>(), new Size()));
+    } catch (Cyclic ex) {
+      throw ScriptRuntime.typeError("Cyclic value can not be converted to JSON");
+    }
+  }
+
+  private static Object convertRhino(Context ctx, Scriptable scope, Object v,
+      Map<Object, Object> open, Size size) {
+    if (v == null || v instanceof Boolean) {
+      size.addValue(v);
+      return v;
+    }
+    if (v instanceof CharSequence) {
+      String result = v.toString();
+      size.addValue(result);
+      return result;
+    }
+    if (v instanceof Number) {
+      size.addValue(v);
+      return number(((Number) v).doubleValue());
+    }
+    if (v == UNDEFINED || v instanceof Callable) {
+      return UNDEFINED;
+    }
+    size.add(2);
+    if (v instanceof NativeArray) {
+      NativeArray arr = (NativeArray) v;
+      enter(v, open);
+      long length = arr.getLength();
+      List<Object> result = new ArrayList<>((int) length);
+      for (int i = 0; i < length; ++i) {
+        Object val = convertRhino(ctx, scope, arr.get(i, arr), open, size);
+        result.add(val == UNDEFINED || val == Scriptable.NOT_FOUND ? null : val);
+      }
+      open.remove(v);
+      return Collections.unmodifiableList(result);
+    }
+    if (v instanceof NativeObject
+        && ! (ScriptableObject.getProperty((Scriptable) v, "toJSON")
+              instanceof Callable)) {
+      NativeObject obj = (NativeObject) v;
+      enter(v, open);
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (Object id : obj.getIds()) {
+        Object val = (id instanceof Integer)
+            ? obj.get((Integer) id, obj)
+            : obj.get(id.toString(), obj);
+        val = convertRhino(ctx, scope, val, open, size);
+        if (val != UNDEFINED && val != Scriptable.NOT_FOUND) {
+          size.add(id.toString().length() + 3);
+          result.put(id.toString(), val);
+        }
+      }
+      open.remove(v);
+      return Collections.unmodifiableMap(result);
+    }
+    // Dates, wrapper objects, objects with toJSON: let JSON.stringify do it
+    Object json = NativeJSON.stringify(ctx, scope, v, null, null);
+    if (json == UNDEFINED) {
+      return UNDEFINED;
+    }
+    size.add(json.toString().length());
+    return fromJson(new JSONTokener(json.toString()).nextValue());
+  }
+
+  /**
+   * Convert the output of JSON.stringify, null stands for undefined.
+   *
+   * @throws SemanticsLimitException if the text is longer than
+   *         SemanticsInterpreter.maxOutputSize
+   */
+  static SemanticResult fromJson(String json) {
+    if (json == null) {
+      return new SemanticResult(null);
+    }
+    new Size().add(json.length());
+    return new SemanticResult(fromJson(new JSONTokener(json).nextValue()));
+  }
+
+  /** Convert the values created by org.json */
+  private static Object fromJson(Object v) {
+    if (v instanceof JSONObject) {
+      JSONObject obj = (JSONObject) v;
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (Iterator<String> it = obj.keys(); it.hasNext();) {
+        String key = it.next();
+        result.put(key, fromJson(obj.get(key)));
+      }
+      return Collections.unmodifiableMap(result);
+    }
+    if (v instanceof JSONArray) {
+      JSONArray arr = (JSONArray) v;
+      List<Object> result = new ArrayList<>(arr.length());
+      for (int i = 0; i < arr.length(); ++i) {
+        result.add(fromJson(arr.get(i)));
+      }
+      return Collections.unmodifiableList(result);
+    }
+    if (v == JSONObject.NULL) {
+      return null;
+    }
+    if (v instanceof Number) {
+      return number(((Number) v).doubleValue());
+    }
+    return v;
+  }
+}
@@ -9,10 +9,10 @@ import java.util.regex.Pattern;
 import org.json.JSONObject;
 import org.jvoicexml.processor.grammar.RuleAlternative;
 import org.jvoicexml.processor.grammar.RuleAlternatives;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
 import org.jvoicexml.processor.grammar.RuleParse;
 import org.jvoicexml.processor.grammar.RuleTag;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.Scriptable;
+import org.jvoicexml.processor.grammar.RuleTrie;
 
 public class SemanticsInterpreter implements TreeWalker<ChartNode> {
 
@@ -28,27 +28,95 @@ public class SemanticsInterpreter implements TreeWalker<ChartNode> {
     Arrays.fill(INDENT, ' ');
   }
 
+  /** The input tokens, if not taken from checker */
+  private final String[] input;
+
   public SemanticsInterpreter(AbstractParser c) {
     checker = c;
+    input = null;
+  }
+
+  /** Create programs for trees over the given input tokens */
+  public SemanticsInterpreter(String[] in) {
+    checker = null;
+    input = in;
+  }
+
+  /** The Rhino optimization level used for compiling tags and programs:
+   *  -1 interprets, 0 to 9 compile to byte code */
+  public static int optimizationLevel = 0;
+
+  /** If true, trees whose tags only use a simple subset of SISR are evaluated
+   *  in Java, without Rhino */
+  public static boolean useNativeEvaluator = true;
+
+  /** Abort the evaluation of a tree after about this many JavaScript
+   *  instructions, zero means no limit */
+  public static long maxInstructions = 0;
+
+  /** Abort the evaluation of a tree after this many milliseconds, zero means
+   *  no limit */
+  public static long maxMillis = 0;
+
+  /** Abort the evaluation if the result, as JSON text, gets longer than about
+   *  this many characters, zero means no limit */
+  public static long maxOutputSize = 0;
+
+  /** Keep the values of this many pure rule subtrees across evaluations,
+   *  zero switches this off, see SubtreeMemo */
+  public static int subtreeCacheSize = 0;
+
+  /** Return the hits, misses and evictions of the subtree cache */
+  public static String getSubtreeCacheStatistics() {
+    return SubtreeMemo.getStatistics();
   }
 
+  /** Remove all values from the subtree cache */
+  public static void clearSubtreeCache() {
+    SubtreeMemo.clear();
+  }
+
+  /** The JavaScript implementation used for the semantic tags */
+  public static SemanticEngine engine = new RhinoEngine();
+
+  /** Run a program as returned by createProgram with the current engine, and
+   *  return the value of rules.root */
   public static JSONObject execute(String code) {
-    Context ctx = Context.enter();
-    try {
-      Scriptable script = ctx.initStandardObjects();
-      ctx.evaluateString(script, code, "<cmd>", 0, null);
-      Object result = ctx.evaluateString(script, "JSON.stringify(rules.root);",
-          "<cmd>", 0, null);
-      return new JSONObject(result.toString());
-    } finally {
-      Context.exit();
+    return engine.compile(code).execute().toJSONObject();
+  }
+
+  /** Compute the semantics of the tree with the current engine, which gives
+   *  the same result as execute(createProgram(root)), but may avoid
+   *  generating and compiling a program for every tree. Trees without tags,
+   *  or with simple tags only, are evaluated without JavaScript.
+   *
+   * @throws SemanticsLimitException if one of the limits is exceeded
+   */
+  public static SemanticResult evaluate(AbstractParser checker,
+      Traversable root) {
+    return evaluate(checker.input, root);
+  }
+
+  /** Like evaluate(AbstractParser, Traversable), for a tree over the given
+   *  input tokens, which need not be the current input of the parser */
+  static SemanticResult evaluate(String[] input, Traversable root) {
+    if (useNativeEvaluator) {
+      try {
+        return NativeEvaluator.interpret(input, root,
+            SubtreeMemo.cursor(input, root));
+      } catch (NativeTag.Fallback ex) {
+        // some tag needs JavaScript
+      }
     }
+    return engine.evaluate(input, root);
   }
 
+  /** Like evaluate, but return the result as JSONObject
+   *
+   * @throws org.json.JSONException if the result is not an object
+   */
   public static JSONObject interpret(AbstractParser checker, Traversable root) {
-    SemanticsInterpreter walker = new SemanticsInterpreter(checker);
-    String jscode = walker.createProgram(root);
-    return execute(jscode);
+    return evaluate(checker, root).toJSONObject();
   }
 
   private void indent(int k) {
@@ -120,7 +188,9 @@ public class SemanticsInterpreter implements TreeWalker<ChartNode> {
       int delta = Integer.parseInt(match.substring(2));
       ChartNode target = seq.get(tagIndex - delta);
       if (match.charAt(1) == '$') {
-        m.appendReplacement(sb, checker.covered(target));
+        String[] tokens = input != null ? input : checker.input;
+        m.appendReplacement(sb,
+            AbstractParser.covered(tokens, target.start, target.end));
       } else {
         ChartNode targ = target;
         while (targ.getRule() instanceof RuleAlternatives
@@ -145,10 +215,13 @@ public class SemanticsInterpreter implements TreeWalker<ChartNode> {
     if (node.getRule() instanceof RuleParse) {
       RuleParse parse = (RuleParse) node.getRule();
       // TODO: we need another name generating function for multiple grammars
-      String current = parse.getRuleReference().getRuleName();
+      String current = parse.getRuleName();
       addline("// " + current);
       open("function rule_" + node.getId() + "()");
       addline(" var out = {};");
+    } else if (node.getRule() instanceof RuleBuiltin
+        && ! (node.getRule() instanceof RuleTrie)) {
+      addline("out = " + SemanticResult.fromNative(node.value).toJson() + ";");
     } else if (node.getRule() instanceof RuleTag) {
       addline("//user tag start");
       addline(massageTag(node).trim());
@@ -161,7 +234,7 @@ public class SemanticsInterpreter implements TreeWalker<ChartNode> {
     ChartNode env = stack.pop(); // == node
     if (node.getRule() instanceof RuleParse) {
       // TODO: we need another name generating function for multiple grammars
-      String ruleName = ((RuleParse)env.getRule()).getRuleReference().getRuleName();
+      String ruleName = ((RuleParse)env.getRule()).getRuleName();
       addline("return out;");
       close();
       addline("rules." + ruleName + "= rule_" + node.getId() + "();");
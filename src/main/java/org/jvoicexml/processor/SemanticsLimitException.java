@@ -0,0 +1,47 @@
+package org.jvoicexml.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thrown if the evaluation of the semantic tags of a tree exceeds one of the
+ * limits configured in SemanticsInterpreter.
+ *
+ * @author Bernd Kiefer
+ */
+@SuppressWarnings("serial")
+public class SemanticsLimitException extends RuntimeException {
+
+  /** The limits, with the number of evaluations aborted because of them */
+  public enum Limit {
+    /** SemanticsInterpreter.maxInstructions */
+    INSTRUCTIONS,
+    /** SemanticsInterpreter.maxMillis */
+    TIME,
+    /** SemanticsInterpreter.maxOutputSize */
+    OUTPUT_SIZE;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /** How often an evaluation was aborted because of this limit */
+    public long getHits() {
+      return hits.get();
+    }
+  }
+
+  private final Limit limit;
+
+  private SemanticsLimitException(Limit l, long value) {
+    super("Semantics evaluation exceeded the " + l + " limit of " + value);
+    limit = l;
+  }
+
+  /** Return the exception for exceeding limit l, and count it */
+  static SemanticsLimitException exceeded(Limit l, long value) {
+    l.hits.incrementAndGet();
+    return new SemanticsLimitException(l, value);
+  }
+
+  public Limit getLimit() {
+    return limit;
+  }
+}
@@ -0,0 +1,419 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.grammar.RuleParse;
+import org.jvoicexml.processor.grammar.RuleTag;
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Keeps the semantic values of rule subtrees across evaluations, so that
+ * subtrees which occur again and again, like numbers or dates, are only
+ * evaluated once.
+ *
+ * A subtree is identified by the sequence of rule components in it, compared
+ * by identity, and the input tokens it covers. RuleParse nodes are created
+ * anew for every parse, so their rule name is used instead. Only pure subtrees are kept:
+ * all their tags must be in the subset of NativeTag, and every rules.name
+ * they read must have been set inside of the subtree before. The value of
+ * such a subtree does not depend on anything outside of it. Together with the
+ * value of the rule, the values of the rules it sets are stored, to restore
+ * rules.name on a hit.
+ *
+ * The values are stored in the representation of NativeEvaluator, and copied
+ * on every store and hit, since tags outside of the subtree may modify them.
+ *
+ * Since the components are compared by identity, the entries for a grammar
+ * that is reloaded are never used again, and are evicted eventually.
+ *
+ * @author Bernd Kiefer
+ */
+final class SubtreeMemo {
+
+  private static LruCache<Key, Entry> cache = new LruCache<>(0);
+
+  private SubtreeMemo() {}
+
+  /** Return the cache with the size in SemanticsInterpreter, or null if
+   *  caching is switched off */
+  static synchronized LruCache<Key, Entry> getCache() {
+    int size = SemanticsInterpreter.subtreeCacheSize;
+    if (size <= 0) {
+      return null;
+    }
+    if (cache.getMaxSize() != size) {
+      cache = new LruCache<>(size);
+    }
+    return cache;
+  }
+
+  static synchronized void clear() {
+    cache.clear();
+  }
+
+  static synchronized String getStatistics() {
+    return cache.toString();
+  }
+
+  /** The identity of a subtree */
+  static final class Key {
+    private final Object[] shape;
+    private final String[] tokens;
+    private final int hash;
+
+    private Key(List<Object> s, String[] t) {
+      shape = s.toArray();
+      tokens = t;
+      int h = Arrays.hashCode(tokens);
+      for (Object o : shape) {
+        h = 31 * h + (o instanceof String
+            ? o.hashCode() : System.identityHashCode(o));
+      }
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (! (o instanceof Key)) return false;
+      Key k = (Key) o;
+      if (hash != k.hash || shape.length != k.shape.length
+          || ! Arrays.equals(tokens, k.tokens)) {
+        return false;
+      }
+      for (int i = 0; i < shape.length; ++i) {
+        if (shape[i] != k.shape[i] && ! (shape[i] instanceof String
+            && shape[i].equals(k.shape[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** What is known about a pure subtree before its evaluation */
+  static final class Info {
+    final Key key;
+    /** The rules that are set inside of the subtree */
+    final Set<String> assigned;
+
+    private Info(Key k, Set<String> a) {
+      key = k;
+      assigned = a;
+    }
+  }
+
+  /** The stored value of a subtree */
+  static final class Entry {
+    final Object out;
+    final Map<String, Object> rules;
+
+    Entry(Object o, Map<String, Object> r) {
+      out = o;
+      rules = r;
+    }
+
+    /** Return a deep copy, which keeps shared and cyclic structures */
+    Entry copy() {
+      Map<Object, Object> copies = new IdentityHashMap<>();
+      Map<String, Object> r = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> e : rules.entrySet()) {
+        r.put(e.getKey(), SubtreeMemo.copy(e.getValue(), copies));
+      }
+      return new Entry(SubtreeMemo.copy(out, copies), r);
+    }
+  }
+
+  /**
+   * Follows the evaluation of a tree, to skip the subtrees whose values are
+   * stored, and to store the values of the other pure subtrees.
+   */
+  static final class Cursor {
+    private final List<Info> infos;
+    private final LruCache<Key, Entry> cache;
+    /** The infos of the RuleParse nodes entered, but not left */
+    private final List<Info> open = new ArrayList<>();
+    /** The index of the info for the next RuleParse node */
+    private int next = 0;
+    /** The depth inside of a skipped subtree */
+    private int skip = 0;
+    private Entry hit;
+
+    Cursor(List<Info> i, LruCache<Key, Entry> c) {
+      infos = i;
+      cache = c;
+    }
+
+    /** Return a new Cursor for another evaluation of the same tree */
+    Cursor restart() {
+      return new Cursor(infos, cache);
+    }
+
+    /** Return true if the node that is entered is not to be evaluated */
+    boolean enter(ChartNode node) {
+      boolean ruleParse = node.getRule() instanceof RuleParse;
+      Info info = ruleParse ? infos.get(next++) : null;
+      if (skip > 0) {
+        ++skip;
+        return true;
+      }
+      if (info != null) {
+        Entry e = cache.get(info.key);
+        if (e != null) {
+          hit = e.copy();
+          skip = 1;
+          return true;
+        }
+      }
+      if (ruleParse) {
+        open.add(info);
+      }
+      return false;
+    }
+
+    /** Return true if the node that is left was not evaluated. For the root
+     *  of the skipped subtree, hit() then returns the stored values */
+    boolean leave(ChartNode node) {
+      if (skip > 0) {
+        --skip;
+        return true;
+      }
+      return false;
+    }
+
+    /** Return a copy of the stored values when the root of a skipped subtree
+     *  is left, null otherwise */
+    Entry hit() {
+      if (skip > 0) {
+        return null;
+      }
+      Entry result = hit;
+      hit = null;
+      return result;
+    }
+
+    /** Return the info of the evaluated RuleParse node that is left, which
+     *  is null if its subtree is not pure */
+    Info leaveRule() {
+      return open.remove(open.size() - 1);
+    }
+
+    /** Store the values of a pure subtree, which must not be modified later */
+    void store(Info info, Entry e) {
+      cache.put(info.key, e);
+    }
+  }
+
+  /** Return a Cursor for the evaluation of root, or null if caching is
+   *  switched off */
+  static Cursor cursor(String[] input, Traversable root) {
+    LruCache<Key, Entry> c = getCache();
+    return c == null ? null : new Cursor(analyze(input, root), c);
+  }
+
+  /** Marks the end of a node in Key.shape */
+  private static final Object LEAVE = new Object();
+
+  /**
+   * Find the pure subtrees of a tree, before it is evaluated.
+   *
+   * @return the information for every RuleParse node of the tree, in
+   *         preorder, which is null if the subtree is not pure
+   */
+  static List<Info> analyze(String[] input, Traversable root) {
+    final List<Info> result = new ArrayList<>();
+    root.preorder(new TreeWalker<ChartNode>() {
+
+      final class Open {
+        final int index = result.size();
+        final List<Object> shape = new ArrayList<>();
+        final Set<String> assigned = new HashSet<>();
+        boolean pure = true;
+        boolean hasTags = false;
+      }
+
+      private final Deque<Open> open = new ArrayDeque<>();
+
+      @Override
+      public void enter(ChartNode node, boolean leaf) {
+        RuleComponent rule = node.getRule();
+        if (rule instanceof RuleParse) {
+          open.push(new Open());
+          result.add(null);
+        }
+        Object id = (rule instanceof RuleParse)
+            ? ((RuleParse) rule).getRuleName() : rule;
+        for (Open o : open) {
+          o.shape.add(id);
+        }
+        if (rule instanceof RuleTag) {
+          NativeTag t = TagScript.get((RuleTag) rule).nativeTag;
+          for (Open o : open) {
+            o.hasTags = true;
+            if (t == null) {
+              o.pure = false;
+            } else {
+              for (String name : t.ruleReads) {
+                o.pure &= o.assigned.contains(name);
+              }
+            }
+          }
+        }
+      }
+
+      @Override
+      public void leave(ChartNode node, boolean leaf) {
+        for (Open o : open) {
+          o.shape.add(LEAVE);
+        }
+        if (node.getRule() instanceof RuleParse) {
+          Open o = open.pop();
+          if (o.pure && o.hasTags) {
+            result.set(o.index, new Info(new Key(o.shape,
+                Arrays.copyOfRange(input, node.start, node.end)), o.assigned));
+          }
+          String name = ((RuleParse) node.getRule()).getRuleName();
+          for (Open p : open) {
+            p.assigned.add(name);
+          }
+        }
+      }
+    });
+    return result;
+  }
+
+  /********************** Copying native values ****************************/
+
+  @SuppressWarnings("unchecked")
+  private static Object copy(Object v, Map<Object, Object> copies) {
+    if (! (v instanceof Map || v instanceof List)) {
+      return v;
+    }
+    Object result = copies.get(v);
+    if (result != null) {
+      return result;
+    }
+    if (v instanceof Map) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      copies.put(v, map);
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+        map.put(e.getKey(), copy(e.getValue(), copies));
+      }
+      return map;
+    }
+    List<Object> list = new ArrayList<>(((List<?>) v).size());
+    copies.put(v, list);
+    for (Object o : (List<?>) v) {
+      list.add(copy(o, copies));
+    }
+    return list;
+  }
+
+  /********************** Conversion from and to Rhino *********************/
+
+  /** Thrown if a Rhino value has no native representation */
+  @SuppressWarnings("serial")
+  static final class NotNative extends RuntimeException {
+    NotNative() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final NotNative NOT_NATIVE = new NotNative();
+
+  /**
+   * Convert a Rhino value to the representation of NativeEvaluator.
+   *
+   * @throws NotNative if that is not possible
+   */
+  static Object fromRhino(Object v, Map<Object, Object> copies) {
+    if (v == null || v instanceof String || v instanceof Boolean) {
+      return v;
+    }
+    if (v instanceof ConsString) {
+      return v.toString();
+    }
+    if (v instanceof Number) {
+      return ((Number) v).doubleValue();
+    }
+    if (v == Undefined.instance || v == Scriptable.NOT_FOUND) {
+      return NativeTag.UNDEFINED;
+    }
+    Object result = copies.get(v);
+    if (result != null) {
+      return result;
+    }
+    if (v instanceof NativeArray) {
+      NativeArray arr = (NativeArray) v;
+      List<Object> list = new ArrayList<>((int) arr.getLength());
+      copies.put(v, list);
+      for (int i = 0; i < arr.getLength(); ++i) {
+        list.add(fromRhino(arr.get(i, arr), copies));
+      }
+      return list;
+    }
+    if (v instanceof NativeObject) {
+      NativeObject obj = (NativeObject) v;
+      Map<String, Object> map = new LinkedHashMap<>();
+      copies.put(v, map);
+      for (Object id : obj.getIds()) {
+        Object val = (id instanceof Integer)
+            ? obj.get((Integer) id, obj)
+            : obj.get(id.toString(), obj);
+        map.put(id.toString(), fromRhino(val, copies));
+      }
+      return map;
+    }
+    throw NOT_NATIVE;
+  }
+
+  /** Convert a native value to a Rhino value */
+  @SuppressWarnings("unchecked")
+  static Object toRhino(Context ctx, Scriptable scope, Object v,
+      Map<Object, Object> copies) {
+    if (v == NativeTag.UNDEFINED) {
+      return Undefined.instance;
+    }
+    if (! (v instanceof Map || v instanceof List)) {
+      return v;
+    }
+    Object result = copies.get(v);
+    if (result != null) {
+      return result;
+    }
+    if (v instanceof Map) {
+      Scriptable obj = ctx.newObject(scope);
+      copies.put(v, obj);
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+        obj.put(e.getKey(), obj, toRhino(ctx, scope, e.getValue(), copies));
+      }
+      return obj;
+    }
+    List<Object> list = (List<Object>) v;
+    Scriptable arr = ctx.newArray(scope, list.size());
+    copies.put(v, arr);
+    for (int i = 0; i < list.size(); ++i) {
+      arr.put(i, arr, toRhino(ctx, scope, list.get(i), copies));
+    }
+    return arr;
+  }
+}
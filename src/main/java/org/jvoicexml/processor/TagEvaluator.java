@@ -0,0 +1,229 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jvoicexml.processor.grammar.RuleAlternative;
+import org.jvoicexml.processor.grammar.RuleAlternatives;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
+import org.jvoicexml.processor.grammar.RuleParse;
+import org.jvoicexml.processor.grammar.RuleTag;
+import org.jvoicexml.processor.grammar.RuleTrie;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Computes the semantics of a parse tree by executing the precompiled tags
+ * directly, with the same results as the program created by
+ * SemanticsInterpreter.createProgram.
+ *
+ * Every rule gets its own scope with the variable out, whose parent is the
+ * scope of the enclosing rule, like the nested functions of the generated
+ * program. The value of a rule is stored in rules.name when the rule is left,
+ * and is kept for $%n references, instead of calling the rule's function
+ * again.
+ *
+ * @author Bernd Kiefer
+ */
+class TagEvaluator implements TreeWalker<ChartNode> {
+
+  private static final Pattern tok = Pattern.compile("\\$(\\$|%)([0-9]+)");
+
+  /** The information about a node in the tree under evaluation */
+  private static class Frame {
+    /** The scope of the rule the node belongs to */
+    final Scriptable scope;
+    /** The children visited so far */
+    final List<ChartNode> children = new ArrayList<>();
+    /** The value of the rule below the child, for $%n */
+    final List<Object> values = new ArrayList<>();
+
+    Frame(Scriptable s) {
+      scope = s;
+    }
+  }
+
+  /** The input tokens, for $$n */
+  private final String[] input;
+  private final Context ctx;
+  private final Scriptable global;
+  private final Scriptable rules;
+  private final Deque<Frame> stack = new ArrayDeque<>();
+
+  /** Skips and stores pure subtrees, null if they are not cached */
+  private final SubtreeMemo.Cursor memo;
+
+  TagEvaluator(String[] in, Context cx, Scriptable globalScope,
+      SubtreeMemo.Cursor cursor) {
+    input = in;
+    memo = cursor;
+    ctx = cx;
+    global = globalScope;
+    rules = ctx.newObject(global);
+    global.put("rules", global, rules);
+  }
+
+  /** Create the scope of a rule, with an empty out */
+  private Scriptable newRuleScope(Scriptable parent) {
+    Scriptable scope = new NativeObject();
+    scope.setParentScope(parent);
+    scope.setPrototype(null);
+    scope.put("out", scope, ctx.newObject(global));
+    return scope;
+  }
+
+  /** Compute the value of the root rule of the tree */
+  Object evaluate(Traversable root) {
+    stack.clear();
+    Frame top = new Frame(newRuleScope(global));
+    stack.push(top);
+    root.preorder(this);
+    Object result = ScriptableObject.getProperty(top.scope, "out");
+    rules.put("root", rules, result);
+    return result;
+  }
+
+  private ChartNode target(Frame parent, ChartNode tag, int delta) {
+    int index = parent.children.size() - delta;
+    if (delta == 0) {
+      return tag;
+    }
+    return index >= 0 ? parent.children.get(index) : null;
+  }
+
+  private Object value(Frame parent, int delta) {
+    int index = parent.children.size() - delta;
+    if (delta == 0 || index < 0) {
+      return Undefined.instance;
+    }
+    return parent.values.get(index);
+  }
+
+  private String text(Frame parent, ChartNode tag, int delta) {
+    ChartNode target = target(parent, tag, delta);
+    return target == null
+        ? "" : AbstractParser.covered(input, target.start, target.end);
+  }
+
+  /** Replace the references textually, like SemanticsInterpreter.massageTag */
+  private String massage(Frame parent, ChartNode tag, String in) {
+    Matcher m = tok.matcher(in);
+    StringBuffer sb = new StringBuffer();
+    while (m.find()) {
+      int delta = Integer.parseInt(m.group(2));
+      if (m.group(1).equals("$")) {
+        m.appendReplacement(sb,
+            Matcher.quoteReplacement(text(parent, tag, delta)));
+      } else {
+        parent.scope.put(TagScript.RULE_VAR + delta, parent.scope,
+            value(parent, delta));
+        m.appendReplacement(sb, Matcher.quoteReplacement(
+            TagScript.RULE_VAR + delta));
+      }
+    }
+    m.appendTail(sb);
+    return sb.toString();
+  }
+
+  private void execute(Frame parent, ChartNode tag) {
+    TagScript script = TagScript.get((RuleTag) tag.getRule());
+    Scriptable scope = parent.scope;
+    if (script.isDynamic()) {
+      ctx.evaluateString(scope, massage(parent, tag, script.source), "<tag>",
+          1, null);
+      return;
+    }
+    for (int n : script.textRefs) {
+      scope.put(TagScript.TEXT_VAR + n, scope, text(parent, tag, n));
+    }
+    for (int n : script.ruleRefs) {
+      scope.put(TagScript.RULE_VAR + n, scope, value(parent, n));
+    }
+    script.script.exec(ctx, scope);
+  }
+
+  @Override
+  public void enter(ChartNode node, boolean leaf) {
+    if (memo != null && memo.enter(node)) {
+      return;
+    }
+    Frame parent = stack.peek();
+    if (node.getRule() instanceof RuleBuiltin
+        && ! (node.getRule() instanceof RuleTrie)) {
+      parent.scope.put("out", parent.scope, SubtreeMemo.toRhino(ctx, global,
+          node.value, new IdentityHashMap<>()));
+    } else if (node.getRule() instanceof RuleTag) {
+      execute(parent, node);
+    }
+    stack.push(new Frame(node.getRule() instanceof RuleParse
+        ? newRuleScope(parent.scope) : parent.scope));
+  }
+
+  @Override
+  public void leave(ChartNode node, boolean leaf) {
+    Object value = Undefined.instance;
+    if (memo != null && memo.leave(node)) {
+      SubtreeMemo.Entry hit = memo.hit();
+      if (hit == null) {
+        return; // inside of a skipped subtree
+      }
+      Map<Object, Object> copies = new IdentityHashMap<>();
+      for (Map.Entry<String, Object> e : hit.rules.entrySet()) {
+        rules.put(e.getKey(), rules,
+            SubtreeMemo.toRhino(ctx, global, e.getValue(), copies));
+      }
+      value = SubtreeMemo.toRhino(ctx, global, hit.out, copies);
+      rules.put(ruleName(node), rules, value);
+      stack.peek().children.add(node);
+      stack.peek().values.add(value);
+      return;
+    }
+    Frame frame = stack.pop();
+    if (node.getRule() instanceof RuleParse) {
+      value = ScriptableObject.getProperty(frame.scope, "out");
+      rules.put(ruleName(node), rules, value);
+      SubtreeMemo.Info info = memo == null ? null : memo.leaveRule();
+      if (info != null) {
+        store(info, value);
+      }
+    } else if ((node.getRule() instanceof RuleAlternatives
+        || node.getRule() instanceof RuleAlternative)
+        && ! frame.values.isEmpty()) {
+      // like massageTag, look for the rule in the first child
+      value = frame.values.get(0);
+    }
+    Frame parent = stack.peek();
+    parent.children.add(node);
+    parent.values.add(value);
+  }
+
+  /** Store the value of a pure subtree in the native representation */
+  private void store(SubtreeMemo.Info info, Object value) {
+    Map<Object, Object> copies = new IdentityHashMap<>();
+    Map<String, Object> assigned = new LinkedHashMap<>();
+    try {
+      for (String name : info.assigned) {
+        assigned.put(name, SubtreeMemo.fromRhino(
+            ScriptableObject.getProperty(rules, name), copies));
+      }
+      memo.store(info, new SubtreeMemo.Entry(
+          SubtreeMemo.fromRhino(value, copies), assigned));
+    } catch (SubtreeMemo.NotNative ex) {
+      // a value that native tags can not produce, don't store it
+    }
+  }
+
+  private static String ruleName(ChartNode node) {
+    return ((RuleParse)node.getRule()).getRuleName();
+  }
+}
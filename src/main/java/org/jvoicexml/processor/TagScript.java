@@ -0,0 +1,196 @@
+package org.jvoicexml.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleBuiltin;
+import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.grammar.RuleTag;
+import org.jvoicexml.processor.grammar.RuleTrie;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+
+/**
+ * The compiled form of a RuleTag. The $$n and $%n references of the tag are
+ * replaced by variables, which are bound before the script is executed:
+ * $$n by the string matched n positions before the tag, $%n by the value of
+ * the rule n positions before the tag.
+ *
+ * A $$n inside of a string literal is turned into a string concatenation with
+ * the variable. A $$n outside of a string literal inserts the matched text as
+ * code, which can not be compiled in advance, so such tags are marked as
+ * dynamic and are compiled for every evaluation, as well as tags that do not
+ * compile at all, to report the error when they are used.
+ *
+ * @author Bernd Kiefer
+ */
+class TagScript {
+
+  /** The prefix of the variables for $$n */
+  static final String TEXT_VAR = "$$";
+
+  /** The prefix of the variables for $%n */
+  static final String RULE_VAR = "$rule$";
+
+  /** The source code with all references replaced by variables, or the
+   *  original source for dynamic tags */
+  final String source;
+
+  /** The compiled source, null if the tag is dynamic */
+  final Script script;
+
+  /** The n of all $$n references */
+  final int[] textRefs;
+
+  /** The n of all $%n references */
+  final int[] ruleRefs;
+
+  /** The tag in a form that can be evaluated without Rhino, or null */
+  final NativeTag nativeTag;
+
+  private TagScript(String src, Script s, int[] texts, int[] rules,
+      NativeTag nat) {
+    source = src;
+    script = s;
+    textRefs = texts;
+    ruleRefs = rules;
+    nativeTag = nat;
+  }
+
+  boolean isDynamic() {
+    return script == null;
+  }
+
+  /** Return the compiled tag, compiling it if this was not done before */
+  static TagScript get(RuleTag tag) {
+    Object result = tag.getCompiled();
+    if (! (result instanceof TagScript)) {
+      Context ctx = RhinoSupport.enter();
+      try {
+        result = compile(ctx, tag.getTag().toString());
+      } finally {
+        RhinoSupport.exit();
+      }
+      tag.setCompiled(result);
+    }
+    return (TagScript) result;
+  }
+
+  /**
+   * Compile all tags of the grammar, so this is not done while parsing. The
+   * tags of a RuleTrie that NativeTag can evaluate are compiled on their
+   * first use, since a large trie may have a distinct tag for every entry.
+   */
+  static void precompile(JVoiceXmlGrammar grammar) {
+    for (RuleComponent c : grammar.getNonterminals()) {
+      if (c instanceof RuleTag) {
+        get((RuleTag) c);
+      }
+    }
+    for (RuleBuiltin b : grammar.getBuiltins()) {
+      if (b instanceof RuleTrie) {
+        for (RuleTag t : ((RuleTrie) b).getTags()) {
+          if (NativeTag.parse(t.getTag().toString()) == null) {
+            get(t);
+          }
+        }
+      }
+    }
+  }
+
+  private static int[] toArray(List<Integer> l) {
+    return l.stream().distinct().mapToInt(Integer::intValue).toArray();
+  }
+
+  /** Return the number following position i, or -1 if there is none */
+  private static int number(String in, int i) {
+    int end = i;
+    while (end < in.length() && Character.isDigit(in.charAt(end))) {
+      ++end;
+    }
+    return end == i ? -1 : Integer.parseInt(in.substring(i, end));
+  }
+
+  private static int digits(int n) {
+    return Integer.toString(n).length();
+  }
+
+  static TagScript compile(Context ctx, String in) {
+    StringBuilder sb = new StringBuilder();
+    List<Integer> texts = new ArrayList<>();
+    List<Integer> rules = new ArrayList<>();
+    boolean dynamic = false;
+    char quote = 0; // the current string delimiter, if in a string
+    int i = 0;
+    while (i < in.length()) {
+      char c = in.charAt(i);
+      if (quote != 0) {
+        if (c == '\\' && i + 1 < in.length()) {
+          sb.append(c).append(in.charAt(i + 1));
+          i += 2;
+          continue;
+        }
+        if (c == quote) {
+          quote = 0;
+        } else if (c == '$' && in.startsWith("$$", i) && number(in, i + 2) >= 0) {
+          int n = number(in, i + 2);
+          texts.add(n);
+          sb.append(quote).append(" + ").append(TEXT_VAR).append(n)
+            .append(" + ").append(quote);
+          i += 2 + digits(n);
+          continue;
+        } else if (c == '$' && in.startsWith("$%", i) && number(in, i + 2) >= 0) {
+          // would be replaced by the rule's code in a string, don't care
+          dynamic = true;
+        }
+        sb.append(c);
+        ++i;
+        continue;
+      }
+      if (c == '"' || c == '\'') {
+        quote = c;
+      } else if (c == '/' && in.startsWith("//", i)) {
+        int end = in.indexOf('\n', i);
+        end = end < 0 ? in.length() : end;
+        sb.append(in, i, end);
+        i = end;
+        continue;
+      } else if (c == '/' && in.startsWith("/*", i)) {
+        int end = in.indexOf("*/", i + 2);
+        end = end < 0 ? in.length() : end + 2;
+        sb.append(in, i, end);
+        i = end;
+        continue;
+      } else if (c == '$' && (in.startsWith("$$", i) || in.startsWith("$%", i))
+          && number(in, i + 2) >= 0) {
+        int n = number(in, i + 2);
+        if (in.charAt(i + 1) == '$') {
+          // the text is inserted as code
+          texts.add(n);
+          dynamic = true;
+          sb.append(TEXT_VAR).append(n);
+        } else {
+          rules.add(n);
+          sb.append(RULE_VAR).append(n);
+        }
+        i += 2 + digits(n);
+        continue;
+      }
+      sb.append(c);
+      ++i;
+    }
+    Script script = null;
+    if (! dynamic) {
+      try {
+        script = ctx.compileString(sb.toString(), "<tag>", 1, null);
+      } catch (RhinoException ex) {
+        // report the error when the tag is used
+      }
+    }
+    // dynamic tags keep their original source, see SemanticsInterpreter
+    return new TagScript(script == null ? in : sb.toString(), script,
+        toArray(texts), toArray(rules), NativeTag.parse(in));
+  }
+}
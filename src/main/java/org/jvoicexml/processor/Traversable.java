@@ -2,6 +2,6 @@ package org.jvoicexml.processor;
 
 public interface Traversable {
 
-  public <T extends TreeWalker> void preorder(T acceptor);
+  public void preorder(TreeWalker<ChartNode> acceptor);
 
 }
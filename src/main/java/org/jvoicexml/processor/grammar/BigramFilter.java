@@ -0,0 +1,444 @@
+package org.jvoicexml.processor.grammar;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.jvoicexml.processor.GrammarManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A necessary condition for the acceptance of an input: every two adjacent
+ * input tokens must be matchable by two terminals that can be adjacent in some
+ * derivation of the grammar, the first token must be matchable by a terminal
+ * that can start a derivation of the root rule, and the last by a terminal
+ * that can end one.
+ *
+ * The pairs are computed from FIRST and LAST sets of the canonical rule
+ * components, and stored in a hashed bitset, which may contain false
+ * positives, but no false negatives, so valid inputs are never rejected.
+ *
+ * Terminals are abstracted to symbols: every word of a RuleToken is a symbol,
+ * identified by its vocabulary ID, and every pattern terminal and recognizer
+ * is one. An input token is covered by the symbol of its word, if the word
+ * occurs in the grammar, by all patterns matching it, and by all recognizers
+ * accepting it. Since a recognizer may match several tokens, its symbol can
+ * follow itself.
+ *
+ * @author Bernd Kiefer
+ */
+class BigramFilter {
+  private static final Logger log = LoggerFactory.getLogger(BigramFilter.class);
+
+  /** The pseudo symbol before the first and after the last token */
+  private static final int BOUNDARY = -1;
+
+  /** Information about a component, updated until a fixpoint is reached */
+  private static class Info {
+    boolean nullable = false;
+    Set<Integer> first = new HashSet<>();
+    Set<Integer> last = new HashSet<>();
+
+    boolean update(boolean n, Set<Integer> f, Set<Integer> l) {
+      boolean changed = (n && ! nullable);
+      nullable |= n;
+      changed |= first.addAll(f);
+      changed |= last.addAll(l);
+      return changed;
+    }
+  }
+
+  /** Thrown if a component can not be analysed */
+  @SuppressWarnings("serial")
+  private static class Unsupported extends Exception {
+    Unsupported(String msg) {
+      super(msg, null, false, false);
+    }
+  }
+
+  /** The ids of the pattern terminals, equal patterns share one */
+  private final Map<RuleToken, Integer> patterns;
+
+  /** The ids of the recognizers */
+  private final Map<RuleBuiltin, Integer> builtins;
+
+  /** Returns the pattern terminals matching an input token */
+  private final JVoiceXmlGrammar grammar;
+
+  private long[] bits;
+
+  private int mask;
+
+  private BigramFilter(JVoiceXmlGrammar g) {
+    grammar = g;
+    patterns = new HashMap<>();
+    builtins = new HashMap<>();
+  }
+
+  /** Return a new id for a pattern or recognizer */
+  private int newId() {
+    return -2 - patterns.size() - builtins.size();
+  }
+
+  /**
+   * Compute the filter for the root rule of the given grammar, following
+   * references into other grammars.
+   *
+   * @return the filter, or null if the grammar contains constructs that can
+   *         not be analysed, or too many pairs
+   */
+  static BigramFilter compile(JVoiceXmlGrammar grammar, GrammarManager mgr) {
+    final Rule root = grammar.getRule(grammar.getRoot());
+    if (root == null) {
+      return null;
+    }
+    try {
+      return new Compiler(grammar, mgr).compile(root.getRuleComponent());
+    } catch (Unsupported ex) {
+      log.debug("No bigram filter for {}: {}", grammar.getReference(),
+          ex.getMessage());
+      return null;
+    }
+  }
+
+  /** Does all the work of computing the pairs */
+  private static class Compiler {
+    private final BigramFilter filter;
+    private final GrammarManager mgr;
+    private final Map<RuleComponent, Info> infos = new IdentityHashMap<>();
+    private final List<RuleComponent> order = new ArrayList<>();
+    private final Set<Long> pairs = new HashSet<>();
+
+    Compiler(JVoiceXmlGrammar grammar, GrammarManager manager) {
+      filter = new BigramFilter(grammar);
+      mgr = manager;
+    }
+
+    private RuleComponent target(RuleReference ref) throws Unsupported {
+      final Rule r = mgr.resolve(ref);
+      if (r == null) {
+        throw new Unsupported("unresolved " + ref);
+      }
+      return r.getRuleComponent();
+    }
+
+    private int symbol(String word) throws Unsupported {
+      int id = filter.grammar.getWordId(word);
+      if (id < 0) {
+        // from a grammar whose symbols were not added, can't happen
+        throw new Unsupported("unknown word " + word);
+      }
+      return id;
+    }
+
+    /** Collect all reachable components, children before their parents */
+    private void collect(RuleComponent c) throws Unsupported {
+      if (infos.containsKey(c)) {
+        return;
+      }
+      infos.put(c, new Info());
+      if (c instanceof RuleSequence) {
+        for (RuleComponent sub : ((RuleSequence) c).getRuleComponents()) {
+          collect(sub);
+        }
+      } else if (c instanceof RuleAlternatives) {
+        for (RuleAlternative alt : ((RuleAlternatives) c).getAlternatives()) {
+          collect(alt);
+        }
+      } else if (c instanceof RuleAlternative) {
+        collect(((RuleAlternative) c).getRuleComponent());
+      } else if (c instanceof RuleCount) {
+        collect(((RuleCount) c).getRuleComponent());
+      } else if (c instanceof RuleParse) {
+        collect(((RuleParse) c).getParse());
+      } else if (c instanceof RuleReference) {
+        collect(target((RuleReference) c));
+      } else if (c instanceof RuleToken) {
+        RuleToken t = (RuleToken) c;
+        Info info = infos.get(c);
+        if (t.getPattern() != null) {
+          Integer id = filter.patterns.get(t);
+          if (id == null) {
+            id = filter.newId();
+            filter.patterns.put(t, id);
+          }
+          info.first.add(id);
+          info.last.add(id);
+        } else {
+          String[] words = t.getTokens();
+          info.first.add(symbol(words[0]));
+          info.last.add(symbol(words[words.length - 1]));
+        }
+      } else if (c instanceof RuleBuiltin) {
+        int id = filter.newId();
+        filter.builtins.put((RuleBuiltin) c, id);
+        infos.get(c).first.add(id);
+        infos.get(c).last.add(id);
+      } else if (c instanceof RuleTag || c == RuleSpecial.NULL) {
+        infos.get(c).nullable = true;
+      } else if (c != RuleSpecial.VOID) {
+        throw new Unsupported("unknown component " + c);
+      }
+      order.add(c);
+    }
+
+    /** Recompute the info of c from the infos of its children */
+    private boolean update(RuleComponent c) throws Unsupported {
+      Info info = infos.get(c);
+      if (c instanceof RuleSequence) {
+        boolean nullable = true;
+        Set<Integer> first = new HashSet<>();
+        for (RuleComponent sub : ((RuleSequence) c).getRuleComponents()) {
+          Info i = infos.get(sub);
+          first.addAll(i.first);
+          if (! i.nullable) {
+            nullable = false;
+            break;
+          }
+        }
+        Set<Integer> last = new HashSet<>();
+        List<RuleComponent> subs = ((RuleSequence) c).getRuleComponents();
+        for (int j = subs.size() - 1; j >= 0; --j) {
+          Info i = infos.get(subs.get(j));
+          last.addAll(i.last);
+          if (! i.nullable) break;
+        }
+        return info.update(nullable, first, last);
+      }
+      if (c instanceof RuleAlternatives) {
+        boolean changed = false;
+        for (RuleAlternative alt : ((RuleAlternatives) c).getAlternatives()) {
+          Info i = infos.get(alt);
+          changed |= info.update(i.nullable, i.first, i.last);
+        }
+        return changed;
+      }
+      RuleComponent sub = null;
+      boolean nullable = false;
+      if (c instanceof RuleAlternative) {
+        sub = ((RuleAlternative) c).getRuleComponent();
+      } else if (c instanceof RuleCount) {
+        sub = ((RuleCount) c).getRuleComponent();
+        nullable = ((RuleCount) c).getRepeatMin() == 0;
+      } else if (c instanceof RuleParse) {
+        sub = ((RuleParse) c).getParse();
+      } else if (c instanceof RuleReference) {
+        sub = target((RuleReference) c);
+      }
+      if (sub == null) {
+        return false;
+      }
+      Info i = infos.get(sub);
+      return info.update(nullable || i.nullable, i.first, i.last);
+    }
+
+    private void addPairs(Set<Integer> left, Set<Integer> right)
+        throws Unsupported {
+      for (int l : left) {
+        for (int r : right) {
+          pairs.add(pair(l, r));
+        }
+      }
+      if (pairs.size() > JVoiceXmlGrammar.maxBigramPairs) {
+        throw new Unsupported("too many pairs");
+      }
+    }
+
+    /** Add the pairs that are produced inside of component c */
+    private void addPairs(RuleComponent c) throws Unsupported {
+      if (c instanceof RuleSequence) {
+        Set<Integer> lastSoFar = new HashSet<>();
+        for (RuleComponent sub : ((RuleSequence) c).getRuleComponents()) {
+          Info i = infos.get(sub);
+          addPairs(lastSoFar, i.first);
+          if (! i.nullable) {
+            lastSoFar = new HashSet<>();
+          }
+          lastSoFar.addAll(i.last);
+        }
+      } else if (c instanceof RuleCount) {
+        if (((RuleCount) c).getRepeatMax() > 1) {
+          Info i = infos.get(((RuleCount) c).getRuleComponent());
+          addPairs(i.last, i.first);
+        }
+      } else if (c instanceof RuleBuiltin) {
+        int id = filter.builtins.get(c);
+        pairs.add(pair(id, id));
+      } else if (c instanceof RuleToken) {
+        String[] words = ((RuleToken) c).getTokens();
+        for (int i = 1; words != null && i < words.length; ++i) {
+          pairs.add(pair(symbol(words[i - 1]), symbol(words[i])));
+        }
+      }
+    }
+
+    BigramFilter compile(RuleComponent root) throws Unsupported {
+      collect(root);
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (RuleComponent c : order) {
+          changed |= update(c);
+        }
+      }
+      for (RuleComponent c : order) {
+        addPairs(c);
+      }
+      Info r = infos.get(root);
+      for (int f : r.first) {
+        pairs.add(pair(BOUNDARY, f));
+      }
+      for (int l : r.last) {
+        pairs.add(pair(l, BOUNDARY));
+      }
+      if (r.nullable) {
+        pairs.add(pair(BOUNDARY, BOUNDARY));
+      }
+      filter.setPairs(pairs);
+      log.debug("Bigram filter: {} pairs", pairs.size());
+      return filter;
+    }
+  }
+
+  /** The approximate size of the filter in bytes */
+  long estimateSize() {
+    return 8L * bits.length + 64L * (patterns.size() + builtins.size());
+  }
+
+  /** Write the filter for a GrammarImage, with the given component ids */
+  void write(DataOutput out, Map<RuleComponent, Integer> ids)
+      throws IOException {
+    out.writeInt(mask);
+    out.writeInt(bits.length);
+    for (long l : bits) {
+      out.writeLong(l);
+    }
+    out.writeInt(patterns.size());
+    for (Map.Entry<RuleToken, Integer> e : patterns.entrySet()) {
+      out.writeInt(ids.get(e.getKey()));
+      out.writeInt(e.getValue());
+    }
+    out.writeInt(builtins.size());
+    for (Map.Entry<RuleBuiltin, Integer> e : builtins.entrySet()) {
+      out.writeInt(ids.get(e.getKey()));
+      out.writeInt(e.getValue());
+    }
+  }
+
+  /** Read a filter written by write */
+  static BigramFilter read(JVoiceXmlGrammar g, ByteBuffer in,
+      RuleComponent[] components) {
+    BigramFilter result = new BigramFilter(g);
+    result.mask = in.getInt();
+    result.bits = new long[in.getInt()];
+    in.asLongBuffer().get(result.bits);
+    in.position(in.position() + 8 * result.bits.length);
+    for (int n = in.getInt(); n > 0; --n) {
+      result.patterns.put((RuleToken) components[in.getInt()], in.getInt());
+    }
+    for (int n = in.getInt(); n > 0; --n) {
+      result.builtins.put((RuleBuiltin) components[in.getInt()], in.getInt());
+    }
+    return result;
+  }
+
+  private static long pair(int left, int right) {
+    return ((long) left << 32) | (right & 0xffffffffL);
+  }
+
+  /** Use about 16 bits and two hash functions per pair */
+  private void setPairs(Set<Long> pairs) {
+    int size = 1 << 10;
+    while (size < 16L * pairs.size() && size < (1 << 30)) {
+      size <<= 1;
+    }
+    bits = new long[size >>> 6];
+    mask = size - 1;
+    for (long p : pairs) {
+      long h = Tokens.mix(p);
+      set((int) h & mask);
+      set((int) (h >>> 32) & mask);
+    }
+  }
+
+  private void set(int bit) {
+    bits[bit >>> 6] |= 1L << bit;
+  }
+
+  private boolean get(int bit) {
+    return (bits[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  private boolean contains(int left, int right) {
+    long h = Tokens.mix(pair(left, right));
+    return get((int) h & mask) && get((int) (h >>> 32) & mask);
+  }
+
+  /** Return all symbols that can match the given input token */
+  private int[] cover(String token, int id,
+      Function<RuleBuiltin, Recognizer> recognizers) {
+    List<RuleToken> matching = grammar.getMatchingPatterns(token);
+    int[] result = new int[matching.size() + builtins.size() + 1];
+    int n = 0;
+    if (id >= 0) {
+      result[n++] = id;
+    }
+    for (RuleToken t : matching) {
+      // patterns not reachable from the root have no id
+      Integer pid = patterns.get(t);
+      if (pid != null) {
+        result[n++] = pid;
+      }
+    }
+    for (Map.Entry<RuleBuiltin, Integer> e : builtins.entrySet()) {
+      if (recognizers.apply(e.getKey()).accepts(token)) {
+        result[n++] = e.getValue();
+      }
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  private boolean contains(int[] left, int[] right) {
+    for (int l : left) {
+      for (int r : right) {
+        if (contains(l, r)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if all adjacent pairs of input tokens are possible according to
+   * the grammar.
+   *
+   * @param input the input tokens
+   * @param ids the vocabulary IDs of the input tokens
+   * @param recognizers returns the recognizer to use for a builtin
+   * @return false if the input can not be accepted by the grammar, true if
+   *         it might be
+   */
+  boolean admits(String[] input, int[] ids,
+      Function<RuleBuiltin, Recognizer> recognizers) {
+    int[] prev = { BOUNDARY };
+    for (int i = 0; i < input.length; ++i) {
+      int[] curr = cover(input[i], ids[i], recognizers);
+      if (! contains(prev, curr)) {
+        return false;
+      }
+      prev = curr;
+    }
+    return contains(prev, new int[] { BOUNDARY });
+  }
+}
@@ -0,0 +1,435 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The recognizers that are always available, for English input. The values
+ * follow the builtin types of VoiceXML:
+ * <ul>
+ * <li>builtin:digits, spoken or written digits, like "four seven 11", the
+ *   value is the string of digits, "4711"</li>
+ * <li>builtin:number, cardinal numbers, like "two thousand and five" or
+ *   "1.5 million", the value is a number</li>
+ * <li>builtin:date, like "march the fifth", "5th of march 2024", or
+ *   "2024-03-05", the value is a string yyyymmdd, with ???? for a missing
+ *   year</li>
+ * <li>builtin:currency, like "$5.20" or "five dollars and twenty cents",
+ *   the value is a string with the ISO 4217 code and the amount: USD5.20</li>
+ * </ul>
+ *
+ * @author Bernd Kiefer
+ */
+final class BuiltinRecognizers {
+
+  private BuiltinRecognizers() {}
+
+  static List<Recognizer> all() {
+    return Arrays.asList(new Digits(), new Number(), new Date(),
+        new Currency());
+  }
+
+  private static String lower(String token) {
+    return token.toLowerCase(Locale.ROOT);
+  }
+
+  private static Map<String, Integer> map(String... words) {
+    Map<String, Integer> result = new HashMap<>();
+    for (int i = 0; i < words.length; i += 2) {
+      result.put(words[i], Integer.valueOf(words[i + 1]));
+    }
+    return result;
+  }
+
+  private static final Map<String, Integer> DIGITS = map("zero", "0",
+      "oh", "0", "one", "1", "two", "2", "three", "3", "four", "4", "five", "5",
+      "six", "6", "seven", "7", "eight", "8", "nine", "9");
+
+  private static final Map<String, Integer> UNITS = map("one", "1", "two",
+      "2", "three", "3", "four", "4", "five", "5", "six", "6", "seven", "7",
+      "eight", "8", "nine", "9");
+
+  private static final Map<String, Integer> TEENS = map("ten", "10",
+      "eleven", "11", "twelve", "12", "thirteen", "13", "fourteen", "14",
+      "fifteen", "15", "sixteen", "16", "seventeen", "17", "eighteen", "18",
+      "nineteen", "19");
+
+  private static final Map<String, Integer> TENS = map("twenty", "20",
+      "thirty", "30", "forty", "40", "fifty", "50", "sixty", "60",
+      "seventy", "70", "eighty", "80", "ninety", "90");
+
+  private static final Map<String, Long> SCALES = new HashMap<>();
+  static {
+    SCALES.put("thousand", 1000L);
+    SCALES.put("million", 1000000L);
+    SCALES.put("billion", 1000000000L);
+  }
+
+  private static final Map<String, Integer> ORDINALS = map("first", "1",
+      "second", "2", "third", "3", "fourth", "4", "fifth", "5", "sixth", "6",
+      "seventh", "7", "eighth", "8", "ninth", "9", "tenth", "10",
+      "eleventh", "11", "twelfth", "12", "thirteenth", "13",
+      "fourteenth", "14", "fifteenth", "15", "sixteenth", "16",
+      "seventeenth", "17", "eighteenth", "18", "nineteenth", "19",
+      "twentieth", "20", "thirtieth", "30");
+
+  private static final Map<String, Integer> MONTHS = map("january", "1",
+      "jan", "1", "february", "2", "feb", "2", "march", "3", "mar", "3",
+      "april", "4", "apr", "4", "may", "5", "june", "6", "jun", "6",
+      "july", "7", "jul", "7", "august", "8", "aug", "8", "september", "9",
+      "sep", "9", "sept", "9", "october", "10", "oct", "10",
+      "november", "11", "nov", "11", "december", "12", "dec", "12");
+
+  private static final Pattern NUMERAL =
+      Pattern.compile("-?(\\d{1,3}(,\\d{3})+|\\d+)(\\.\\d+)?");
+
+  private static final Pattern DIGIT_STRING = Pattern.compile("\\d+");
+
+  /********************** Numbers *******************************************/
+
+  /** The last word seen while reading a number in words */
+  private enum Kind { NONE, A, UNIT, TEEN, TENS, HUNDRED, SCALE, AND }
+
+  private static boolean isNumberWord(String w) {
+    return UNITS.containsKey(w) || TEENS.containsKey(w)
+        || TENS.containsKey(w) || SCALES.containsKey(w) || w.equals("hundred")
+        || w.equals("and") || w.equals("a") || w.equals("zero");
+  }
+
+  /** Report all cardinal numbers starting at start, with a Double value */
+  static void number(String[] input, int start, Recognizer.Match result) {
+    String first = lower(input[start]);
+    if (NUMERAL.matcher(first).matches()) {
+      double value = Double.parseDouble(first.replace(",", ""));
+      result.found(start + 1, value);
+      if (start + 1 < input.length) {
+        Long scale = SCALES.get(lower(input[start + 1]));
+        if (scale != null) {
+          result.found(start + 2, value * scale);
+        }
+      }
+      return;
+    }
+    long total = 0, group = 0, lastScale = Long.MAX_VALUE;
+    Kind kind = Kind.NONE;
+    for (int i = start; i < input.length; ++i) {
+      String w = lower(input[i]);
+      Integer n;
+      Long scale;
+      if ((n = UNITS.get(w)) != null) {
+        if (kind != Kind.NONE && kind != Kind.TENS && kind != Kind.HUNDRED
+            && kind != Kind.SCALE && kind != Kind.AND) break;
+        group += n;
+        kind = Kind.UNIT;
+      } else if ((n = TEENS.get(w)) != null || (n = TENS.get(w)) != null) {
+        if (kind != Kind.NONE && kind != Kind.HUNDRED
+            && kind != Kind.SCALE && kind != Kind.AND) break;
+        group += n;
+        kind = n < 20 ? Kind.TEEN : Kind.TENS;
+      } else if (w.equals("hundred")) {
+        if (kind == Kind.A) {
+          group = 1;
+        } else if ((kind != Kind.UNIT && kind != Kind.TEEN) || group >= 100) {
+          break;
+        }
+        group *= 100;
+        kind = Kind.HUNDRED;
+      } else if ((scale = SCALES.get(w)) != null) {
+        if (kind == Kind.A) {
+          group = 1;
+        } else if (group == 0 || kind == Kind.AND) {
+          break;
+        }
+        if (scale >= lastScale) break;
+        total += group * scale;
+        group = 0;
+        lastScale = scale;
+        kind = Kind.SCALE;
+      } else if (w.equals("and")) {
+        if (kind != Kind.HUNDRED && kind != Kind.SCALE) break;
+        kind = Kind.AND;
+      } else if (w.equals("a") && kind == Kind.NONE) {
+        kind = Kind.A;
+      } else {
+        if (w.equals("zero") && kind == Kind.NONE) {
+          result.found(i + 1, 0.0);
+        }
+        break;
+      }
+      if (kind != Kind.AND && kind != Kind.A) {
+        result.found(i + 1, (double) (total + group));
+      }
+    }
+  }
+
+  /** Like number, but only report integers in the given range */
+  private static void integer(String[] input, int start, int min, int max,
+      Recognizer.Match result) {
+    number(input, start, (end, value) -> {
+      double d = (Double) value;
+      if (d == Math.rint(d) && d >= min && d <= max) {
+        result.found(end, (int) d);
+      }
+    });
+  }
+
+  static class Number implements Recognizer {
+    @Override
+    public String getName() {
+      return "number";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      String w = lower(token);
+      return isNumberWord(w) || NUMERAL.matcher(w).matches();
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      number(input, start, result);
+    }
+  }
+
+  /********************** Digits ********************************************/
+
+  static class Digits implements Recognizer {
+    @Override
+    public String getName() {
+      return "digits";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      String w = lower(token);
+      return DIGITS.containsKey(w) || DIGIT_STRING.matcher(w).matches();
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = start; i < input.length && accepts(input[i]); ++i) {
+        Integer digit = DIGITS.get(lower(input[i]));
+        sb.append(digit != null ? digit.toString() : input[i]);
+        result.found(i + 1, sb.toString());
+      }
+    }
+  }
+
+  /********************** Dates *********************************************/
+
+  private static final Pattern ORDINAL_NUMERAL =
+      Pattern.compile("(\\d{1,2})(st|nd|rd|th)");
+
+  private static final Pattern ISO_DATE =
+      Pattern.compile("(\\d{4})-(\\d{2})-(\\d{2})");
+
+  private static final int[] DAYS_IN_MONTH =
+      { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+  /** Receives a day, month or year */
+  @FunctionalInterface
+  private interface Part {
+    void found(int end, int value);
+  }
+
+  private static String token(String[] input, int i) {
+    return i < input.length ? lower(input[i]) : "";
+  }
+
+  /** Report the days, as cardinal or ordinal, starting at i */
+  private static void day(String[] input, int i, Part result) {
+    if (i >= input.length) return;
+    String w = token(input, i);
+    Matcher m = ORDINAL_NUMERAL.matcher(w);
+    if (m.matches()) {
+      result.found(i + 1, Integer.parseInt(m.group(1)));
+      return;
+    }
+    Integer n = ORDINALS.get(w);
+    if (n != null) {
+      result.found(i + 1, n);
+      return;
+    }
+    if (w.equals("twenty") || w.equals("thirty")) {
+      Integer unit = ORDINALS.get(token(input, i + 1));
+      if (unit != null && unit < 10) {
+        result.found(i + 2, TENS.get(w) + unit);
+      }
+    }
+    integer(input, i, 1, 31, (end, value) -> result.found(end, (Integer) value));
+  }
+
+  /** Report the years starting at i */
+  private static void year(String[] input, int i, Part result) {
+    if (i >= input.length) return;
+    integer(input, i, 1000, 2999,
+        (end, value) -> result.found(end, (Integer) value));
+    // nineteen eighty four, twenty oh five, nineteen hundred
+    String w = token(input, i);
+    Integer century = w.equals("twenty") ? Integer.valueOf(20) : TEENS.get(w);
+    if (century == null || i + 1 >= input.length) return;
+    String next = token(input, i + 1);
+    if (next.equals("hundred")) {
+      result.found(i + 2, century * 100);
+    } else if (next.equals("oh")) {
+      Integer unit = UNITS.get(token(input, i + 2));
+      if (unit != null) {
+        result.found(i + 3, century * 100 + unit);
+      }
+    } else if (! UNITS.containsKey(next)) {
+      integer(input, i + 1, 10, 99,
+          (end, value) -> result.found(end, century * 100 + (Integer) value));
+    }
+  }
+
+  private static boolean valid(int year, int month, int day) {
+    if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]) {
+      return false;
+    }
+    return month != 2 || day < 29 || year < 0
+        || (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0));
+  }
+
+  private static String date(int year, int month, int day) {
+    return (year < 0 ? "????" : String.format(Locale.ROOT, "%04d", year))
+        + String.format(Locale.ROOT, "%02d%02d", month, day);
+  }
+
+  /** Report the date without year that ends at end, and all dates with
+   *  a year following it */
+  private static void date(String[] input, int end, int month, int day,
+      Recognizer.Match result) {
+    if (! valid(-1, month, day)) return;
+    result.found(end, date(-1, month, day));
+    year(input, end, (e, year) -> {
+      if (valid(year, month, day)) {
+        result.found(e, date(year, month, day));
+      }
+    });
+  }
+
+  static class Date implements Recognizer {
+    @Override
+    public String getName() {
+      return "date";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      String w = lower(token);
+      return MONTHS.containsKey(w) || ORDINALS.containsKey(w)
+          || isNumberWord(w) || w.equals("the") || w.equals("of")
+          || w.equals("oh") || NUMERAL.matcher(w).matches()
+          || ORDINAL_NUMERAL.matcher(w).matches()
+          || ISO_DATE.matcher(w).matches();
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      String w = token(input, start);
+      Matcher iso = ISO_DATE.matcher(w);
+      if (iso.matches()) {
+        int year = Integer.parseInt(iso.group(1));
+        int month = Integer.parseInt(iso.group(2));
+        int day = Integer.parseInt(iso.group(3));
+        if (valid(year, month, day)) {
+          result.found(start + 1, date(year, month, day));
+        }
+        return;
+      }
+      Integer month = MONTHS.get(w);
+      if (month != null) {
+        // march fifth, march the fifth 2024
+        int i = token(input, start + 1).equals("the") ? start + 2 : start + 1;
+        day(input, i, (end, day) -> date(input, end, month, day, result));
+        return;
+      }
+      // the fifth of march, 5 march 2024
+      int i = w.equals("the") ? start + 1 : start;
+      day(input, i, (end, day) -> {
+        int k = token(input, end).equals("of") ? end + 1 : end;
+        Integer m = MONTHS.get(token(input, k));
+        if (m != null) {
+          date(input, k + 1, m, day, result);
+        }
+      });
+    }
+  }
+
+  /********************** Currency ******************************************/
+
+  private static final Pattern AMOUNT =
+      Pattern.compile("([$€£])(\\d+(\\.\\d{1,2})?)");
+
+  private static final Map<String, String> SYMBOLS = new HashMap<>();
+  private static final Map<String, String> UNIT_WORDS = new HashMap<>();
+  private static final Map<String, String> SUBUNIT_WORDS = new HashMap<>();
+  static {
+    SYMBOLS.put("$", "USD");
+    SYMBOLS.put("€", "EUR");
+    SYMBOLS.put("£", "GBP");
+    for (String w : new String[]{ "dollar", "dollars", "bucks" }) {
+      UNIT_WORDS.put(w, "USD");
+    }
+    for (String w : new String[]{ "euro", "euros" }) {
+      UNIT_WORDS.put(w, "EUR");
+    }
+    for (String w : new String[]{ "pound", "pounds" }) {
+      UNIT_WORDS.put(w, "GBP");
+    }
+    SUBUNIT_WORDS.put("cent", "USD EUR");
+    SUBUNIT_WORDS.put("cents", "USD EUR");
+    SUBUNIT_WORDS.put("penny", "GBP");
+    SUBUNIT_WORDS.put("pence", "GBP");
+  }
+
+  private static String amount(String code, double value) {
+    return code + String.format(Locale.ROOT, "%.2f", value);
+  }
+
+  static class Currency implements Recognizer {
+    @Override
+    public String getName() {
+      return "currency";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      String w = lower(token);
+      return UNIT_WORDS.containsKey(w) || SUBUNIT_WORDS.containsKey(w)
+          || isNumberWord(w) || NUMERAL.matcher(w).matches()
+          || AMOUNT.matcher(w).matches();
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      Matcher m = AMOUNT.matcher(token(input, start));
+      if (m.matches()) {
+        result.found(start + 1, amount(SYMBOLS.get(m.group(1)),
+            Double.parseDouble(m.group(2))));
+        return;
+      }
+      // five dollars, five dollars and twenty cents
+      number(input, start, (end, value) -> {
+        String code = UNIT_WORDS.get(token(input, end));
+        double main = (Double) value;
+        if (code == null || main < 0) return;
+        result.found(end + 1, amount(code, main));
+        int i = token(input, end + 1).equals("and") ? end + 2 : end + 1;
+        if (i >= input.length) return;
+        integer(input, i, 1, 99, (e, sub) -> {
+          String codes = SUBUNIT_WORDS.get(token(input, e));
+          if (codes != null && codes.contains(code)) {
+            result.found(e + 1, amount(code, main + (Integer) sub / 100.0));
+          }
+        });
+      });
+    }
+  }
+}
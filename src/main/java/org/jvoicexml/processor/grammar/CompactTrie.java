@@ -0,0 +1,276 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The entries of a RuleTrie, in a trie over word ids that is stored in
+ * arrays: the nodes have a parent and a word, the edges are in one open
+ * addressing hash table from (node, word) to the child node, and the entries
+ * ending at a node form a list. Only the words and the distinct tags are
+ * objects. Matching takes time proportional to the length of the match.
+ * Immutable once built.
+ *
+ * @author Bernd Kiefer
+ */
+final class CompactTrie implements Recognizer {
+
+  private final String name;
+
+  private final boolean caseSensitive;
+
+  /** The ids of the folded words */
+  private final Map<String, Integer> words = new HashMap<>();
+
+  private String[] wordList = new String[16];
+
+  // the nodes, the root is node 0
+  private int nodes = 1;
+  private int[] parent = new int[16];
+  private int[] label = new int[16];
+  /** The first entry ending at the node, -1 if there is none */
+  private int[] first = filled(16);
+
+  // the edges, keyed by node and word, -1 if the slot is empty
+  private long[] edgeKeys = filledLong(64);
+  private int[] edgeTargets = new int[64];
+  private int edges = 0;
+
+  // the entries
+  private int entries = 0;
+  private int[] entryNode = new int[16];
+  /** The next entry ending at the same node, -1 if there is none */
+  private int[] nextEntry = new int[16];
+  /** The weights, null if all have the default weight */
+  private double[] weights = null;
+  /** The tags, null if no entry has one */
+  private RuleTag[] tags = null;
+
+  private static final double DEFAULT_WEIGHT = RuleAlternatives.NORM_WEIGHT;
+
+  CompactTrie(String ruleName, boolean isCaseSensitive) {
+    name = ruleName;
+    caseSensitive = isCaseSensitive;
+  }
+
+  private static int[] filled(int size) {
+    int[] result = new int[size];
+    Arrays.fill(result, -1);
+    return result;
+  }
+
+  private static long[] filledLong(int size) {
+    long[] result = new long[size];
+    Arrays.fill(result, -1L);
+    return result;
+  }
+
+  private String fold(String word) {
+    return Tokens.fold(word, caseSensitive);
+  }
+
+  private int child(int node, int word) {
+    final long key = ((long) node << 32) | word;
+    final int mask = edgeKeys.length - 1;
+    for (int i = (int) Tokens.mix(key) & mask; edgeKeys[i] != -1L; i = (i + 1) & mask) {
+      if (edgeKeys[i] == key) {
+        return edgeTargets[i];
+      }
+    }
+    return -1;
+  }
+
+  private void putEdge(long key, int target) {
+    final int mask = edgeKeys.length - 1;
+    int i = (int) Tokens.mix(key) & mask;
+    while (edgeKeys[i] != -1L) {
+      i = (i + 1) & mask;
+    }
+    edgeKeys[i] = key;
+    edgeTargets[i] = target;
+  }
+
+  private int addChild(int node, int word) {
+    if (2 * (edges + 1) > edgeKeys.length) {
+      final long[] keys = edgeKeys;
+      final int[] targets = edgeTargets;
+      edgeKeys = filledLong(2 * keys.length);
+      edgeTargets = new int[2 * keys.length];
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] != -1L) {
+          putEdge(keys[i], targets[i]);
+        }
+      }
+    }
+    if (nodes == parent.length) {
+      parent = Arrays.copyOf(parent, 2 * nodes);
+      label = Arrays.copyOf(label, 2 * nodes);
+      first = Arrays.copyOf(first, 2 * nodes);
+      Arrays.fill(first, nodes, first.length, -1);
+    }
+    parent[nodes] = node;
+    label[nodes] = word;
+    putEdge(((long) node << 32) | word, nodes);
+    ++edges;
+    return nodes++;
+  }
+
+  private int wordId(String word) {
+    Integer id = words.get(word);
+    if (id == null) {
+      id = words.size();
+      words.put(word, id);
+      if (id == wordList.length) {
+        wordList = Arrays.copyOf(wordList, 2 * id);
+      }
+      wordList[id] = word;
+    }
+    return id;
+  }
+
+  /** Add an entry, only while building */
+  void add(String[] tokens, double weight, RuleTag tag) {
+    int node = 0;
+    for (String token : tokens) {
+      final int word = wordId(fold(token));
+      final int next = child(node, word);
+      node = next >= 0 ? next : addChild(node, word);
+    }
+    if (entries == entryNode.length) {
+      entryNode = Arrays.copyOf(entryNode, 2 * entries);
+      nextEntry = Arrays.copyOf(nextEntry, 2 * entries);
+      if (weights != null) {
+        weights = Arrays.copyOf(weights, 2 * entries);
+      }
+      if (tags != null) {
+        tags = Arrays.copyOf(tags, 2 * entries);
+      }
+    }
+    if (weights == null && weight != DEFAULT_WEIGHT) {
+      weights = new double[entryNode.length];
+      Arrays.fill(weights, 0, entries, DEFAULT_WEIGHT);
+    }
+    if (weights != null) {
+      weights[entries] = weight;
+    }
+    if (tags == null && tag != null) {
+      tags = new RuleTag[entryNode.length];
+    }
+    if (tags != null) {
+      tags[entries] = tag;
+    }
+    // keep the entries of a node in the order they were added
+    entryNode[entries] = node;
+    nextEntry[entries] = -1;
+    if (first[node] < 0) {
+      first[node] = entries;
+    } else {
+      int e = first[node];
+      while (nextEntry[e] >= 0) {
+        e = nextEntry[e];
+      }
+      nextEntry[e] = entries;
+    }
+    ++entries;
+  }
+
+  /** Release the unused space, after building */
+  void trim() {
+    wordList = Arrays.copyOf(wordList, words.size());
+    parent = Arrays.copyOf(parent, nodes);
+    label = Arrays.copyOf(label, nodes);
+    first = Arrays.copyOf(first, nodes);
+    entryNode = Arrays.copyOf(entryNode, entries);
+    nextEntry = Arrays.copyOf(nextEntry, entries);
+    if (weights != null) {
+      weights = Arrays.copyOf(weights, entries);
+    }
+    if (tags != null) {
+      tags = Arrays.copyOf(tags, entries);
+    }
+  }
+
+  boolean isCaseSensitive() {
+    return caseSensitive;
+  }
+
+  int size() {
+    return entries;
+  }
+
+  /** Return the (folded) words of an entry */
+  String[] getTokens(int entry) {
+    int length = 0;
+    for (int n = entryNode[entry]; n != 0; n = parent[n]) {
+      ++length;
+    }
+    final String[] result = new String[length];
+    for (int n = entryNode[entry]; n != 0; n = parent[n]) {
+      result[--length] = wordList[label[n]];
+    }
+    return result;
+  }
+
+  double getWeight(int entry) {
+    return weights == null ? DEFAULT_WEIGHT : weights[entry];
+  }
+
+  RuleTag getTag(int entry) {
+    return tags == null ? null : tags[entry];
+  }
+
+  /** Return the ids of the input tokens, -1 for tokens that are no word of
+   *  the trie */
+  int[] intern(String[] input) {
+    final int[] result = new int[input.length];
+    for (int i = 0; i < input.length; ++i) {
+      final Integer word = words.get(fold(input[i]));
+      result[i] = word == null ? -1 : word;
+    }
+    return result;
+  }
+
+  /** Return the (folded) words, indexed by their ids */
+  List<String> getWords() {
+    return Arrays.asList(wordList).subList(0, words.size());
+  }
+
+  /** Report the end and the tag of all entries matching the interned input
+   *  at start */
+  void matchEntries(int[] input, int start,
+      BiConsumer<Integer, RuleTag> result) {
+    int node = 0;
+    for (int i = start; i < input.length; ++i) {
+      if (input[i] < 0 || (node = child(node, input[i])) < 0) {
+        return;
+      }
+      for (int e = first[node]; e >= 0; e = nextEntry[e]) {
+        result.accept(i + 1, getTag(e));
+      }
+    }
+  }
+
+  long estimateSize() {
+    return 12L * nodes + 12L * edgeKeys.length
+        + (8L + (weights == null ? 0 : 8) + (tags == null ? 0 : 4)) * entries
+        + 64L * words.size();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean accepts(String token) {
+    return words.containsKey(fold(token));
+  }
+
+  @Override
+  public void match(String[] input, int start, Match result) {
+    matchEntries(intern(input), start, (end, tag) -> result.found(end, null));
+  }
+}
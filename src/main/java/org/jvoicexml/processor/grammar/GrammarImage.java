@@ -0,0 +1,751 @@
+package org.jvoicexml.processor.grammar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+import org.jvoicexml.processor.GrammarManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary image of a set of loaded grammars, which contains everything that
+ * is computed when the grammars are loaded: the canonical components, their
+ * left corners, the resolved references, the tag sources and the bigram
+ * filters. Reading an image through a memory mapped file only creates the
+ * components and the grammars, no source is parsed and nothing is computed,
+ * except for the token maps.
+ *
+ * An image starts with a magic number, the format version, and a CRC32C
+ * checksum of the rest. For every grammar, it contains the digest of its
+ * source, and for files also their size and modification time. If a source
+ * has changed, the image is stale and is not read at all.
+ *
+ * @author Bernd Kiefer
+ */
+public final class GrammarImage {
+  private static final Logger log = LoggerFactory.getLogger(GrammarImage.class);
+
+  private static final int MAGIC = 0x53524749; // SRGI
+
+  /** The version of the format, images with other versions are not read */
+  public static final int VERSION = 4;
+
+  private static final int HEADER_SIZE = 12;
+
+  // The types of the components
+  private static final byte TOKEN = 1;
+  private static final byte TAG = 2;
+  private static final byte REFERENCE = 3;
+  private static final byte SPECIAL = 4;
+  private static final byte BUILTIN = 5;
+  private static final byte ALTERNATIVES = 6;
+  private static final byte ALTERNATIVE = 7;
+  private static final byte COUNT = 8;
+  private static final byte SEQUENCE = 9;
+  private static final byte DYNAMIC = 10;
+  private static final byte TRIE = 11;
+
+  private static final RuleSpecial[] SPECIALS = {
+      RuleSpecial.NULL, RuleSpecial.VOID, RuleSpecial.GARBAGE
+  };
+
+  // The kinds of attribute values
+  private static final byte STRING = 0;
+  private static final byte METAS = 1;
+
+  private GrammarImage() {}
+
+  /** Return the SHA-256 digest of the content at uri */
+  public static byte[] digest(URI uri) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+    byte[] buf = new byte[8192];
+    try (InputStream in = new DigestInputStream(uri.toURL().openStream(), md)) {
+      while (in.read(buf) >= 0) {
+        // just compute the digest
+      }
+    }
+    return md.digest();
+  }
+
+  /********************** Writing *******************************************/
+
+  /**
+   * Write the grammars to file, which is replaced atomically. The grammars
+   * must be complete, i.e., all grammars they reference must be contained.
+   *
+   * @throws IOException if writing fails
+   * @throws IllegalArgumentException if a grammar was not loaded from a
+   *         source, or a referenced grammar is missing
+   */
+  public static void write(Collection<JVoiceXmlGrammar> grammars, Path file)
+      throws IOException {
+    byte[] payload = new Writer().write(grammars);
+    CRC32C crc = new CRC32C();
+    crc.update(payload);
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          Files.newOutputStream(tmp))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static class Writer {
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final List<String> stringList = new ArrayList<>();
+    private final Map<RuleComponent, Integer> ids = new IdentityHashMap<>();
+    private final List<RuleComponent> order = new ArrayList<>();
+    /** Components that need not be created before the current one */
+    private final Deque<RuleComponent> pending = new ArrayDeque<>();
+
+    private int string(String s) {
+      if (s == null) {
+        return -1;
+      }
+      Integer result = strings.get(s);
+      if (result == null) {
+        result = stringList.size();
+        strings.put(s, result);
+        stringList.add(s);
+      }
+      return result;
+    }
+
+    private int string(URI uri) {
+      return uri == null ? -1 : string(uri.toString());
+    }
+
+    /** Number the components such that those a component is created from
+     *  get a lower number */
+    private void add(RuleComponent c) {
+      if (ids.containsKey(c)) {
+        return;
+      }
+      if (c instanceof RuleAlternative) {
+        add(((RuleAlternative) c).getParent());
+        add(((RuleAlternative) c).getRuleComponent());
+      } else if (c instanceof RuleCount) {
+        add(((RuleCount) c).getRuleComponent());
+      } else if (c instanceof RuleSequence) {
+        for (RuleComponent sub : ((RuleSequence) c).getRuleComponents()) {
+          add(sub);
+        }
+      } else if (c instanceof RuleParse) {
+        throw new IllegalArgumentException("Not a grammar component: " + c);
+      }
+      if (ids.containsKey(c)) {
+        return;
+      }
+      ids.put(c, order.size());
+      order.add(c);
+      if (c instanceof RuleAlternatives) {
+        pending.addAll(((RuleAlternatives) c).getAlternatives());
+      }
+      if (c.leftCorner != null && hasOwnLeftCorner(c)) {
+        pending.addAll(c.leftCorner);
+      }
+    }
+
+    private void addAll(Collection<? extends RuleComponent> components) {
+      for (RuleComponent c : components) {
+        add(c);
+        while (! pending.isEmpty()) {
+          add(pending.pop());
+        }
+      }
+    }
+
+    private void ids(DataOutputStream out, Collection<? extends RuleComponent> cs)
+        throws IOException {
+      out.writeInt(cs.size());
+      for (RuleComponent c : cs) {
+        out.writeInt(ids.get(c));
+      }
+    }
+
+    private void uris(DataOutputStream out, Collection<URI> uris)
+        throws IOException {
+      out.writeInt(uris.size());
+      for (URI uri : uris) {
+        out.writeInt(string(uri));
+      }
+    }
+
+    private void writeComponent(DataOutputStream out, RuleComponent c)
+        throws IOException {
+      if (c instanceof RuleToken) {
+        out.writeByte(TOKEN);
+        out.writeInt(string(((RuleToken) c).getText()));
+      } else if (c instanceof RuleTag) {
+        out.writeByte(TAG);
+        out.writeInt(string(((RuleTag) c).getTag().toString()));
+      } else if (c instanceof RuleReference) {
+        RuleReference ref = (RuleReference) c;
+        out.writeByte(REFERENCE);
+        out.writeInt(string(ref.getGrammarReference()));
+        out.writeInt(string(ref.getRuleName()));
+        out.writeInt(string(ref.getMediaType()));
+      } else if (c instanceof RuleSpecial) {
+        out.writeByte(SPECIAL);
+        out.writeInt(Arrays.asList(SPECIALS).indexOf(c));
+      } else if (c instanceof RuleDynamic) {
+        RuleDynamic dynamic = (RuleDynamic) c;
+        out.writeByte(DYNAMIC);
+        out.writeInt(string(dynamic.getRuleName()));
+        out.writeBoolean(dynamic.isCaseSensitive());
+        out.writeLong(dynamic.getGeneration());
+        Map<String, String> phrases = dynamic.getPhrases();
+        out.writeInt(phrases.size());
+        for (Map.Entry<String, String> e : phrases.entrySet()) {
+          out.writeInt(string(e.getKey()));
+          out.writeInt(string(e.getValue()));
+        }
+      } else if (c instanceof RuleTrie) {
+        CompactTrie trie = ((RuleTrie) c).getTrie();
+        out.writeByte(TRIE);
+        out.writeInt(string(trie.getName()));
+        out.writeBoolean(trie.isCaseSensitive());
+        out.writeInt(trie.size());
+        for (int e = 0; e < trie.size(); ++e) {
+          out.writeInt(string(String.join(" ", trie.getTokens(e))));
+          out.writeDouble(trie.getWeight(e));
+          RuleTag tag = trie.getTag(e);
+          out.writeInt(string(tag == null ? null : tag.getTag().toString()));
+        }
+      } else if (c instanceof RuleBuiltin) {
+        out.writeByte(BUILTIN);
+        out.writeInt(string(((RuleBuiltin) c).getBuiltinName()));
+      } else if (c instanceof RuleAlternatives) {
+        out.writeByte(ALTERNATIVES);
+        ids(out, ((RuleAlternatives) c).getAlternatives());
+      } else if (c instanceof RuleAlternative) {
+        RuleAlternative alt = (RuleAlternative) c;
+        out.writeByte(ALTERNATIVE);
+        out.writeInt(ids.get(alt.getParent()));
+        out.writeInt(ids.get(alt.component));
+        out.writeDouble(alt.weight);
+        out.writeInt(alt.nr);
+      } else if (c instanceof RuleCount) {
+        RuleCount count = (RuleCount) c;
+        out.writeByte(COUNT);
+        out.writeInt(ids.get(count.getRuleComponent()));
+        out.writeInt(count.getRepeatMin());
+        out.writeInt(count.getRepeatMax());
+        out.writeDouble(count.getRepeatProbability());
+      } else if (c instanceof RuleSequence) {
+        out.writeByte(SEQUENCE);
+        ids(out, ((RuleSequence) c).getRuleComponents());
+      } else {
+        throw new IllegalArgumentException("Unknown component: " + c);
+      }
+      // the lang of a RuleToken is stored by its constructor
+      out.writeInt(string(c.lang));
+      out.writeInt(string(c.name));
+      out.writeBoolean(c.parenthesized);
+    }
+
+    /** The sources, for checking if the image is stale */
+    private void writeSources(DataOutputStream out,
+        Collection<JVoiceXmlGrammar> grammars) throws IOException {
+      out.writeInt(grammars.size());
+      for (JVoiceXmlGrammar g : grammars) {
+        byte[] digest = g.getSourceDigest();
+        if (digest == null) {
+          throw new IllegalArgumentException(
+              "Grammar without source: " + g.getReference());
+        }
+        long size = -1, modified = -1;
+        if ("file".equals(g.getReference().getScheme())) {
+          File f = new File(g.getReference());
+          // if the file changed after loading, only the digest is valid
+          if (Arrays.equals(digest, digest(g.getReference()))) {
+            size = f.length();
+            modified = f.lastModified();
+          }
+        }
+        out.writeInt(string(g.getReference()));
+        out.writeInt(digest.length);
+        out.write(digest);
+        out.writeLong(size);
+        out.writeLong(modified);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeGrammar(DataOutputStream out, JVoiceXmlGrammar g)
+        throws IOException {
+      out.writeInt(string(g.getBase()));
+      out.writeInt(string(g.getRoot()));
+      out.writeBoolean(g.isCaseSensitive());
+      Map<String, Object> attributes = g.getAttributes();
+      List<Map.Entry<String, Object>> attrs = new ArrayList<>();
+      if (attributes != null) {
+        for (Map.Entry<String, Object> e : attributes.entrySet()) {
+          // other values, like the lexicon declarations, are not used
+          if (e.getValue() instanceof String || e.getKey().equals("meta")) {
+            attrs.add(e);
+          }
+        }
+      }
+      out.writeInt(attributes == null ? -1 : attrs.size());
+      for (Map.Entry<String, Object> e : attrs) {
+        out.writeInt(string(e.getKey()));
+        if (e.getValue() instanceof String) {
+          out.writeByte(STRING);
+          out.writeInt(string((String) e.getValue()));
+        } else {
+          List<Meta> metas = (List<Meta>) e.getValue();
+          out.writeByte(METAS);
+          out.writeInt(metas.size());
+          for (Meta m : metas) {
+            out.writeInt(string(m.key));
+            out.writeInt(string(m.value));
+            out.writeBoolean(m.http_equiv);
+          }
+        }
+      }
+      out.writeInt(g.getRules().size());
+      for (Rule r : g.getRules()) {
+        out.writeInt(string(r.getRuleName()));
+        out.writeInt(r.getScope());
+        out.writeInt(ids.get(r.getRuleComponent()));
+      }
+      ids(out, g.getTerminals());
+      ids(out, g.getNonterminals());
+      out.writeInt(g.getOwnTerminals());
+      out.writeInt(g.getOwnNonterminals());
+      ids(out, g.getBuiltins());
+      uris(out, g.getImports());
+      uris(out, g.getReferences());
+      BigramFilter filter = g.getBigramFilter();
+      out.writeBoolean(filter != null);
+      if (filter != null) {
+        filter.write(out, ids);
+      }
+    }
+
+    byte[] write(Collection<JVoiceXmlGrammar> grammars) throws IOException {
+      Set<URI> contained = new HashSet<>();
+      for (JVoiceXmlGrammar g : grammars) {
+        contained.add(g.getReference());
+      }
+      for (JVoiceXmlGrammar g : grammars) {
+        for (URI ref : g.getReferences()) {
+          if (! contained.contains(ref)) {
+            throw new IllegalArgumentException("Grammar " + g.getReference()
+                + " references missing grammar " + ref);
+          }
+        }
+        for (Rule r : g.getRules()) {
+          addAll(Arrays.asList(r.getRuleComponent()));
+        }
+        addAll(g.getTerminals());
+        addAll(g.getNonterminals());
+        addAll(g.getBuiltins());
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(body);
+      writeSources(out, grammars);
+      out.writeInt(order.size());
+      for (RuleComponent c : order) {
+        writeComponent(out, c);
+      }
+      for (RuleComponent c : order) {
+        if (c.leftCorner == null || ! hasOwnLeftCorner(c)) {
+          out.writeInt(-1);
+        } else {
+          ids(out, c.leftCorner);
+        }
+      }
+      for (JVoiceXmlGrammar g : grammars) {
+        writeGrammar(out, g);
+      }
+      out.flush();
+
+      ByteArrayOutputStream result = new ByteArrayOutputStream();
+      DataOutputStream res = new DataOutputStream(result);
+      res.writeInt(stringList.size());
+      for (String s : stringList) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        res.writeInt(bytes.length);
+        res.write(bytes);
+      }
+      body.writeTo(res);
+      res.flush();
+      return result.toByteArray();
+    }
+  }
+
+  /** The left corners of specials and builtins are not stored */
+  private static boolean hasOwnLeftCorner(RuleComponent c) {
+    return ! (c instanceof RuleSpecial || c instanceof RuleBuiltin);
+  }
+
+  /********************** Reading *******************************************/
+
+  /** Thrown if the image can not be used */
+  @SuppressWarnings("serial")
+  private static class Unusable extends Exception {
+    Unusable(String msg) {
+      super(msg, null, false, false);
+    }
+  }
+
+  /**
+   * Read the grammars in an image written by write.
+   *
+   * @return the grammars, which are post processed, but not registered with
+   *         the manager, or null if the image does not exist, can not be
+   *         read, was written with another version, or if the source of one
+   *         of its grammars has changed.
+   */
+  public static List<JVoiceXmlGrammar> read(GrammarManager manager,
+      Path file) {
+    if (! Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buf =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new Reader(manager, buf).read();
+    } catch (IOException | Unusable ex) {
+      log.info("Not using grammar image {}: {}", file, ex.getMessage());
+    } catch (BufferUnderflowException | IllegalArgumentException
+        | ClassCastException | IndexOutOfBoundsException ex) {
+      log.warn("Corrupt grammar image {}: {}", file, ex.toString());
+    }
+    return null;
+  }
+
+  private static class Reader {
+    private final GrammarManager manager;
+    private final ByteBuffer in;
+    private String[] strings;
+    private RuleComponent[] components;
+
+    Reader(GrammarManager mgr, ByteBuffer buf) {
+      manager = mgr;
+      in = buf;
+    }
+
+    private String string() {
+      int id = in.getInt();
+      return id < 0 ? null : strings[id];
+    }
+
+    private URI uri() {
+      String s = string();
+      return s == null ? null : URI.create(s);
+    }
+
+    private List<RuleComponent> ids() {
+      int n = in.getInt();
+      List<RuleComponent> result = new ArrayList<>(n);
+      for (int i = 0; i < n; ++i) {
+        result.add(components[in.getInt()]);
+      }
+      return result;
+    }
+
+    private void checkHeader() throws Unusable {
+      if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+        throw new Unusable("not a grammar image");
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new Unusable("version " + version + " instead of " + VERSION);
+      }
+      int checksum = in.getInt();
+      CRC32C crc = new CRC32C();
+      crc.update(in.slice());
+      if ((int) crc.getValue() != checksum) {
+        throw new Unusable("wrong checksum");
+      }
+    }
+
+    private void readStrings() {
+      strings = new String[in.getInt()];
+      byte[] buf = new byte[256];
+      for (int i = 0; i < strings.length; ++i) {
+        int len = in.getInt();
+        if (len > buf.length) {
+          buf = new byte[Math.max(len, 2 * buf.length)];
+        }
+        in.get(buf, 0, len);
+        strings[i] = new String(buf, 0, len, StandardCharsets.UTF_8);
+      }
+    }
+
+    /** Check that no source has changed since the image was written */
+    private void checkSources() throws Unusable, IOException {
+      for (int n = in.getInt(); n > 0; --n) {
+        URI uri = uri();
+        byte[] digest = new byte[in.getInt()];
+        in.get(digest);
+        long size = in.getLong();
+        long modified = in.getLong();
+        if ("file".equals(uri.getScheme())) {
+          File f = new File(uri);
+          if (! f.isFile()) {
+            throw new Unusable(uri + " does not exist");
+          }
+          if (f.length() == size && f.lastModified() == modified) {
+            continue;
+          }
+        }
+        if (! Arrays.equals(digest, digest(uri))) {
+          throw new Unusable(uri + " has changed");
+        }
+      }
+    }
+
+    private RuleComponent readComponent(List<int[]> fixups) throws Unusable {
+      RuleComponent result;
+      byte type = in.get();
+      switch (type) {
+      case TOKEN: {
+        // quoted, the text is not normalized again
+        String text = string();
+        result = new RuleToken(text.startsWith("$$") ? text : '"' + text + '"');
+        break;
+      }
+      case TAG:
+        result = new RuleTag(string());
+        break;
+      case REFERENCE: {
+        URI uri = uri();
+        String ruleName = string();
+        RuleReference ref = uri == null ? new RuleReference(ruleName)
+            : ruleName == null ? new RuleReference(uri)
+            : new RuleReference(uri, ruleName);
+        ref.setMediaType(string());
+        result = ref;
+        break;
+      }
+      case SPECIAL:
+        result = SPECIALS[in.getInt()];
+        break;
+      case BUILTIN: {
+        String name = string();
+        result = Recognizers.get(name);
+        if (result == null) {
+          throw new Unusable("unknown recognizer " + name);
+        }
+        break;
+      }
+      case DYNAMIC: {
+        String name = string();
+        boolean caseSensitive = in.get() != 0;
+        long generation = in.getLong();
+        Map<String, String> phrases = new LinkedHashMap<>();
+        for (int n = in.getInt(); n > 0; --n) {
+          phrases.put(string(), string());
+        }
+        RuleDynamic dynamic = new RuleDynamic(name, caseSensitive, phrases);
+        dynamic.setGeneration(generation);
+        result = dynamic;
+        break;
+      }
+      case TRIE: {
+        CompactTrie trie = new CompactTrie(string(), in.get() != 0);
+        // equal tags are compiled once, as in RuleTrie.compile
+        Map<String, RuleTag> tags = new HashMap<>();
+        for (int n = in.getInt(); n > 0; --n) {
+          String[] tokens = string().split(" ");
+          double weight = in.getDouble();
+          String tag = string();
+          trie.add(tokens, weight,
+              tag == null ? null : tags.computeIfAbsent(tag, RuleTag::new));
+        }
+        trie.trim();
+        result = new RuleTrie(trie);
+        break;
+      }
+      case ALTERNATIVES: {
+        result = new RuleAlternatives();
+        int[] alts = new int[in.getInt()];
+        for (int i = 0; i < alts.length; ++i) {
+          alts[i] = in.getInt();
+        }
+        fixups.add(alts);
+        break;
+      }
+      case ALTERNATIVE:
+        result = new RuleAlternative((RuleAlternatives) components[in.getInt()],
+            components[in.getInt()], in.getDouble(), in.getInt());
+        break;
+      case COUNT: {
+        RuleComponent sub = components[in.getInt()];
+        int min = in.getInt();
+        int max = in.getInt();
+        double prob = in.getDouble();
+        result = prob == RuleCount.REPEAT_INDEFINITELY
+            ? new RuleCount(sub, min, max) : new RuleCount(sub, min, max, prob);
+        break;
+      }
+      case SEQUENCE:
+        result = new RuleSequence(ids());
+        break;
+      default:
+        throw new IllegalArgumentException("unknown component type " + type);
+      }
+      String lang = string();
+      String name = string();
+      boolean parenthesized = in.get() != 0;
+      if (hasOwnLeftCorner(result)) {
+        result.lang = lang;
+        result.name = name;
+        result.parenthesized = parenthesized;
+      }
+      return result;
+    }
+
+    private void readComponents() throws Unusable {
+      components = new RuleComponent[in.getInt()];
+      List<int[]> fixups = new ArrayList<>();
+      for (int i = 0; i < components.length; ++i) {
+        components[i] = readComponent(fixups);
+      }
+      int next = 0;
+      for (RuleComponent c : components) {
+        if (c instanceof RuleAlternatives) {
+          List<RuleAlternative> alts = ((RuleAlternatives) c).getAlternatives();
+          for (int id : fixups.get(next)) {
+            alts.add((RuleAlternative) components[id]);
+          }
+          ++next;
+        }
+      }
+      for (RuleComponent c : components) {
+        int n = in.getInt();
+        if (n >= 0) {
+          c.leftCorner = new HashSet<>(Math.max(16, 2 * n));
+          for (int i = 0; i < n; ++i) {
+            c.leftCorner.add(components[in.getInt()]);
+          }
+        }
+      }
+    }
+
+    private Map<String, Object> readAttributes() {
+      int n = in.getInt();
+      if (n < 0) {
+        return null;
+      }
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (int i = 0; i < n; ++i) {
+        String key = string();
+        if (in.get() == STRING) {
+          result.put(key, string());
+        } else {
+          List<Meta> metas = new ArrayList<>();
+          for (int m = in.getInt(); m > 0; --m) {
+            metas.add(new Meta(string(), string(), in.get() != 0));
+          }
+          result.put(key, metas);
+        }
+      }
+      return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JVoiceXmlGrammar readGrammar(URI reference, byte[] digest) {
+      URI base = uri();
+      String root = string();
+      boolean caseSensitive = in.get() != 0;
+      Map<String, Object> attributes = readAttributes();
+      List<Rule> rules = new ArrayList<>();
+      for (int n = in.getInt(); n > 0; --n) {
+        rules.add(new Rule(string(), in.getInt(), components[in.getInt()]));
+      }
+      List<RuleToken> terminals = (List<RuleToken>) (List<?>) ids();
+      List<RuleComponent> nonterminals = ids();
+      JVoiceXmlGrammar g = new JVoiceXmlGrammar(manager, reference, base, root,
+          attributes, rules, terminals, nonterminals);
+      g.setOwnSymbols(in.getInt(), in.getInt());
+      g.setCaseSensitive(caseSensitive);
+      g.setSourceDigest(digest);
+      for (RuleComponent b : ids()) {
+        g.addBuiltin((RuleBuiltin) b);
+      }
+      for (int n = in.getInt(); n > 0; --n) {
+        g.getImports().add(uri());
+      }
+      for (int n = in.getInt(); n > 0; --n) {
+        g.addReference(uri());
+      }
+      g.restore(in.get() != 0 ? BigramFilter.read(g, in, components) : null);
+      return g;
+    }
+
+    List<JVoiceXmlGrammar> read() throws Unusable, IOException {
+      checkHeader();
+      readStrings();
+      int start = in.position();
+      checkSources();
+      // read the sources again, for the references and digests
+      int end = in.position();
+      in.position(start);
+      List<URI> refs = new ArrayList<>();
+      List<byte[]> digests = new ArrayList<>();
+      for (int n = in.getInt(); n > 0; --n) {
+        refs.add(uri());
+        byte[] digest = new byte[in.getInt()];
+        in.get(digest);
+        digests.add(digest);
+        in.getLong();
+        in.getLong();
+      }
+      assert in.position() == end;
+      readComponents();
+      List<JVoiceXmlGrammar> result = new ArrayList<>(refs.size());
+      for (int i = 0; i < refs.size(); ++i) {
+        result.add(readGrammar(refs.get(i), digests.get(i)));
+      }
+      return result;
+    }
+  }
+}
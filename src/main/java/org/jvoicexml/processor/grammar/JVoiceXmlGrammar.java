@@ -3,13 +3,18 @@ package org.jvoicexml.processor.grammar;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.jvoicexml.processor.GrammarManager;
 import org.jvoicexml.processor.srgs.GrammarException;
@@ -17,46 +22,73 @@ import org.jvoicexml.processor.srgs.GrammarException;
 public class JVoiceXmlGrammar implements Grammar {
   private class TokenMap {
 
-    Map<String, List<RuleToken>> impl;
+    TokenTrie<RuleToken> impl;
     List<RuleToken> patterns;
+    /** The IDs of all words occuring in some RuleToken, case-folded if
+     *  necessary */
+    Map<String, Integer> words;
+    /** true if some pattern matches any input, like the one for $GARBAGE */
+    boolean matchesAll;
 
     public TokenMap() {
-      impl = new HashMap<>();
+      impl = new TokenTrie<>();
       patterns  = new ArrayList<>();
+      words = new HashMap<>();
+      matchesAll = false;
     }
 
     public void add(RuleToken t) {
       if (t.getPattern() != null) {
         patterns.add(t);
+        matchesAll |= t.getPattern().pattern().equals(".*");
       } else {
-        String leftMost = t.getTokens()[0];
-        if (! isCaseSensitive) {
-          leftMost = leftMost.toLowerCase();
+        String[] tokens = t.getTokens();
+        int[] ids = new int[tokens.length];
+        for (int i = 0; i < tokens.length; ++i) {
+          ids[i] = wordId(fold(tokens[i]));
         }
-        List<RuleToken> tokens = impl.get(leftMost);
-        if (tokens == null) {
-          tokens = new ArrayList<>();
-          impl.put(leftMost, tokens);
-        }
-        tokens.add(t);
+        impl.add(ids, t);
       }
     }
 
-    public List<RuleToken> get(String leftMost) {
-      if (! isCaseSensitive) {
-        leftMost = leftMost.toLowerCase();
+    /** Return the ID of a folded word, adding it if it is new */
+    public int wordId(String word) {
+      Integer id = words.get(word);
+      if (id == null) {
+        id = words.size();
+        words.put(word, id);
       }
-      List<RuleToken> result = impl.get(leftMost);
-      return result == null ? Collections.emptyList() : result;
+      return id;
+    }
+
+    /** Pass all RuleTokens matching the input at start to the consumer */
+    public void get(int[] input, int start,
+        BiConsumer<RuleComponent, Integer> consumer) {
+      impl.match(input, start, consumer);
     }
 
     public List<RuleToken> get() {
       return patterns;
     }
+
+    /** Return true if some terminal can match the given input token */
+    public boolean covers(String token, int id,
+        Function<RuleBuiltin, Recognizer> recognizers) {
+      if (matchesAll || id >= 0) {
+        return true;
+      }
+      for (RuleBuiltin b : builtins) {
+        if (recognizers.apply(b).accepts(token)) {
+          return true;
+        }
+      }
+      return ! getPatternSet().match(token).isEmpty();
+    }
   }
 
 
-  private final GrammarManager manager;
+  /** The version the grammar is built in, until it is published */
+  private volatile GrammarManager manager;
   private final URI reference;
   private URI base;
   private String root;
@@ -65,12 +97,70 @@ public class JVoiceXmlGrammar implements Grammar {
   private final Map<RuleComponent, RuleComponent> nonterminals;
   private final Map<String, Rule> rules;
 
+  /** The grammars whose symbols have been added to this grammar */
+  private final Set<URI> imports;
+
+  /** The other grammars referenced by the rules of this grammar */
+  private final Set<URI> references;
+
+  /** The recognizers referenced by this grammar, or the grammars whose
+   *  symbols have been added */
+  private final Set<RuleBuiltin> builtins;
+
+  /** The dynamic rules of this grammar, by name */
+  private final Map<String, RuleDynamic> dynamicRules;
+
+  /** The one-ofs of the own rules stored as tries */
+  private final List<RuleTrie> tries;
+
   private Map<String, Object> attributes;
 
+  /** The digest of the grammar source, null if not known */
+  private byte[] sourceDigest;
+
   private boolean isCaseSensitive = false;
 
   private TokenMap tokenMap = new TokenMap();
 
+  /** One-ofs with at least this many alternatives that only contain tokens,
+   *  each optionally followed by a tag, are stored in a RuleTrie; never if
+   *  less or equal zero */
+  public static int trieThreshold = 1000;
+
+  /** The bigram filter is not used for grammars producing more adjacent
+   *  token pairs than this, since it would need too much memory */
+  public static int maxBigramPairs = 1 << 22;
+
+  /** The maximal number of input tokens cached for pattern matching */
+  public static int patternCacheSize = 10000;
+
+  /** The pattern terminals, with their matcher, computed on demand */
+  private PatternSet patternSet;
+
+  /** For the tries among the builtins, their word IDs indexed by the
+   *  vocabulary IDs, -1 for words a trie does not contain */
+  private Map<RuleTrie, int[]> trieWords = Collections.emptyMap();
+
+  /** Adjacent token pairs, null if it could not be computed */
+  private BigramFilter bigrams;
+
+  /** True if the symbols of some referenced grammar are missing, because it
+   *  is not loaded yet */
+  private boolean incomplete = false;
+
+  /** The number of symbols of the own rules, without the added ones */
+  private int ownTerminals, ownNonterminals;
+
+  // Rough sizes of a symbol with its map entries and left corner
+  private static final int TERMINAL_BYTES = 300;
+  private static final int NONTERMINAL_BYTES = 500;
+  private static final int PHRASE_BYTES = 200;
+
+  /** When and how often the grammar was used, not synchronized, since it is
+   *  only a hint which grammar to evict */
+  private long lastUsed = System.nanoTime();
+  private int uses = 0;
+
   /**
    * Create a list of unique tokens (terminals) and non-terminals, as well as
    * left-corner information. In all rules, terminals and non-terminals may be
@@ -83,9 +173,187 @@ public class JVoiceXmlGrammar implements Grammar {
       t.computeLeftCorner(manager);
       tokenMap.add(t);
     }
+    patternSet = null;
     for (RuleComponent c : getNonterminals()) {
       c.computeLeftCorner(manager);
     }
+    mapTrieWords();
+    bigrams = BigramFilter.compile(this, manager);
+  }
+
+  /**
+   * Add the words of the tries to the vocabulary, after the words of the
+   * terminals, and map the vocabulary IDs to the word IDs of each trie, so
+   * that a parse can translate its interned input instead of folding and
+   * looking up every token again. Tries folding words differently are left
+   * out.
+   */
+  private void mapTrieWords() {
+    final List<RuleTrie> same = new ArrayList<>();
+    for (RuleBuiltin b : builtins) {
+      if (b instanceof RuleTrie
+          && ((RuleTrie) b).getTrie().isCaseSensitive() == isCaseSensitive) {
+        same.add((RuleTrie) b);
+        for (String word : ((RuleTrie) b).getTrie().getWords()) {
+          tokenMap.wordId(word);
+        }
+      }
+    }
+    final Map<RuleTrie, int[]> result = new IdentityHashMap<>();
+    for (RuleTrie trie : same) {
+      final int[] ids = new int[tokenMap.words.size()];
+      Arrays.fill(ids, -1);
+      final List<String> words = trie.getTrie().getWords();
+      for (int w = 0; w < words.size(); ++w) {
+        ids[tokenMap.words.get(words.get(w))] = w;
+      }
+      result.put(trie, ids);
+    }
+    trieWords = result;
+  }
+
+  /**
+   * Take over the left corners of an older version of this grammar, for all
+   * nonterminals whose left corner contains no reference into one of the
+   * changed grammars, so they can not have changed. The components in them
+   * are replaced by the equal ones of this grammar. Must be called before
+   * postProcess, which then only computes the remaining left corners.
+   *
+   * @return the number of left corners taken over
+   */
+  public int reuseLeftCorners(JVoiceXmlGrammar old, Set<URI> changed) {
+    int reused = 0;
+    for (RuleComponent c : getNonterminals()) {
+      final RuleComponent prev = old.nonterminals.get(c);
+      if (c.leftCorner != null || prev == null || prev.leftCorner == null
+          || reaches(prev.leftCorner, changed)) {
+        continue;
+      }
+      final Set<RuleComponent> lc = new HashSet<>(
+          Math.max(16, 2 * prev.leftCorner.size()));
+      for (RuleComponent e : prev.leftCorner) {
+        final RuleComponent mine = e instanceof RuleToken
+            ? terminals.get(e) : nonterminals.get(e);
+        lc.add(mine == null ? e : mine);
+      }
+      c.leftCorner = lc;
+      ++reused;
+    }
+    return reused;
+  }
+
+  private static boolean reaches(Set<RuleComponent> leftCorner,
+      Set<URI> changed) {
+    for (RuleComponent e : leftCorner) {
+      if (e instanceof RuleReference
+          && changed.contains(((RuleReference) e).getGrammarReference())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Return the names in the dynamic meta of the attributes */
+  @SuppressWarnings("unchecked")
+  private static Set<String> getDynamicRuleNames(Map<String, Object> attrs) {
+    final Set<String> result = new HashSet<>();
+    if (attrs != null && attrs.containsKey("meta")) {
+      for (Meta e : (List<Meta>) attrs.get("meta")) {
+        if (e.key.equals(RuleDynamic.META)) {
+          result.addAll(Arrays.asList(e.value.trim().split("\\s+")));
+        }
+      }
+    }
+    result.remove("");
+    return result;
+  }
+
+  /**
+   * Replace the large one-ofs below c that only contain tokens by a
+   * RuleTrie, see trieThreshold, and return the replacement of c.
+   */
+  private RuleComponent compact(RuleComponent c, String ruleName) {
+    if (c instanceof RuleAlternatives) {
+      final RuleAlternatives alts = (RuleAlternatives) c;
+      final RuleTrie trie = alts.size() >= trieThreshold
+          ? RuleTrie.compile(ruleName, alts, isCaseSensitive) : null;
+      if (trie != null) {
+        tries.add(trie);
+        builtins.add(trie);
+        return trie;
+      }
+      for (RuleAlternative alt : alts.getAlternatives()) {
+        alt.component = compact(alt.component, ruleName);
+      }
+    } else if (c instanceof RuleSequence) {
+      final List<RuleComponent> subs = ((RuleSequence) c).getRuleComponents();
+      for (int i = 0; i < subs.size(); ++i) {
+        final RuleComponent sub = compact(subs.get(i), ruleName);
+        if (sub != subs.get(i)) {
+          subs.set(i, sub);
+        }
+      }
+    } else if (c instanceof RuleCount) {
+      final RuleCount count = (RuleCount) c;
+      count.setRuleComponent(compact(count.getRuleComponent(), ruleName));
+    }
+    return c;
+  }
+
+  /** Collect the tries below c, without following references */
+  private void findTries(RuleComponent c) {
+    if (c instanceof RuleTrie) {
+      if (! tries.contains(c)) {
+        tries.add((RuleTrie) c);
+      }
+    } else if (c instanceof RuleAlternatives) {
+      for (RuleAlternative alt : ((RuleAlternatives) c).getAlternatives()) {
+        findTries(alt.component);
+      }
+    } else if (c instanceof RuleSequence) {
+      for (RuleComponent sub : ((RuleSequence) c).getRuleComponents()) {
+        findTries(sub);
+      }
+    } else if (c instanceof RuleCount) {
+      findTries(((RuleCount) c).getRuleComponent());
+    }
+  }
+
+  /** Replace the body of a dynamic rule, which must only contain tokens, by
+   *  a RuleDynamic with these tokens as initial phrases */
+  private Rule makeDynamic(Rule r) throws GrammarException {
+    final RuleComponent body = r.getRuleComponent();
+    final List<RuleComponent> alternatives = new ArrayList<>();
+    if (body instanceof RuleAlternatives) {
+      for (RuleAlternative alt : ((RuleAlternatives) body).getAlternatives()) {
+        alternatives.add(alt.getRuleComponent());
+      }
+    } else if (body != RuleSpecial.VOID) {
+      alternatives.add(body);
+    }
+    final Map<String, String> phrases = new LinkedHashMap<>();
+    for (RuleComponent c : alternatives) {
+      final List<RuleComponent> parts = c instanceof RuleSequence
+          ? ((RuleSequence) c).getRuleComponents()
+          : Collections.singletonList(c);
+      final StringBuilder phrase = new StringBuilder();
+      for (RuleComponent part : parts) {
+        if (! (part instanceof RuleToken)
+            || ((RuleToken) part).getPattern() != null) {
+          throw new GrammarException("Dynamic rule " + r.getRuleName()
+              + " in " + reference + " may only contain tokens: " + c);
+        }
+        for (String token : ((RuleToken) part).getTokens()) {
+          phrase.append(phrase.length() == 0 ? "" : " ").append(token);
+        }
+      }
+      phrases.put(phrase.toString(), null);
+    }
+    final RuleDynamic dynamic =
+        new RuleDynamic(r.getRuleName(), isCaseSensitive, phrases);
+    dynamicRules.put(r.getRuleName(), dynamic);
+    builtins.add(dynamic);
+    return new Rule(r.getRuleName(), dynamic, r.getScope());
   }
 
   @SuppressWarnings("unchecked")
@@ -128,9 +396,28 @@ public class JVoiceXmlGrammar implements Grammar {
     rules = new HashMap<>();
     terminals = new HashMap<>();
     nonterminals = new HashMap<>();
+    imports = new HashSet<>();
+    references = new HashSet<>();
+    builtins = new HashSet<>();
+    dynamicRules = new HashMap<>();
+    tries = new ArrayList<>();
+    final Set<String> dynamic = getDynamicRuleNames(attrs);
     for (Rule r : parsedRules) {
+      if (dynamic.remove(r.getRuleName())) {
+        r = makeDynamic(r);
+      } else if (trieThreshold > 0) {
+        final RuleComponent body = compact(r.getRuleComponent(), r.getRuleName());
+        if (body != r.getRuleComponent()) {
+          r = new Rule(r.getRuleName(), body, r.getScope());
+        }
+      }
       addRule(r.cleanup(terminals, nonterminals));
     }
+    if (! dynamic.isEmpty()) {
+      throw new GrammarException("Unknown dynamic rules in " + ref + ": "
+          + dynamic);
+    }
+    setOwnSymbols(terminals.size(), nonterminals.size());
 
     attributes = attrs;
     if (attributes != null) {
@@ -138,6 +425,129 @@ public class JVoiceXmlGrammar implements Grammar {
     }
   }
 
+  /**
+   * Create a grammar from the parts stored in a GrammarImage, which are
+   * canonical and post processed already. Only the token map is built, from
+   * the terminals.
+   */
+  JVoiceXmlGrammar(final GrammarManager grammarManager, final URI ref,
+      URI baseUri, String rootName, Map<String, Object> attrs,
+      Collection<Rule> parsedRules, Collection<RuleToken> terms,
+      Collection<RuleComponent> nonterms) {
+    manager = grammarManager;
+    reference = ref;
+    base = baseUri;
+    root = rootName;
+    attributes = attrs;
+    rules = new HashMap<>();
+    terminals = new HashMap<>();
+    nonterminals = new HashMap<>();
+    imports = new HashSet<>();
+    references = new HashSet<>();
+    builtins = new HashSet<>();
+    dynamicRules = new HashMap<>();
+    tries = new ArrayList<>();
+    for (Rule r : parsedRules) {
+      addRule(r);
+      if (r.getRuleComponent() instanceof RuleDynamic) {
+        dynamicRules.put(r.getRuleName(), (RuleDynamic) r.getRuleComponent());
+      }
+      findTries(r.getRuleComponent());
+    }
+    for (RuleToken t : terms) {
+      terminals.put(t, t);
+    }
+    for (RuleComponent c : nonterms) {
+      nonterminals.put(c, c);
+    }
+  }
+
+  /** Finish a grammar from a GrammarImage, instead of postProcess */
+  void restore(BigramFilter filter) {
+    for (RuleToken t : getTerminals()) {
+      tokenMap.add(t);
+    }
+    patternSet = null;
+    mapTrieWords();
+    bigrams = filter;
+  }
+
+  void setOwnSymbols(int terms, int nonterms) {
+    ownTerminals = terms;
+    ownNonterminals = nonterms;
+  }
+
+  int getOwnTerminals() {
+    return ownTerminals;
+  }
+
+  int getOwnNonterminals() {
+    return ownNonterminals;
+  }
+
+  /**
+   * Return a rough estimate of the memory in bytes this grammar needs. The
+   * symbols added from referenced grammars are not counted, they belong to
+   * those.
+   */
+  public long estimateSize() {
+    return (long) TERMINAL_BYTES * ownTerminals
+        + (long) NONTERMINAL_BYTES * ownNonterminals
+        + (bigrams == null ? 0 : bigrams.estimateSize())
+        + PHRASE_BYTES * dynamicSize() + trieSize();
+  }
+
+  private long trieSize() {
+    long result = 0;
+    for (RuleTrie t : tries) {
+      result += t.estimateSize();
+    }
+    for (int[] words : trieWords.values()) {
+      result += 4L * words.length;
+    }
+    return result;
+  }
+
+  private long dynamicSize() {
+    long result = 0;
+    for (RuleDynamic d : dynamicRules.values()) {
+      result += d.size();
+    }
+    return result;
+  }
+
+  /** Record that the grammar is used, e.g., by a parse */
+  public void touch() {
+    lastUsed = System.nanoTime();
+    ++uses;
+  }
+
+  /** The value of System.nanoTime() when the grammar was last used */
+  public long getLastUsed() {
+    return lastUsed;
+  }
+
+  /** How often the grammar was used */
+  public int getUses() {
+    return uses;
+  }
+
+  URI getBase() {
+    return base;
+  }
+
+  Collection<Rule> getRules() {
+    return rules.values();
+  }
+
+  Set<URI> getImports() {
+    return imports;
+  }
+
+  BigramFilter getBigramFilter() {
+    return bigrams;
+  }
+
   @Override
   public int getActivationMode() {
     return 0;
@@ -147,6 +557,15 @@ public class JVoiceXmlGrammar implements Grammar {
     return manager;
   }
 
+  /**
+   * Replace the manager the grammar was built with, called when the version
+   * it was built in is published. The version contains all grammars of its
+   * time, keeping it would keep replaced and evicted grammars reachable.
+   */
+  public void setGrammarManager(GrammarManager grammarManager) {
+    manager = grammarManager;
+  }
+
   @Override
   public URI getReference() {
     return reference;
@@ -231,41 +650,177 @@ public class JVoiceXmlGrammar implements Grammar {
 
   public void setCaseSensitive(boolean val) {
     isCaseSensitive = val;
+    for (RuleDynamic d : dynamicRules.values()) {
+      d.setCaseSensitive(val);
+    }
   }
 
   public boolean isCaseSensitive() {
     return isCaseSensitive;
   }
 
-  private int matchTokenSequence(String[] input, int start, String[] tokens) {
-    if (start + tokens.length > input.length) return -1;
-    int pos = start + 1;
-    for (int i = 1; i < tokens.length; ++i, ++pos) {
-      if (isCaseSensitive) {
-        if (!tokens[i].equals(input[pos])) return -1;
-      } else {
-        if (!tokens[i].equalsIgnoreCase(input[pos])) return -1;
-      }
+  /**
+   * Fold a word for case insensitive comparison, if this grammar is not case
+   * sensitive. Converting to upper and then to lower case maps all case
+   * variants to one form, also for characters like the german sharp s.
+   */
+  String fold(String word) {
+    return Tokens.fold(word, isCaseSensitive);
+  }
+
+  /** Return the vocabulary ID of the given word, or -1 if it is unknown */
+  int getWordId(String word) {
+    Integer id = tokenMap.words.get(fold(word));
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Map the input tokens to the IDs of the words of this grammar, using case
+   * folding if the grammar is not case sensitive. This is done once per parse,
+   * all terminals are then matched using the IDs.
+   *
+   * @param input the input tokens
+   * @return the IDs of the input tokens, -1 for words not in the vocabulary
+   */
+  public int[] intern(String[] input) {
+    int[] result = new int[input.length];
+    for (int i = 0; i < input.length; ++i) {
+      result[i] = getWordId(input[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Map the input to the word IDs of a trie among the builtins, for
+   * RuleTrie.match.
+   *
+   * @param trie the trie
+   * @param input the input tokens
+   * @param ids the IDs of the input tokens, as returned by intern
+   * @return the word IDs of the trie, -1 for words it does not contain
+   */
+  public int[] intern(RuleTrie trie, String[] input, int[] ids) {
+    final int[] words = trieWords.get(trie);
+    if (words == null) {
+      return trie.getTrie().intern(input);
     }
-    return pos;
+    final int[] result = new int[ids.length];
+    for (int i = 0; i < ids.length; ++i) {
+      result[i] = ids[i] < 0 ? -1 : words[ids[i]];
+    }
+    return result;
   }
 
-  public void getPreterminals(String[] input, int start,
+  /**
+   * Pass all RuleTokens matching the input at start together with the end
+   * position of the match to the consumer.
+   *
+   * @param input the input, as returned by intern
+   * @param start the position where the match starts
+   */
+  public void getPreterminals(int[] input, int start,
       BiConsumer<RuleComponent, Integer> consumer) {
-    String leftMostToken = input[start];
-    for (RuleToken token : tokenMap.get(leftMostToken)) {
-      int pos = matchTokenSequence(input, start, token.getTokens());
-      if (pos >= 0) {
-        consumer.accept(token, pos);
+    tokenMap.get(input, start, consumer);
+  }
+
+  /**
+   * Check if every input token can be matched by some terminal of this
+   * grammar, or of the grammars it references. This is a necessary condition
+   * for a successful parse, and much cheaper than the parse itself.
+   *
+   * @param input the input tokens
+   * @return false if some token can neither be matched by a RuleToken, nor by
+   *         a pattern terminal, which includes $GARBAGE, true otherwise
+   */
+  public boolean covers(String[] input) {
+    return covers(input, intern(input));
+  }
+
+  /** Like covers(String[]), for an already interned input */
+  public boolean covers(String[] input, int[] ids) {
+    return covers(input, ids, RuleBuiltin::getRecognizer);
+  }
+
+  /**
+   * Like covers(String[], int[]), using the given recognizers for the
+   * builtins, e.g., the ones bound to dynamic rules for a single parse.
+   */
+  public boolean covers(String[] input, int[] ids,
+      Function<RuleBuiltin, Recognizer> recognizers) {
+    if (incomplete) {
+      return true;
+    }
+    for (int i = 0; i < input.length; ++i) {
+      if (! tokenMap.covers(input[i], ids[i], recognizers)) {
+        return false;
       }
     }
+    return true;
+  }
+
+  /**
+   * Check if every pair of adjacent input tokens can be matched by terminals
+   * that are adjacent in some derivation of the root rule, and if the first
+   * and last token can start and end one. This may accept inputs that the
+   * grammar does not accept, but never rejects an acceptable input.
+   *
+   * @param input the input tokens
+   * @return false if the input can not be accepted, true otherwise
+   */
+  public boolean admits(String[] input) {
+    return admits(input, intern(input));
   }
 
+  /** Like admits(String[]), for an already interned input */
+  public boolean admits(String[] input, int[] ids) {
+    return admits(input, ids, RuleBuiltin::getRecognizer);
+  }
+
+  /** Like admits(String[], int[]), using the given recognizers for the
+   *  builtins */
+  public boolean admits(String[] input, int[] ids,
+      Function<RuleBuiltin, Recognizer> recognizers) {
+    return bigrams == null || bigrams.admits(input, ids, recognizers);
+  }
+
+  /** Return the recognizers whose matches have to be added to the chart */
+  public Collection<RuleBuiltin> getBuiltins() {
+    return builtins;
+  }
+
+  public void addBuiltin(RuleBuiltin builtin) {
+    builtins.add(builtin);
+  }
 
   public Collection<RuleToken> getPatternTerminals() {
     return tokenMap.get();
   }
 
+  private PatternSet getPatternSet() {
+    PatternSet result = patternSet;
+    if (result == null) {
+      result = new PatternSet(tokenMap.get(), patternCacheSize);
+      patternSet = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return all pattern terminals that match the given input token. The result
+   * is cached, so repeated tokens are cheap.
+   *
+   * @param token an input token
+   * @return the matching pattern terminals, maybe an empty list
+   */
+  public List<RuleToken> getMatchingPatterns(String token) {
+    return getPatternSet().match(token);
+  }
+
+  /** The statistics of the pattern match cache, for monitoring */
+  public String getPatternCacheStatistics() {
+    return getPatternSet().getCache().toString();
+  }
+
   public Set<RuleToken> getTerminals() {
     return terminals.keySet();
   }
@@ -279,8 +834,98 @@ public class JVoiceXmlGrammar implements Grammar {
     return attributes;
   }
 
+  /** Return the digest of the source this grammar was loaded from, or null
+   *  if it is not known */
+  public byte[] getSourceDigest() {
+    return sourceDigest;
+  }
+
+  public void setSourceDigest(byte[] digest) {
+    sourceDigest = digest;
+  }
+
+  /** Return the other grammars referenced by the rules of this grammar */
+  public Set<URI> getReferences() {
+    return Collections.unmodifiableSet(references);
+  }
+
+  public void addReference(URI grammarReference) {
+    if (! reference.equals(grammarReference)) {
+      references.add(grammarReference);
+    }
+  }
+
+  /** Mark that the symbols of a referenced grammar will be missing, so no
+   *  input can be rejected because of its tokens */
+  public void setIncomplete() {
+    incomplete = true;
+  }
+
+  public boolean isIncomplete() {
+    return incomplete;
+  }
+
+  /** Return the dynamic rule with the given name, null if there is none */
+  public RuleDynamic getDynamicRule(String ruleName) {
+    return dynamicRules.get(ruleName);
+  }
+
+  public Collection<RuleDynamic> getDynamicRules() {
+    return dynamicRules.values();
+  }
+
+  /**
+   * Add and remove phrases of a dynamic rule, see RuleDynamic. The new
+   * phrase list is published atomically: a parse that is running sees the
+   * old phrases, and the next one the new. Use
+   * JVoiceXmlGrammarManager.updateAlternatives to also inform the listeners
+   * of the manager, like the ResultCache.
+   *
+   * @param ruleName the name of the dynamic rule
+   * @param added the phrases to add, with their semantic values; a null
+   *        value means the phrase text is the value. A phrase that exists
+   *        already gets the new value.
+   * @param removed the phrases to remove, before adding
+   * @throws IllegalArgumentException if there is no such dynamic rule
+   */
+  public void updateAlternatives(String ruleName, Map<String, String> added,
+      Collection<String> removed) throws IllegalArgumentException {
+    final RuleDynamic dynamic = dynamicRules.get(ruleName);
+    if (dynamic == null) {
+      throw new IllegalArgumentException("No dynamic rule " + ruleName
+          + " in " + reference);
+    }
+    dynamic.update(added, removed);
+  }
+
+  /** The number of updates of the dynamic rules, which changes whenever the
+   *  phrases change */
+  public long getDynamicGeneration() {
+    long result = 0;
+    for (RuleDynamic d : dynamicRules.values()) {
+      result += d.getGeneration();
+    }
+    return result;
+  }
+
+  /** Take over the phrases of the dynamic rules of an older version of this
+   *  grammar, for the rules that are still dynamic */
+  public void keepDynamicRules(JVoiceXmlGrammar old) {
+    for (Map.Entry<String, RuleDynamic> e : dynamicRules.entrySet()) {
+      final RuleDynamic prev = old.dynamicRules.get(e.getKey());
+      if (prev != null) {
+        e.getValue().takeOver(prev);
+      }
+    }
+  }
+
   public void addSymbols(JVoiceXmlGrammar sub) {
+    if (! imports.add(sub.getReference())) {
+      return;
+    }
+    incomplete |= sub.incomplete;
     terminals.putAll(sub.terminals);
     nonterminals.putAll(sub.nonterminals);
+    builtins.addAll(sub.builtins);
   }
 }
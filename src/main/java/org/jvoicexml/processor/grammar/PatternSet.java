@@ -0,0 +1,94 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.jvoicexml.processor.LruCache;
+
+/**
+ * All pattern terminals of a grammar, with a combined matcher and a cache from
+ * input tokens to the pattern terminals matching them.
+ *
+ * java.util.regex can not report which alternatives of a pattern match, so
+ * the patterns are combined into one alternation that is used to quickly rule
+ * out tokens that match no pattern at all, which is the common case for the
+ * ordinary words of an input. Only if it matches, the single patterns are
+ * tested. The results are cached, the cache is shared by all parses with the
+ * grammar.
+ *
+ * @author Bernd Kiefer
+ */
+class PatternSet {
+
+  /** Patterns with back references can not be combined, group numbers shift */
+  private static final Pattern BACKREF = Pattern.compile("\\\\([1-9]|k<)");
+
+  private final List<RuleToken> patterns;
+
+  /** The alternation of all patterns, null if they could not be combined */
+  private final Pattern combined;
+
+  private final LruCache<String, List<RuleToken>> cache;
+
+  PatternSet(List<RuleToken> terminals, int cacheSize) {
+    patterns = new ArrayList<>(terminals);
+    combined = combine(patterns);
+    cache = new LruCache<>(cacheSize);
+  }
+
+  private static Pattern combine(List<RuleToken> patterns) {
+    if (patterns.size() < 2) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (RuleToken t : patterns) {
+      String p = t.getPattern().pattern();
+      if (BACKREF.matcher(p).find()) {
+        return null;
+      }
+      sb.append(sb.length() == 0 ? "(?:" : "|(?:").append(p).append(')');
+    }
+    try {
+      return Pattern.compile(sb.toString());
+    } catch (PatternSyntaxException ex) {
+      // e.g., the same named group in two patterns
+      return null;
+    }
+  }
+
+  private List<RuleToken> compute(String token) {
+    if (combined != null && ! combined.matcher(token).matches()) {
+      return Collections.emptyList();
+    }
+    List<RuleToken> result = null;
+    for (RuleToken t : patterns) {
+      if (t.getPattern().matcher(token).matches()) {
+        if (result == null) {
+          result = new ArrayList<>(2);
+        }
+        result.add(t);
+      }
+    }
+    return result == null ? Collections.emptyList()
+        : Collections.unmodifiableList(result);
+  }
+
+  /** Return all pattern terminals matching token, maybe an empty list */
+  List<RuleToken> match(String token) {
+    if (patterns.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return cache.computeIfAbsent(token, this::compute);
+  }
+
+  List<RuleToken> getPatterns() {
+    return patterns;
+  }
+
+  LruCache<String, List<RuleToken>> getCache() {
+    return cache;
+  }
+}
@@ -0,0 +1,210 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable phrase list of a RuleDynamic. An update creates a new list,
+ * which shares everything with the old one except for the map objects and
+ * the lists of the phrases with a changed first word, so updating is linear
+ * in the number of first words and changed phrases, not in the number of
+ * phrases.
+ *
+ * @author Bernd Kiefer
+ */
+final class Phrases implements Recognizer {
+
+  private static final class Phrase {
+    /** The folded words */
+    final String[] words;
+    final String text;
+    final String value;
+
+    Phrase(String[] w, String t, String v) {
+      words = w;
+      text = t;
+      value = v;
+    }
+  }
+
+  private final String name;
+
+  private final boolean caseSensitive;
+
+  /** The phrases, by their first folded word */
+  private final Map<String, List<Phrase>> index;
+
+  /** How many phrases contain a folded word, for accepts */
+  private final Map<String, Integer> words;
+
+  private final int size;
+
+  Phrases(String ruleName, boolean isCaseSensitive) {
+    this(ruleName, isCaseSensitive, Collections.emptyMap(),
+        Collections.emptyMap(), 0);
+  }
+
+  private Phrases(String ruleName, boolean isCaseSensitive,
+      Map<String, List<Phrase>> idx, Map<String, Integer> w, int n) {
+    name = ruleName;
+    caseSensitive = isCaseSensitive;
+    index = idx;
+    words = w;
+    size = n;
+  }
+
+  private String fold(String word) {
+    return Tokens.fold(word, caseSensitive);
+  }
+
+  /** Split a phrase into its folded words, null if it is empty */
+  private String[] split(String phrase) {
+    String trimmed = phrase.trim();
+    if (trimmed.isEmpty()) {
+      return null;
+    }
+    String[] result = trimmed.split("\\s+");
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = fold(result[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Return a new list with the given changes: first the removed phrases are
+   * removed, then the added ones are added, replacing equal phrases.
+   *
+   * @param added the new phrases, with their semantic values; a null value
+   *        means the phrase text is its value
+   * @param removed the phrases to remove
+   */
+  Phrases update(Map<String, String> added, Collection<String> removed) {
+    final Map<String, List<Phrase>> idx = new HashMap<>(index);
+    final Map<String, Integer> w = new HashMap<>(words);
+    // the lists that were copied already, and can be changed
+    final Map<List<Phrase>, Boolean> copied = new IdentityHashMap<>();
+    int n = size;
+    for (String phrase : removed) {
+      String[] folded = split(phrase);
+      if (folded != null && remove(idx, w, copied, folded)) {
+        --n;
+      }
+    }
+    for (Map.Entry<String, String> e : added.entrySet()) {
+      String[] folded = split(e.getKey());
+      if (folded == null) {
+        continue;
+      }
+      if (remove(idx, w, copied, folded)) {
+        --n;
+      }
+      List<Phrase> list = writable(idx, copied, folded[0]);
+      list.add(new Phrase(folded, e.getKey().trim(), e.getValue()));
+      for (String word : folded) {
+        w.merge(word, 1, Integer::sum);
+      }
+      ++n;
+    }
+    return new Phrases(name, caseSensitive, idx, w, n);
+  }
+
+  private static List<Phrase> writable(Map<String, List<Phrase>> idx,
+      Map<List<Phrase>, Boolean> copied, String first) {
+    List<Phrase> list = idx.get(first);
+    if (list == null || ! copied.containsKey(list)) {
+      list = list == null ? new ArrayList<>(2) : new ArrayList<>(list);
+      copied.put(list, Boolean.TRUE);
+      idx.put(first, list);
+    }
+    return list;
+  }
+
+  private static boolean remove(Map<String, List<Phrase>> idx,
+      Map<String, Integer> w, Map<List<Phrase>, Boolean> copied,
+      String[] folded) {
+    List<Phrase> list = idx.get(folded[0]);
+    if (list == null) {
+      return false;
+    }
+    for (int i = 0; i < list.size(); ++i) {
+      Phrase p = list.get(i);
+      if (Arrays.equals(p.words, folded)) {
+        list = writable(idx, copied, folded[0]);
+        list.remove(i);
+        if (list.isEmpty()) {
+          idx.remove(folded[0]);
+        }
+        for (String word : folded) {
+          w.computeIfPresent(word, (k, c) -> c == 1 ? null : c - 1);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Return the same phrases with another case sensitivity */
+  Phrases withCaseSensitive(boolean isCaseSensitive) {
+    if (isCaseSensitive == caseSensitive) {
+      return this;
+    }
+    return new Phrases(name, isCaseSensitive).update(get(),
+        Collections.emptyList());
+  }
+
+  boolean isCaseSensitive() {
+    return caseSensitive;
+  }
+
+  /** Return the phrases with their values, null if the text is the value */
+  Map<String, String> get() {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (List<Phrase> list : index.values()) {
+      for (Phrase p : list) {
+        result.put(p.text, p.value);
+      }
+    }
+    return result;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean accepts(String token) {
+    return words.containsKey(fold(token));
+  }
+
+  @Override
+  public void match(String[] input, int start, Match result) {
+    List<Phrase> list = index.get(fold(input[start]));
+    if (list == null) {
+      return;
+    }
+    for (Phrase p : list) {
+      if (start + p.words.length > input.length) {
+        continue;
+      }
+      int i = 1;
+      while (i < p.words.length && p.words[i].equals(fold(input[start + i]))) {
+        ++i;
+      }
+      if (i == p.words.length) {
+        result.found(start + i, p.value != null ? p.value : p.text);
+      }
+    }
+  }
+}
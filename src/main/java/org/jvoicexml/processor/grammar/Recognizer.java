@@ -0,0 +1,55 @@
+package org.jvoicexml.processor.grammar;
+
+/**
+ * A terminal recognizer implemented in Java, which a grammar can reference
+ * like a rule, with the URI builtin:name. All matches in the input are added
+ * to the chart as passive edges before parsing, together with their semantic
+ * value, so large and ambiguous grammars for numbers, dates etc. can be
+ * replaced by a single chart edge per match.
+ *
+ * Implementations are found with java.util.ServiceLoader, or can be added
+ * with Recognizers.register. They must be thread safe.
+ *
+ * @author Bernd Kiefer
+ */
+public interface Recognizer {
+
+  /** Receives the matches of a recognizer */
+  @FunctionalInterface
+  interface Match {
+    /**
+     * Report a match of the input tokens from the start position up to, but
+     * not including, end.
+     *
+     * @param end the end of the match, greater than the start position
+     * @param value the semantic value of the match: null, a String, Boolean
+     *        or Number, or a Map from String to such values, or a List of
+     *        them
+     */
+    void found(int end, Object value);
+  }
+
+  /** The name of the recognizer, which is referenced as builtin:name. It must
+   *  be usable as JavaScript identifier, for rules.name */
+  String getName();
+
+  /**
+   * Return false if the token can not be part of any match. This is used to
+   * reject inputs before parsing, so it must return true for every token of
+   * every match.
+   */
+  default boolean accepts(String token) {
+    return true;
+  }
+
+  /**
+   * Report all matches that start at the given position. At most one value
+   * should be reported for every end position, the chart only keeps the
+   * first one.
+   *
+   * @param input the input tokens
+   * @param start the position of the first token of the match
+   * @param result receives the matches
+   */
+  void match(String[] input, int start, Match result);
+}
@@ -0,0 +1,90 @@
+package org.jvoicexml.processor.grammar;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of the recognizers that grammars can reference with
+ * builtin:name. It contains the recognizers in BuiltinRecognizers, and those
+ * found by java.util.ServiceLoader, which replace builtins with the same
+ * name.
+ *
+ * A recognizer registered under an existing name replaces the old one, also
+ * in the grammars loaded before.
+ *
+ * @author Bernd Kiefer
+ */
+public final class Recognizers {
+  private static final Logger log = LoggerFactory.getLogger(Recognizers.class);
+
+  /** The URI scheme of references to recognizers */
+  public static final String SCHEME = "builtin";
+
+  private static final Pattern validName =
+      Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  private static final Map<String, RuleBuiltin> builtins =
+      new ConcurrentHashMap<>();
+
+  static {
+    for (Recognizer r : BuiltinRecognizers.all()) {
+      register(r);
+    }
+    try {
+      for (Recognizer r : ServiceLoader.load(Recognizer.class)) {
+        register(r);
+      }
+    } catch (ServiceConfigurationError ex) {
+      log.error("Loading recognizers failed: {}", ex.getMessage());
+    }
+  }
+
+  private Recognizers() {}
+
+  /**
+   * Add a recognizer, or replace the one with the same name.
+   *
+   * @throws IllegalArgumentException if the name is not a valid identifier
+   */
+  public static synchronized void register(Recognizer r) {
+    String name = r.getName();
+    if (name == null || ! validName.matcher(name).matches()) {
+      throw new IllegalArgumentException("Invalid recognizer name: " + name);
+    }
+    RuleBuiltin old = builtins.get(name);
+    if (old != null) {
+      old.setRecognizer(r);
+    } else {
+      builtins.put(name, new RuleBuiltin(r));
+    }
+    log.debug("Registered recognizer {}: {}", name, r.getClass().getName());
+  }
+
+  /** Return true if the URI references a recognizer */
+  public static boolean isBuiltin(URI uri) {
+    return uri != null && SCHEME.equals(uri.getScheme());
+  }
+
+  /** Return the component for the recognizer referenced by the URI, or null
+   *  if there is none */
+  public static RuleBuiltin get(URI uri) {
+    return isBuiltin(uri) ? builtins.get(uri.getSchemeSpecificPart()) : null;
+  }
+
+  /** Return the component for the recognizer with the given name, or null */
+  public static RuleBuiltin get(String name) {
+    return builtins.get(name);
+  }
+
+  public static Collection<RuleBuiltin> getAll() {
+    return builtins.values();
+  }
+}
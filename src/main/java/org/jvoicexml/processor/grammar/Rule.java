@@ -63,6 +63,13 @@ public class Rule {
         ruleComponent.assignName(ruleName);
     }
 
+    /** A rule whose components are named already, from a GrammarImage */
+    Rule(String ruleName, int scope, RuleComponent ruleComponent) {
+        this.ruleName = ruleName;
+        this.ruleComponent = ruleComponent;
+        this.scope = scope;
+    }
+
     public RuleComponent getRuleComponent() {
         return ruleComponent;
     }
@@ -0,0 +1,93 @@
+package org.jvoicexml.processor.grammar;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jvoicexml.processor.GrammarManager;
+
+/**
+ * The right hand side of a builtin:name rule, a terminal whose matches are
+ * found by a Recognizer. There is one instance per name, see Recognizers.
+ *
+ * @author Bernd Kiefer
+ */
+public class RuleBuiltin extends RuleComponent {
+
+  private final String builtin;
+
+  private volatile Recognizer recognizer;
+
+  private final Rule rule;
+
+  RuleBuiltin(Recognizer r) {
+    builtin = r.getName();
+    recognizer = r;
+    leftCorner = new HashSet<>();
+    leftCorner.add(this);
+    rule = new Rule(builtin, this, Rule.PUBLIC);
+  }
+
+  public Recognizer getRecognizer() {
+    return recognizer;
+  }
+
+  void setRecognizer(Recognizer r) {
+    recognizer = r;
+  }
+
+  /** Return the name of the recognizer */
+  public String getBuiltinName() {
+    return builtin;
+  }
+
+  /** Return the URI this builtin is referenced with */
+  public URI getURI() {
+    return URI.create(Recognizers.SCHEME + ":" + builtin);
+  }
+
+  /** Return the rule a reference to this builtin resolves to */
+  public Rule getRule() {
+    return rule;
+  }
+
+  @Override
+  void assignName(String myName) {
+    name = myName + "_b";
+  }
+
+  @Override
+  public String toStringXML() {
+    return "<ruleref uri=\"" + getURI() + "\"/>";
+  }
+
+  @Override
+  public String toStringABNF() {
+    return "$<" + getURI() + ">";
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    Boolean b = eq(obj);
+    if (b != null)
+      return b;
+    return builtin.equals(((RuleBuiltin) obj).builtin);
+  }
+
+  @Override
+  public int hashCode() {
+    return builtin.hashCode() + 31;
+  }
+
+  @Override
+  RuleComponent cleanup(Map<RuleToken, RuleToken> terminals,
+      Map<RuleComponent, RuleComponent> nonterminals) {
+    return this;
+  }
+
+  @Override
+  protected Set<RuleComponent> computeLeftCorner(GrammarManager mgr) {
+    return leftCorner;
+  }
+}
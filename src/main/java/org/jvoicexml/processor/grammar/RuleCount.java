@@ -110,6 +110,10 @@ public class RuleCount extends RuleComponent {
     return ruleComponent;
   }
 
+  void setRuleComponent(RuleComponent c) {
+    ruleComponent = c;
+  }
+
   @Override
   void assignName(String myName) {
     name = myName + "_c";
@@ -0,0 +1,138 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The right hand side of a dynamic rule, a list of phrases that can be
+ * changed while the grammar is in use. A rule is dynamic if its name is
+ * listed in the "dynamic" meta of its grammar, e.g.,
+ * <code>meta "dynamic" is "contact product";</code>, and it may only
+ * contain tokens, which are its initial phrases.
+ *
+ * Like a RuleBuiltin, it is a single terminal for the parsers, whose matches
+ * are found by its phrase list. Its left corner never changes, so changing
+ * the phrases does not touch the token maps and left corners of the grammars
+ * using it. The phrase list is immutable and replaced as a whole, a parse
+ * sees either the old or the new list.
+ *
+ * @author Bernd Kiefer
+ */
+public class RuleDynamic extends RuleBuiltin {
+
+  /** The key of the meta listing the dynamic rules of a grammar */
+  public static final String META = "dynamic";
+
+  /** The number of updates, to tell apart grammars with equal sources */
+  private volatile long generation = 0;
+
+  RuleDynamic(String ruleName, boolean caseSensitive,
+      Map<String, String> phrases) {
+    super(new Phrases(ruleName, caseSensitive)
+        .update(phrases, Collections.emptyList()));
+  }
+
+  private Phrases phrases() {
+    return (Phrases) getRecognizer();
+  }
+
+  /** Return the name of the rule */
+  public String getRuleName() {
+    return getBuiltinName();
+  }
+
+  /**
+   * Remove and add phrases, see JVoiceXmlGrammar.updateAlternatives. The
+   * runtime is linear in the number of changed phrases and of the distinct
+   * first words of all phrases.
+   */
+  public synchronized void update(Map<String, String> added,
+      Collection<String> removed) {
+    setRecognizer(phrases().update(added, removed));
+    ++generation;
+  }
+
+  /**
+   * Return a recognizer for the given phrases, with the name and case
+   * sensitivity of this rule, which can replace its phrases for a single
+   * parse. The rule is not changed.
+   */
+  public Recognizer withPhrases(Map<String, String> phrases) {
+    return new Phrases(getRuleName(), isCaseSensitive())
+        .update(phrases, Collections.emptyList());
+  }
+
+  /** Take over the phrases of another version of this rule */
+  synchronized void takeOver(RuleDynamic old) {
+    setRecognizer(old.phrases().withCaseSensitive(phrases().isCaseSensitive()));
+    generation = old.generation;
+  }
+
+  synchronized void setCaseSensitive(boolean caseSensitive) {
+    setRecognizer(phrases().withCaseSensitive(caseSensitive));
+  }
+
+  public boolean isCaseSensitive() {
+    return phrases().isCaseSensitive();
+  }
+
+  long getGeneration() {
+    return generation;
+  }
+
+  void setGeneration(long gen) {
+    generation = gen;
+  }
+
+  /** Return the current phrases, with their values, null if the phrase text
+   *  is the value */
+  public Map<String, String> getPhrases() {
+    return phrases().get();
+  }
+
+  public int size() {
+    return phrases().size();
+  }
+
+  @Override
+  void assignName(String myName) {
+    name = myName + "_d";
+  }
+
+  private String toString(String separator, String quote) {
+    Map<String, String> current = getPhrases();
+    if (current.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String p : current.keySet()) {
+      sb.append(sb.length() == 0 ? "" : separator).append(quote).append(p)
+          .append(quote);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toStringXML() {
+    String alts = toString("</item><item>", "");
+    return alts == null ? "<ruleref special=\"VOID\"/>"
+        : "<one-of><item>" + alts + "</item></one-of>";
+  }
+
+  @Override
+  public String toStringABNF() {
+    String alts = toString(" | ", "\"");
+    return alts == null ? "$VOID" : "(" + alts + ")";
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return this == obj;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(this);
+  }
+}
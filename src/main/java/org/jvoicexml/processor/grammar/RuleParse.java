@@ -97,6 +97,14 @@ public class RuleParse extends RuleComponent {
     return ruleReference;
   }
 
+  /** Return the name of the rule for rules.name, which is the name of the
+   *  recognizer for builtin references */
+  public String getRuleName() {
+    return parse instanceof RuleBuiltin
+        ? ((RuleBuiltin) parse).getBuiltinName()
+        : ruleReference.getRuleName();
+  }
+
   @Override
   void assignName(String myName) {
     name = myName + "_p";
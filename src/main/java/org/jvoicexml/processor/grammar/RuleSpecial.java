@@ -90,19 +90,23 @@ public class RuleSpecial extends RuleComponent {
     if (this == GARBAGE) {
       if (nonterminals.containsKey(this))
         return nonterminals.get(this);
-      if (! terminals.containsKey(GARBTOK)) {
-        terminals.put(GARBTOK, GARBTOK);
-      } else {
-        leftCorner.remove(GARBTOK);
-        leftCorner.remove(GARBRULE);
-        GARBTOK = terminals.get(GARBTOK);
-        GARBRULE = new RuleCount(GARBTOK, 1);
-        nonterminals.put(GARBRULE, GARBRULE);
-        nonterminals.put(this, GARBRULE);
-        leftCorner.add(GARBTOK);
-        leftCorner.add(GARBRULE);
+      // grammars may be loaded in parallel
+      synchronized (RuleSpecial.class) {
+        if (! terminals.containsKey(GARBTOK)) {
+          terminals.put(GARBTOK, GARBTOK);
+        } else {
+          GARBTOK = terminals.get(GARBTOK);
+          GARBRULE = new RuleCount(GARBTOK, 1);
+          nonterminals.put(GARBRULE, GARBRULE);
+          nonterminals.put(this, GARBRULE);
+          // replaced, not modified, it may be in use
+          final Set<RuleComponent> lc = new HashSet<>();
+          lc.add(GARBTOK);
+          lc.add(GARBRULE);
+          leftCorner = lc;
+        }
+        return GARBRULE;
       }
-      return GARBRULE;
     }
     return this;
   }
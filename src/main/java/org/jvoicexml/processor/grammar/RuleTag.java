@@ -45,6 +45,9 @@ import org.jvoicexml.processor.GrammarManager;
 public class RuleTag extends RuleComponent {
   private Object tag;
 
+  /** The compiled form of the tag, owned by the semantics interpreter */
+  private volatile Object compiled;
+
   public RuleTag(Object tag) {
     this.tag = tag;
   }
@@ -53,6 +56,14 @@ public class RuleTag extends RuleComponent {
     return tag;
   }
 
+  public Object getCompiled() {
+    return compiled;
+  }
+
+  public void setCompiled(Object compiled) {
+    this.compiled = compiled;
+  }
+
   @Override
   void assignName(String myName) {
     name = myName + "_{}";
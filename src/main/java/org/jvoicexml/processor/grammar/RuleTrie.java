@@ -0,0 +1,189 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * A large one-of whose alternatives only contain tokens, each optionally
+ * followed by a tag, stored in a CompactTrie instead of one RuleAlternative,
+ * RuleToken and left corner per alternative, see
+ * JVoiceXmlGrammar.trieThreshold.
+ *
+ * Like a RuleBuiltin, it is a single terminal for the parsers. A match of an
+ * entry is a chart node whose only child is the tag of the entry, if it has
+ * one, which is executed where the tag of the alternative would be. The
+ * weights are kept, but like those of a RuleAlternative, they are not used
+ * for ranking trees.
+ *
+ * Only the folded words are stored, so the printed items of a grammar that
+ * is not case sensitive are in lower case, which does not change what they
+ * match.
+ *
+ * @author Bernd Kiefer
+ */
+public class RuleTrie extends RuleBuiltin {
+
+  /** The references of a tag to the components before it, $$n or $%n */
+  private static final Pattern PRECEDING = Pattern.compile("\\$(\\$|%)[0-9]+");
+
+  RuleTrie(CompactTrie trie) {
+    super(trie);
+  }
+
+  /**
+   * Return a trie for the alternatives, or null if one of them contains
+   * something else than tokens, followed by a tag that does not use $$n or
+   * $%n, which refer to the components before it. Other uses of $, e.g., in
+   * strings or variable names, are allowed.
+   */
+  static RuleTrie compile(String ruleName, RuleAlternatives alternatives,
+      boolean caseSensitive) {
+    final CompactTrie trie = new CompactTrie(ruleName, caseSensitive);
+    // equal tags are compiled once
+    final Map<String, RuleTag> tags = new HashMap<>();
+    for (RuleAlternative alt : alternatives.getAlternatives()) {
+      final RuleComponent c = alt.getRuleComponent();
+      final List<RuleComponent> parts = c instanceof RuleSequence
+          ? ((RuleSequence) c).getRuleComponents()
+          : Collections.singletonList(c);
+      RuleTag tag = null;
+      int end = parts.size();
+      if (end > 1 && parts.get(end - 1) instanceof RuleTag) {
+        final RuleTag own = (RuleTag) parts.get(--end);
+        if (own.getTag() == null
+            || PRECEDING.matcher(own.getTag().toString()).find()) {
+          return null;
+        }
+        tag = tags.computeIfAbsent(own.getTag().toString(), k -> own);
+      }
+      final String[] tokens = tokens(parts.subList(0, end));
+      if (tokens == null) {
+        return null;
+      }
+      trie.add(tokens, alt.weight, tag);
+    }
+    trie.trim();
+    return new RuleTrie(trie);
+  }
+
+  /** Return the words of the components, null if one is not a plain token */
+  private static String[] tokens(List<RuleComponent> parts) {
+    int n = 0;
+    for (RuleComponent part : parts) {
+      if (! (part instanceof RuleToken)
+          || ((RuleToken) part).getPattern() != null) {
+        return null;
+      }
+      n += ((RuleToken) part).getTokens().length;
+    }
+    if (n == 0) {
+      return null;
+    }
+    final String[] result = new String[n];
+    n = 0;
+    for (RuleComponent part : parts) {
+      for (String token : ((RuleToken) part).getTokens()) {
+        result[n++] = token;
+      }
+    }
+    return result;
+  }
+
+  CompactTrie getTrie() {
+    return (CompactTrie) getRecognizer();
+  }
+
+  /** Return the number of alternatives */
+  public int size() {
+    return getTrie().size();
+  }
+
+  /** Return a rough estimate of the memory in bytes the trie needs */
+  public long estimateSize() {
+    return getTrie().estimateSize();
+  }
+
+  /** Return the distinct tags of the entries */
+  public Set<RuleTag> getTags() {
+    final Set<RuleTag> result =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    final CompactTrie trie = getTrie();
+    for (int e = 0; e < trie.size(); ++e) {
+      if (trie.getTag(e) != null) {
+        result.add(trie.getTag(e));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Report the end position and the tag, null if it has none, of every entry
+   * that matches the input at start.
+   *
+   * @param input the input, as returned by JVoiceXmlGrammar.intern(RuleTrie,
+   *        String[], int[])
+   * @param start the position where the match starts
+   */
+  public void match(int[] input, int start,
+      BiConsumer<Integer, RuleTag> result) {
+    getTrie().matchEntries(input, start, result);
+  }
+
+  @Override
+  void assignName(String myName) {
+    name = myName + "_t";
+  }
+
+  @Override
+  public String toStringXML() {
+    final CompactTrie trie = getTrie();
+    final StringBuilder sb = new StringBuilder("<one-of>");
+    for (int e = 0; e < trie.size(); ++e) {
+      sb.append("<item");
+      if (trie.getWeight(e) != RuleAlternatives.NORM_WEIGHT) {
+        sb.append(" weight=\"").append(trie.getWeight(e)).append('"');
+      }
+      sb.append('>').append(String.join(" ", trie.getTokens(e)));
+      if (trie.getTag(e) != null) {
+        sb.append(trie.getTag(e).toStringXML());
+      }
+      sb.append("</item>");
+    }
+    return sb.append("</one-of>").toString();
+  }
+
+  @Override
+  public String toStringABNF() {
+    final CompactTrie trie = getTrie();
+    final StringBuilder sb = new StringBuilder("(");
+    for (int e = 0; e < trie.size(); ++e) {
+      if (e > 0) {
+        sb.append(" | ");
+      }
+      if (trie.getWeight(e) != RuleAlternatives.NORM_WEIGHT) {
+        sb.append('/').append(trie.getWeight(e)).append("/ ");
+      }
+      sb.append('"').append(String.join(" ", trie.getTokens(e))).append('"');
+      if (trie.getTag(e) != null) {
+        sb.append(' ').append(trie.getTag(e).toStringABNF());
+      }
+    }
+    return sb.append(')').toString();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return this == obj;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(this);
+  }
+}
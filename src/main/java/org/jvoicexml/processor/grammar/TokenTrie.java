@@ -0,0 +1,95 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A trie over token sequences, where the tokens are given as vocabulary IDs.
+ * All sequences starting at some input position are found in one walk over
+ * the input, which costs time proportional to the length of the longest
+ * match, independent of how many sequences share a prefix.
+ *
+ * The children of a node are kept in a sorted array of IDs, which is searched
+ * binarily. The arrays grow geometrically, and since new words get larger
+ * IDs, most children are appended at the end, so adding the k children of a
+ * node, e.g., the root, takes time linear in k in practice.
+ *
+ * @param <T> the type of values stored for a token sequence
+ */
+class TokenTrie<T> {
+
+  private static final int[] NO_KEYS = {};
+
+  private static final Object[] NO_CHILDREN = {};
+
+  private int[] keys = NO_KEYS;
+
+  /** The children, as Object to avoid a generic array */
+  private Object[] children = NO_CHILDREN;
+
+  /** The number of used slots in keys and children */
+  private int size = 0;
+
+  private List<T> values;
+
+  @SuppressWarnings("unchecked")
+  private TokenTrie<T> child(int i) {
+    return (TokenTrie<T>) children[i];
+  }
+
+  private TokenTrie<T> getOrAdd(int key) {
+    int i = size == 0 || keys[size - 1] < key ? -size - 1
+        : Arrays.binarySearch(keys, 0, size, key);
+    if (i >= 0) {
+      return child(i);
+    }
+    i = -i - 1;
+    if (size == keys.length) {
+      final int capacity = Math.max(2, 2 * size);
+      keys = Arrays.copyOf(keys, capacity);
+      children = Arrays.copyOf(children, capacity);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(children, i, children, i + 1, size - i);
+    keys[i] = key;
+    final TokenTrie<T> result = new TokenTrie<T>();
+    children[i] = result;
+    ++size;
+    return result;
+  }
+
+  /** Add value for the sequence of token IDs */
+  public void add(int[] tokens, T value) {
+    TokenTrie<T> node = this;
+    for (int token : tokens) {
+      node = node.getOrAdd(token);
+    }
+    if (node.values == null) {
+      node.values = new ArrayList<>(1);
+    }
+    node.values.add(value);
+  }
+
+  /**
+   * Find all sequences matching the input IDs starting at start, and pass the
+   * value and the end position of the match to the consumer.
+   */
+  public void match(int[] input, int start,
+      BiConsumer<? super T, Integer> consumer) {
+    TokenTrie<T> node = this;
+    for (int pos = start; pos < input.length && node.size > 0; ++pos) {
+      int i = Arrays.binarySearch(node.keys, 0, node.size, input[pos]);
+      if (i < 0) {
+        return;
+      }
+      node = node.child(i);
+      if (node.values != null) {
+        for (T value : node.values) {
+          consumer.accept(value, pos + 1);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package org.jvoicexml.processor.grammar;
+
+import java.util.Locale;
+
+/**
+ * Helpers shared by the structures that match and index tokens.
+ *
+ * @author Bernd Kiefer
+ */
+final class Tokens {
+
+  private Tokens() {}
+
+  /** Return the word as it is compared, case-folded if not caseSensitive */
+  static String fold(String word, boolean caseSensitive) {
+    return caseSensitive ? word
+        : word.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+  }
+
+  /** Mix the bits of a key made of token or node IDs, the finalizer of
+   *  MurmurHash3 */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
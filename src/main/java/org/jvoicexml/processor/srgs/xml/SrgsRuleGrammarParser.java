@@ -26,6 +26,7 @@
 
 package org.jvoicexml.processor.srgs.xml;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -35,9 +36,10 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.jvoicexml.processor.grammar.Rule;
 import org.jvoicexml.processor.grammar.RuleAlternatives;
@@ -50,11 +52,6 @@ import org.jvoicexml.processor.grammar.RuleTag;
 import org.jvoicexml.processor.grammar.RuleToken;
 import org.jvoicexml.processor.srgs.GrammarException;
 import org.jvoicexml.processor.srgs.RuleGrammarParser;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -62,13 +59,17 @@ import org.xml.sax.SAXException;
 /**
  * A parser for SRGS grammars.
  *
+ * The rules are built in one pass over a StAX stream, no document is kept in
+ * memory. External entities, like the DTD, are replaced by empty content.
+ *
  * @author Renato Cassaca
  * @author Dirk Schnelle-Walka
  * @version $Revision: 1370 $
  */
 public class SrgsRuleGrammarParser extends RuleGrammarParser {
 
-    private static EntityResolver entityResolver = new EmptyEntityResolver();
+    /** Configured once, creating readers is thread safe */
+    private static final XMLInputFactory factory = createFactory();
 
     public static class EmptyEntityResolver implements EntityResolver {
         public InputSource resolveEntity(String publicId, String systemId)
@@ -77,27 +78,40 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
         }
     }
 
+    private static XMLInputFactory createFactory() {
+        final XMLInputFactory f = XMLInputFactory.newFactory();
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        f.setProperty(XMLInputFactory.IS_COALESCING, false);
+        f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+        f.setXMLResolver((publicId, systemId, baseURI, namespace)
+            -> new ByteArrayInputStream(new byte[0]));
+        return f;
+    }
+
     public SrgsRuleGrammarParser() {
       super();
     }
 
     public List<Rule> load(final Reader reader) throws URISyntaxException, GrammarException {
-        final InputSource source = new InputSource(reader);
-        return load(source);
+        try {
+            return load(factory.createXMLStreamReader(reader));
+        } catch (XMLStreamException ex) {
+            throw new GrammarException(ex.getMessage(), ex);
+        }
     }
 
     public List<Rule> load(final InputStream stream) throws URISyntaxException, GrammarException {
-        final InputSource source = new InputSource(stream);
-        return load(source);
+        try {
+            return load(factory.createXMLStreamReader(stream));
+        } catch (XMLStreamException ex) {
+            throw new GrammarException(ex.getMessage(), ex);
+        }
     }
 
     public List<Rule> loadRule(final Reader reader) {
         try {
-            final DocumentBuilder builder = DocumentBuilderFactory
-                    .newInstance().newDocumentBuilder();
-            builder.setEntityResolver(entityResolver);
-            final InputSource source = new InputSource(reader);
-            return parseGrammar(builder.parse(source));
+            return loadRule(factory.createXMLStreamReader(reader));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -106,117 +120,192 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
 
     public List<Rule> loadRule(InputStream stream) {
         try {
-            final DocumentBuilderFactory factory = DocumentBuilderFactory
-                    .newInstance();
-            final DocumentBuilder builder = factory.newDocumentBuilder();
-            builder.setEntityResolver(entityResolver);
-            return parseGrammar(builder.parse(new InputSource(stream)));
+            return loadRule(factory.createXMLStreamReader(stream));
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    private List<Rule> load(final InputSource inputSource)
+    /** Parse a document whose root element is a rule */
+    private List<Rule> loadRule(final XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException, GrammarException {
+        try {
+            return parseGrammar(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private List<Rule> load(final XMLStreamReader reader)
             throws URISyntaxException, GrammarException {
         try {
-            final DocumentBuilderFactory factory = DocumentBuilderFactory
-                    .newInstance();
-            final DocumentBuilder builder = factory.newDocumentBuilder();
-            builder.setEntityResolver(entityResolver);
-
-            final Document document = builder.parse(inputSource);
-            Node grammarNode = document.getFirstChild();
-            while(! grammarNode.getNodeName().equalsIgnoreCase("grammar")
-                || ! grammarNode.hasAttributes()
-                || grammarNode.getAttributes().getNamedItem("version") == null) {
-              grammarNode = grammarNode.getNextSibling();
+            while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip prolog
+            }
+            if (! getName(reader).equalsIgnoreCase("grammar")
+                || getAttribute(reader, "version") == null) {
+              throw new GrammarException("No grammar element with version.");
             }
 
             // version attribute has been checked, now comes mode etc.
             @SuppressWarnings("unused")
-            String mode = null;
-            Node modeNode = grammarNode.getAttributes().getNamedItem("mode");
-            if (modeNode == null || (mode = modeNode.getTextContent()).equals("voice")) {
+            String mode = getAttribute(reader, "mode");
+            if (mode == null || mode.equals("voice")) {
               mode = "voice";
-              if (grammarNode.getAttributes().getNamedItem("xml:lang") == null) {
+              if (getAttribute(reader, "xml:lang") == null) {
                 throw new GrammarException("No language for mode voice specified.");
               }
             }
             /*
-            if (grammarNode.getAttributes().getNamedItem("root") == null) {
+            if (getAttribute(reader, "root") == null) {
               throw new GrammarException("No root rule specified.");
             }
             */
-            if (grammarNode.getAttributes().getNamedItem("xmlns") == null) {
+            if (getAttribute(reader, "xmlns") == null) {
               throw new GrammarException("No namespace specified.");
             }
 
-            final List<Rule> rules = parseGrammar(grammarNode);
-
             // Extract header from grammar
-            final NamedNodeMap docAttributes = grammarNode.getAttributes();
-            for (int i = 0; docAttributes != null && i < docAttributes.getLength(); i++) {
-                final Node node = docAttributes.item(i);
-                attributes.put(node.getNodeName(), node.getNodeValue());
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                attributes.put(getNamespaceName(reader.getNamespacePrefix(i)),
+                    reader.getNamespaceURI(i));
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.put(getName(reader.getAttributePrefix(i),
+                    reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
             }
 
-            return rules;
-        } catch (ParserConfigurationException ex) {
-            ex.printStackTrace();
-            return null;
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            return null;
-        } catch (SAXException ex) {
-            ex.printStackTrace();
-            return null;
+            return parseGrammar(reader);
+        } catch (XMLStreamException ex) {
+            throw new GrammarException(ex.getMessage(), ex);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                // nothing to release
+            }
         }
     }
 
-    private List<Rule> parseGrammar(Node grammarNode) throws URISyntaxException {
+    /** Read the rules up to the end of the current element */
+    private List<Rule> parseGrammar(XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException, GrammarException {
         List<Rule> rules = new ArrayList<Rule>();
-        NodeList childNodes = grammarNode.getChildNodes();
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            final Node child = childNodes.item(i);
-            final String nodeName = child.getNodeName();
-            if (!nodeName.equalsIgnoreCase("rule")) {
-                continue;
-            }
-            final NamedNodeMap attributes = child.getAttributes();
-            final String ruleId = getAttribute(attributes, "id");
-            int scope = Rule.PRIVATE;
-            final String scopeStr = getAttribute(attributes, "scope");
-            if (scopeStr != null) {
-                if (scopeStr.equalsIgnoreCase("public")) {
-                    scope = Rule.PUBLIC;
+        while (true) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (!getName(reader).equalsIgnoreCase("rule")) {
+                    skip(reader);
+                    continue;
+                }
+                final String ruleId = getAttribute(reader, "id");
+                int scope = Rule.PRIVATE;
+                final String scopeStr = getAttribute(reader, "scope");
+                if (scopeStr != null) {
+                    if (scopeStr.equalsIgnoreCase("public")) {
+                        scope = Rule.PUBLIC;
+                    }
                 }
+
+                final List<RuleComponent> components =
+                    evalChildNodes(reader, null);
+                if (components.size() == 1) {
+                    final Rule rule = new Rule(ruleId, components.get(0), scope);
+                    rules.add(rule);
+                } else if (components.size() > 1) {
+                    final RuleSequence rs =
+                        new RuleSequence(new ArrayList<RuleComponent>(components));
+                    Rule rule = new Rule(ruleId, rs, scope);
+                    rules.add(rule);
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+            case XMLStreamConstants.END_DOCUMENT:
+                return rules;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static String getName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty()
+            ? localName : prefix + ':' + localName;
+    }
+
+    /** The name of the attribute that declares the namespace prefix */
+    private static String getNamespaceName(String prefix) {
+        return prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+    }
+
+    private static String getName(XMLStreamReader reader) {
+        return getName(reader.getPrefix(), reader.getLocalName());
+    }
+
+    /** Return the value of an attribute of the current element, by its
+     *  qualified name, or null */
+    private String getAttribute(XMLStreamReader reader, String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (name.equals(getName(reader.getAttributePrefix(i),
+                reader.getAttributeLocalName(i)))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        // namespace declarations are attributes, too
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            if (name.equals(getNamespaceName(reader.getNamespacePrefix(i)))) {
+                return reader.getNamespaceURI(i);
             }
+        }
+        return null;
+    }
 
-            final List<RuleComponent> components = evalChildNodes(child);
-            if (components.size() == 1) {
-                final Rule rule = new Rule(ruleId, components.get(0), scope);
-                rules.add(rule);
-            } else if (components.size() > 1) {
-                final RuleSequence rs =
-                    new RuleSequence(new ArrayList<RuleComponent>(components));
-                Rule rule = new Rule(ruleId, rs, scope);
-                rules.add(rule);
+    /** Skip the rest of the current element */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1; depth > 0;) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                ++depth;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                --depth;
+                break;
+            default:
+                break;
             }
         }
-        return rules;
     }
 
-    private String getAttribute(NamedNodeMap attributes, String name) {
-        Node attribute = attributes.getNamedItem(name);
-        if (attribute == null) {
-            return null;
+    /** Return all text in the rest of the current element */
+    private static String getTextContent(XMLStreamReader reader)
+            throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        for (int depth = 1; depth > 0;) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                ++depth;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                --depth;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                text.append(reader.getTextCharacters(), reader.getTextStart(),
+                    reader.getTextLength());
+                break;
+            default:
+                break;
+            }
         }
-        return attribute.getNodeValue();
+        return text.toString();
     }
 
-    private RuleComponent evalNode(final Text node) {
-        final String text = node.getWholeText().trim();
+    private RuleComponent evalText(final StringBuilder whole) {
+        final String text = whole.toString().trim();
+        whole.setLength(0);
         if (text.length() == 0) {
             return null;
         }
@@ -234,37 +323,28 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
         return new RuleSequence(toks);
     }
 
-    private RuleComponent evalOneOf(final Node node) throws URISyntaxException {
+    private RuleComponent evalOneOf(final XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException, GrammarException {
+        final String langStr = getAttribute(reader, "xml:lang");
         final RuleAlternatives res = new RuleAlternatives();
-        final NodeList children = node.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            final Node child = children.item(i);
-            final RuleComponent component = evalNode(child);
-            if (component != null) {
-                final String weightStr = getAttribute(child.getAttributes(), "weight");
-                if (weightStr == null) {
-                    res.addAlternative(component);
-                } else {
-                    res.addAlternative(component, Double.parseDouble(weightStr));
-                }
-            }
-        }
-
-        return setLanguage(res, node.getAttributes());
+        evalChildNodes(reader, res);
+        return setLanguage(res, langStr);
     }
 
-    private RuleComponent setLanguage(RuleComponent c, final NamedNodeMap attributes) {
-      final String langStr = getAttribute(attributes, "xml:lang");
+    private RuleComponent setLanguage(RuleComponent c, final String langStr) {
       if (langStr != null)
         c.setLanguage(langStr);
       return c;
     }
 
 
-    private RuleComponent evalItem(final Node node) throws URISyntaxException {
-        final NamedNodeMap attributes = node.getAttributes();
+    private RuleComponent evalItem(final XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException, GrammarException {
+        final String langStr = getAttribute(reader, "xml:lang");
+        final String repeatStr = getAttribute(reader, "repeat");
+        final String repeatProbStr = getAttribute(reader, "repeat-prob");
 
-        final List<RuleComponent> components = evalChildNodes(node);
+        final List<RuleComponent> components = evalChildNodes(reader, null);
         RuleComponent component;
         if (components.size() == 1) {
             component = components.get(0);
@@ -277,7 +357,6 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
         int repeatMin = -1;
         int repeatMax = -1;
         double repeatProb = -1;
-        final String repeatStr = getAttribute(attributes, "repeat");
         if (repeatStr != null) {
             int toIndex = repeatStr.indexOf('-');
             if (toIndex < 0) {
@@ -295,7 +374,6 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
             }
         }
 
-        final String repeatProbStr = getAttribute(attributes, "repeat-prob");
         if (repeatProbStr != null) {
             repeatProb = Double.parseDouble(repeatProbStr);
         }
@@ -313,12 +391,15 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
             }
         }
 
-        return setLanguage(component, attributes);
+        return setLanguage(component, langStr);
     }
 
-    private RuleComponent evalReference(final Node node) throws URISyntaxException {
-        final NamedNodeMap attributes = node.getAttributes();
-        final String specialStr = getAttribute(attributes, "special");
+    private RuleComponent evalReference(final XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException {
+        final String specialStr = getAttribute(reader, "special");
+        final String uriStr = getAttribute(reader, "uri");
+        final String typeStr = getAttribute(reader, "type");
+        skip(reader);
         if (specialStr != null) {
             if (specialStr.equalsIgnoreCase("NULL")) {
                 return RuleSpecial.NULL;
@@ -328,14 +409,12 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
                 return RuleSpecial.GARBAGE;
             }
         } else {
-            final String uriStr = getAttribute(attributes, "uri");
             if (uriStr != null && uriStr.indexOf("#") == -1) {
                 return new RuleReference(new URI(uriStr));
             } else if (uriStr != null) {
                 final String ruleName =
                     uriStr.substring(uriStr.indexOf("#") + 1).trim();
                 final String grammarName = uriStr.substring(0, uriStr.indexOf("#"));
-                final String typeStr = getAttribute(attributes, "type");
                 if (grammarName.isEmpty()) {
                     return new RuleReference(ruleName);
                 } else if (typeStr == null) {
@@ -352,41 +431,75 @@ public class SrgsRuleGrammarParser extends RuleGrammarParser {
         return null;
     }
 
-    private RuleComponent evalNode(final Node node) throws URISyntaxException {
-        final String nodeName = node.getNodeName();
-        if (nodeName.equalsIgnoreCase("#text")) {
-            final Text textNode = (Text) node;
-            return evalNode(textNode);
-        } else if (nodeName.equalsIgnoreCase("one-of")) {
-            return evalOneOf(node);
+    /** Evaluate the element the reader is positioned on, up to its end */
+    private RuleComponent evalNode(final XMLStreamReader reader)
+            throws XMLStreamException, URISyntaxException, GrammarException {
+        final String nodeName = getName(reader);
+        if (nodeName.equalsIgnoreCase("one-of")) {
+            return evalOneOf(reader);
         } else if (nodeName.equalsIgnoreCase("item")) {
-            return evalItem(node);
+            return evalItem(reader);
         } else if (nodeName.equalsIgnoreCase("ruleref")) {
-            return evalReference(node);
+            return evalReference(reader);
         } else if (nodeName.equalsIgnoreCase("token")) {
-            String tokenText = node.getTextContent();
-            return setLanguage(new RuleToken(tokenText), node.getAttributes());
+            final String langStr = getAttribute(reader, "xml:lang");
+            String tokenText = getTextContent(reader);
+            return setLanguage(new RuleToken(tokenText), langStr);
         } else if (nodeName.equalsIgnoreCase("tag")) {
-            Object tagObject = node.getTextContent();
+            Object tagObject = getTextContent(reader);
             return new RuleTag(tagObject);
         } else if (nodeName.equalsIgnoreCase("example")) {
             // Ignore
         }
+        skip(reader);
         return null;
     }
 
-    private List<RuleComponent> evalChildNodes(Node node)
-            throws URISyntaxException {
+    private void add(RuleComponent component, String weightStr,
+            List<RuleComponent> ruleComponents, RuleAlternatives oneOf) {
+        if (component == null) {
+            return;
+        }
+        if (oneOf == null) {
+            ruleComponents.add(component);
+        } else if (weightStr == null) {
+            oneOf.addAlternative(component);
+        } else {
+            oneOf.addAlternative(component, Double.parseDouble(weightStr));
+        }
+    }
+
+    /**
+     * Evaluate the content of the current element, up to its end. Adjacent
+     * text, also in CDATA sections, is one component. If oneOf is not null,
+     * the components are added to it as alternatives, with their weights.
+     */
+    private List<RuleComponent> evalChildNodes(XMLStreamReader reader,
+            RuleAlternatives oneOf)
+            throws XMLStreamException, URISyntaxException, GrammarException {
         final List<RuleComponent> ruleComponents = new ArrayList<RuleComponent>();
-        final NodeList children = node.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            final Node child = children.item(i);
-            final RuleComponent component = evalNode(child);
-            if (component != null) {
-                ruleComponents.add(component);
+        final StringBuilder text = new StringBuilder();
+        while (true) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.CHARACTERS
+                || event == XMLStreamConstants.CDATA
+                || event == XMLStreamConstants.SPACE) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(),
+                    reader.getTextLength());
+                continue;
+            }
+            final RuleComponent textComponent = evalText(text);
+            if (textComponent != null && oneOf != null) {
+                throw new GrammarException(
+                    "Text in one-of must be contained in an item.");
+            }
+            add(textComponent, null, ruleComponents, oneOf);
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final String weightStr = getAttribute(reader, "weight");
+                add(evalNode(reader), weightStr, ruleComponents, oneOf);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return ruleComponents;
             }
         }
-
-        return ruleComponents;
     }
 }
@@ -3,6 +3,7 @@ package de.dfki.mlt.srgsparser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
 import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
 
@@ -16,8 +17,14 @@ import org.jvoicexml.processor.ChartNode;
 import org.jvoicexml.processor.GrammarManager;
 import org.jvoicexml.processor.JVoiceXmlGrammarManager;
 import org.jvoicexml.processor.SemanticsInterpreter;
+import org.jvoicexml.processor.SemanticsLimitException;
+import org.jvoicexml.processor.SemanticsLimitException.Limit;
 import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.grammar.RuleTag;
 import org.jvoicexml.processor.srgs.GrammarException;
+import org.mozilla.javascript.EvaluatorException;
 
 public class JSInterpreterTest {
 
@@ -92,4 +99,89 @@ public class JSInterpreterTest {
       assertEquals(toks[2], o.getString("val"));
     }
   }
+
+  @Test
+  public void precompiledTest() throws URISyntaxException, IOException, GrammarException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI("alternatives.gram"));
+    for (RuleComponent c : ((JVoiceXmlGrammar)ruleGrammar).getNonterminals()) {
+      if (c instanceof RuleTag) {
+        assertNotNull(c.toString(), ((RuleTag)c).getCompiled());
+      }
+    }
+
+    final AbstractParser checker = AbstractParser.getParser(manager);
+    for (String s : new String[]{ "is it 2", "is it f", "is it ?" }) {
+      ChartNode validRule = checker.parse(ruleGrammar, s.split(" "));
+      JSONObject o = SemanticsInterpreter.interpret(checker, validRule);
+      assertEquals(interpret(checker, validRule).toString(), o.toString());
+      assertEquals("it", o.getString("tag"));
+    }
+  }
+
+  @Test
+  public void isolationTest() {
+    String code = "rules = {}; rules.root = { a: /b+/.test('bbb'),"
+        + " j: JSON.parse('[1]')[0], leak: typeof leaked }; leaked = 1;";
+    for (int i = 0; i < 2; ++i) {
+      JSONObject o = SemanticsInterpreter.execute(code);
+      assertEquals(true, o.getBoolean("a"));
+      assertEquals(1, o.getInt("j"));
+      assertEquals("undefined", o.getString("leak"));
+    }
+  }
+
+  @Test(expected = EvaluatorException.class)
+  public void sealedTest() {
+    SemanticsInterpreter.execute("Object.prototype.x = 1;");
+  }
+
+  private static void checkLimit(String code, Limit limit) {
+    long hits = limit.getHits();
+    try {
+      SemanticsInterpreter.execute(code);
+      fail("no limit reached");
+    } catch (SemanticsLimitException ex) {
+      assertEquals(limit, ex.getLimit());
+      assertEquals(hits + 1, limit.getHits());
+    }
+  }
+
+  @Test
+  public void limitTest() throws URISyntaxException, IOException, GrammarException {
+    final String loop = "rules = {}; while (true) { try { for (;;) {} } "
+        + "catch (e) {} finally {} }";
+    try {
+      SemanticsInterpreter.maxInstructions = 1000000;
+      checkLimit(loop, Limit.INSTRUCTIONS);
+      SemanticsInterpreter.optimizationLevel = -1;
+      checkLimit(loop, Limit.INSTRUCTIONS);
+      SemanticsInterpreter.maxInstructions = 0;
+      SemanticsInterpreter.maxMillis = 100;
+      checkLimit(loop, Limit.TIME);
+      SemanticsInterpreter.maxMillis = 0;
+      SemanticsInterpreter.maxOutputSize = 100;
+      checkLimit("rules = { root : { a: new Array(1000).join('x') } };",
+          Limit.OUTPUT_SIZE);
+
+      // the native evaluator checks the output size, too
+      final GrammarManager manager = new JVoiceXmlGrammarManager();
+      final Grammar ruleGrammar = manager.loadGrammar(testURI("pizza.srgs"));
+      final AbstractParser checker = AbstractParser.getParser(manager);
+      String[] tokens = pizzainputs[pizzainputs.length-1].split(" +");
+      ChartNode validRule = checker.parse(ruleGrammar, tokens);
+      SemanticsInterpreter.maxOutputSize = 20;
+      try {
+        SemanticsInterpreter.interpret(checker, validRule);
+        fail("no limit reached");
+      } catch (SemanticsLimitException ex) {
+        assertEquals(Limit.OUTPUT_SIZE, ex.getLimit());
+      }
+    } finally {
+      SemanticsInterpreter.maxInstructions = 0;
+      SemanticsInterpreter.maxMillis = 0;
+      SemanticsInterpreter.maxOutputSize = 0;
+      SemanticsInterpreter.optimizationLevel = 0;
+    }
+  }
 }
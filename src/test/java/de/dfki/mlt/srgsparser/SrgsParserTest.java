@@ -1,30 +1,48 @@
 package de.dfki.mlt.srgsparser;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
 import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.json.JSONObject;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.jvoicexml.processor.AbstractParser;
 import org.jvoicexml.processor.ChartNode;
 import org.jvoicexml.processor.GrammarManager;
 import org.jvoicexml.processor.JVoiceXmlGrammarManager;
 import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
 import org.jvoicexml.processor.grammar.Rule;
 import org.jvoicexml.processor.srgs.GrammarException;
 import org.jvoicexml.processor.srgs.xml.SrgsRuleGrammarParser;
 
 public class SrgsParserTest {
 
+  @org.junit.Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void pizzatest() throws GrammarException, IOException, URISyntaxException {
     final GrammarManager manager = new JVoiceXmlGrammarManager();
@@ -204,6 +222,34 @@ public class SrgsParserTest {
     assertEquals("pizza", object.get("val").toString());
   }
 
+  @Test
+  public void streamingTest() throws URISyntaxException, GrammarException {
+    String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<!DOCTYPE grammar PUBLIC \"-//W3C//DTD GRAMMAR 1.0//EN\"\n"
+        + "  \"http://www.w3.org/TR/speech-grammar/grammar.dtd\">\n"
+        + "<grammar xmlns=\"http://www.w3.org/2001/06/grammar\" version=\"1.0\""
+        + " xml:lang=\"en-US\" root=\"main\">\n"
+        + "<meta name=\"author\" content=\"x\"/>\n"
+        + "<rule id=\"main\" scope=\"public\">\n"
+        + "  <example>big pizza</example>\n"
+        + "  <one-of><item weight=\"2\">big</item>"
+        + "<item>small <!-- c --> medium</item></one-of>\n"
+        + "  pizza <tag><![CDATA[out = \"a<b\";]]></tag>\n"
+        + "</rule>\n</grammar>\n";
+    SrgsRuleGrammarParser p = new SrgsRuleGrammarParser();
+    List<Rule> rules = p.load(new StringReader(xml));
+    assertEquals(1, rules.size());
+    assertEquals("main", p.getAttributes().get("root"));
+    assertEquals("http://www.w3.org/2001/06/grammar",
+        p.getAttributes().get("xmlns"));
+    // the example is skipped, the comment separates the tokens
+    assertEquals("<rule id=\"main\" scope=\"public\"><item><one-of>"
+        + "<item weight=\"2.0\"><item>big</item></item><item><item>"
+        + "<item>small</item><item>medium</item></item></item></one-of>"
+        + "<item>pizza</item><tag>out = \"a<b\";</tag></item></rule>",
+        rules.get(0).toStringXML());
+  }
+
   public void parserTest() throws URISyntaxException, IOException, GrammarException {
     URI grammarReference = testURI("/pizza.srgs");
     final URL url = grammarReference.toURL();
@@ -232,4 +278,149 @@ public class SrgsParserTest {
     assertEquals("pizza", object.get("val").toString());
   }
 
+  @Test
+  public void vocabularyTest() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final JVoiceXmlGrammar ruleGrammar =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("pizza.srgs"));
+
+    assertTrue(ruleGrammar.covers("i WANT a small pizza".split(" ")));
+    // known words in the wrong order are not detected
+    assertTrue(ruleGrammar.covers("pizza small".split(" ")));
+    assertFalse(ruleGrammar.covers("I want a calzone".split(" ")));
+
+    final AbstractParser checker = AbstractParser.getParser(manager);
+    assertNull(checker.parse(ruleGrammar, "I want a calzone".split(" ")));
+    assertEquals(0, checker.returnAllResults().count());
+
+    // $GARBAGE and patterns match arbitrary tokens
+    final JVoiceXmlGrammar garbage =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("schrott.gram"));
+    assertTrue(garbage.covers("calzone das ist sinnvoll".split(" ")));
+    final JVoiceXmlGrammar regex =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("regex.gram"));
+    assertTrue(regex.covers("fuckyeah".split(" ")));
+    assertFalse(regex.covers("four".split(" ")));
+  }
+
+  @Test
+  public void multiWordTokenTest() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI("multiword.gram"));
+
+    String[] inputs = {
+        "new york", "new york city please", "new orleans", "New", "york please"
+    };
+    for (String s : inputs) {
+      final AbstractParser checker = AbstractParser.getParser(manager);
+      assertNotNull(s, checker.parse(ruleGrammar, s.split(" +")));
+    }
+    final AbstractParser checker = AbstractParser.getParser(manager);
+    assertNull(checker.parse(ruleGrammar, "new york orleans".split(" +")));
+    assertNull(checker.parse(ruleGrammar, "new city".split(" +")));
+
+    int[] ids = ((JVoiceXmlGrammar) ruleGrammar).intern(
+        new String[] { "NEW", "nEw", "orleans", "calzone" });
+    assertEquals(ids[0], ids[1]);
+    assertTrue(ids[2] >= 0 && ids[2] != ids[0]);
+    assertEquals(-1, ids[3]);
+  }
+
+  @Test
+  public void patternCacheTest() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final JVoiceXmlGrammar regex =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("regex.gram"));
+
+    assertEquals(1, regex.getMatchingPatterns("fuckyeahyeah").size());
+    assertEquals(1, regex.getMatchingPatterns("goood").size());
+    assertTrue(regex.getMatchingPatterns("damn").isEmpty());
+    // the second lookup comes from the cache
+    assertEquals(1, regex.getMatchingPatterns("goood").size());
+    assertTrue(regex.getPatternCacheStatistics(),
+        regex.getPatternCacheStatistics().contains("hits 1,"));
+  }
+
+  @Test
+  public void bigramTest() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final JVoiceXmlGrammar ruleGrammar =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("pizza.srgs"));
+
+    for (String s : pizzainputs) {
+      assertTrue(s, ruleGrammar.admits(s.split(" +")));
+    }
+    assertFalse(ruleGrammar.admits("pizza small".split(" ")));
+    assertFalse(ruleGrammar.admits("I want a small pizza please please".split(" ")));
+    // must not end with want
+    assertFalse(ruleGrammar.admits("I want".split(" ")));
+
+    // $GARBAGE may be adjacent to anything
+    final JVoiceXmlGrammar garbage =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("schrott.gram"));
+    assertTrue(garbage.admits("das schrott ist sinnvoll".split(" ")));
+    assertTrue(garbage.admits("Januar der dreizehnte".split(" ")));
+
+    // without a filter, every input is admitted
+    JVoiceXmlGrammar.maxBigramPairs = 10;
+    try {
+      final JVoiceXmlGrammar unfiltered = (JVoiceXmlGrammar)
+          new JVoiceXmlGrammarManager().loadGrammar(testURI("pizza.srgs"));
+      assertTrue(unfiltered.admits("pizza small".split(" ")));
+    } finally {
+      JVoiceXmlGrammar.maxBigramPairs = 1 << 22;
+    }
+  }
+
+  private static final String XML_HEADER =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<grammar xmlns=\"http://www.w3.org/2001/06/grammar\" version=\"1.0\""
+      + " xml:lang=\"en-US\" root=\"main\">\n<rule id=\"main\">\n";
+
+  /** Load the grammar at the URI given as argument, for largeXmlTest */
+  public static void main(String[] args) throws Exception {
+    new JVoiceXmlGrammarManager().loadGrammar(new URI(args[0]));
+  }
+
+  @Test
+  public void largeXmlTest() throws IOException, InterruptedException {
+    // 64MB of skipped examples, loaded by the manager with a 32MB heap
+    File f = folder.newFile("large.xml");
+    String padding = String.join(" ", Collections.nCopies(500, "x"));
+    try (Writer w = Files.newBufferedWriter(f.toPath())) {
+      w.write(XML_HEADER);
+      for (int i = 0; i < 70 * 1024; ++i) {
+        w.write("<example>");
+        w.write(padding);
+        w.write("</example>\n");
+      }
+      w.write("pizza\n</rule>\n</grammar>\n");
+    }
+    assertTrue(f.length() > 64 * 1024 * 1024);
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java")
+        .toString();
+    Process p = new ProcessBuilder(java, "-Xmx32m", "-cp",
+        System.getProperty("java.class.path"),
+        SrgsParserTest.class.getName(), f.toURI().toString())
+        .inheritIO().start();
+    assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+    assertEquals(0, p.exitValue());
+  }
+
+  @Test
+  public void malformedXmlTest() throws IOException {
+    File f = folder.newFile("malformed.xml");
+    Files.write(f.toPath(), (XML_HEADER + "pizza</grammar>\n")
+        .getBytes(StandardCharsets.UTF_8));
+    try {
+      new JVoiceXmlGrammarManager().loadGrammar(f.toURI());
+      fail("malformed XML not detected");
+    } catch (GrammarException ex) {
+      Throwable cause = ex;
+      while (cause != null && ! (cause instanceof XMLStreamException)) {
+        cause = cause.getCause();
+      }
+      assertNotNull(cause);
+    }
+  }
 }
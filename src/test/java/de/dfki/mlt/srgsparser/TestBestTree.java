@@ -15,6 +15,7 @@ import org.jvoicexml.processor.ChartNode;
 import org.jvoicexml.processor.Configuration;
 import org.jvoicexml.processor.GrammarManager;
 import org.jvoicexml.processor.JVoiceXmlGrammarManager;
+import org.jvoicexml.processor.ParseResult;
 import org.jvoicexml.processor.SemanticsInterpreter;
 import org.jvoicexml.processor.grammar.Grammar;
 import org.jvoicexml.processor.srgs.GrammarException;
@@ -71,4 +72,33 @@ public class TestBestTree {
     assertTrue(o.has("day"));
   }
 
+  @Test
+  public void testLazyResults() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI("schrott.gram"));
+    final AbstractParser checker = AbstractParser.getParser(manager);
+    String s = "schrott das das ist sinnvoll";
+    assertNotNull(checker.parse(ruleGrammar, s.split(" +")));
+
+    ParseResult best = checker.bestResult();
+    List<ParseResult> trees = checker.enumerateResults();
+    assertEquals(checker.returnAllResults().count(), checker.results().count());
+    assertFalse(trees.isEmpty());
+    assertEquals(2, best.getWeight(), 0.0001);
+    assertEquals(best.getWeight(), trees.get(0).getWeight(), 0.0001);
+    for (int i = 1; i < trees.size(); ++i) {
+      assertTrue(trees.get(i - 1).getWeight() <= trees.get(i).getWeight());
+    }
+    assertEquals(s, best.getCovered());
+
+    // the results stay valid when the parser is reused
+    assertNotNull(checker.parse(ruleGrammar, "das ist sinnvoll".split(" +")));
+    assertFalse(best.isEvaluated());
+    assertEquals("schrott das", best.getSemantics().get("garb"));
+    assertTrue(best.isEvaluated());
+    assertSame(best.getSemantics(), best.getSemantics());
+    for (ParseResult r : trees) {
+      assertFalse(r.isEvaluated());
+    }
+  }
 }
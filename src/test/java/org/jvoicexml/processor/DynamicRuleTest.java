@@ -0,0 +1,248 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.jvoicexml.processor.GrammarCacheTest.isCollected;
+import static org.jvoicexml.processor.GrammarFolder.evaluate;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleReference;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class DynamicRuleTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  @After
+  public void reset() {
+    AbstractParser.useLeftCorner = true;
+  }
+
+  private URI grammars() throws IOException {
+    folder.write("contacts.gram",
+        "meta \"dynamic\" is \"contact\";\nroot $contact;\n"
+        + "public $contact = mary | \"john smith\";\n");
+    return folder.write("main.gram", "root $main;\n"
+        + "public $main = call $<contacts.gram#contact> { out.who = $%1; }"
+        + " | stop { out.who = \"nobody\"; };\n");
+  }
+
+  @Test
+  public void dynamicTest() throws GrammarException, IOException {
+    URI main = grammars();
+    URI contacts = folder.uri("contacts.gram");
+    for (boolean lc : new boolean[] { true, false }) {
+      AbstractParser.useLeftCorner = lc;
+      JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+      manager.loadGrammar(main);
+      ResultCache cache = new ResultCache(manager, 100);
+      Set<URI> changed = new HashSet<>();
+      manager.addListener(changed::add);
+      assertEquals("{\"who\":\"mary\"}", evaluate(manager, main, "call mary"));
+      assertEquals("{\"who\":\"john smith\"}",
+          evaluate(manager, main, "call john smith"));
+      assertFalse(cache.get(manager.getGrammar(main),
+          "call bob jones".split(" ")).isAccepted());
+
+      Map<String, String> added = new HashMap<>();
+      added.put("bob jones", "B17");
+      manager.updateAlternatives(contacts, "contact", added,
+          Collections.singleton("Mary"));
+      assertEquals(new HashSet<>(manager.getDependents(contacts)), changed);
+      assertNull(evaluate(manager, main, "call mary"));
+      assertEquals("{\"who\":\"B17\"}",
+          evaluate(manager, main, "call Bob JONES"));
+      assertTrue(cache.get(manager.getGrammar(main),
+          "call bob jones".split(" ")).isAccepted());
+      assertEquals(2, ((JVoiceXmlGrammar) manager.getGrammar(contacts))
+          .getDynamicRule("contact").size());
+    }
+  }
+
+  /** Remove and add the phrases, return the fastest of some rounds, since
+   *  a collection may stop any of them */
+  private static long update(JVoiceXmlGrammar contacts,
+      Map<String, String> phrases) {
+    long nanos = Long.MAX_VALUE;
+    for (int round = 0; round < 3; ++round) {
+      long start = System.nanoTime();
+      contacts.updateAlternatives("contact", Collections.emptyMap(),
+          phrases.keySet());
+      contacts.updateAlternatives("contact", phrases, Collections.emptySet());
+      nanos = Math.min(nanos, System.nanoTime() - start);
+    }
+    return nanos;
+  }
+
+  @Test
+  public void largeTest() throws GrammarException, IOException {
+    URI main = grammars();
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    JVoiceXmlGrammar contacts =
+        (JVoiceXmlGrammar) manager.getGrammar(folder.uri("contacts.gram"));
+    Map<String, String> added = new HashMap<>();
+    Map<String, String> some = new HashMap<>();
+    for (int i = 0; i < 10000; ++i) {
+      added.put("name" + (i % 100) + " person" + i, Integer.toString(i));
+      if (i < 1000) {
+        some.put("name" + (i % 100) + " person" + i, Integer.toString(i));
+      }
+    }
+    // warm up
+    contacts.updateAlternatives("contact", added, Collections.emptySet());
+    update(contacts, some);
+    // the time is linear in the number of changed phrases, not quadratic,
+    // compared to the time for a tenth of them, which copes with slow
+    // machines
+    long small = update(contacts, some);
+    long large = update(contacts, added);
+    assertTrue("Updates took " + large / 1000000 + "ms, a tenth "
+        + small / 1000000 + "ms", large < 30 * small);
+    assertEquals(10002, contacts.getDynamicRule("contact").size());
+    assertEquals("{\"who\":\"4711\"}",
+        evaluate(manager, main, "call name11 person4711"));
+    assertNull(evaluate(manager, main, "call name12 person4711"));
+  }
+
+  @Test
+  public void keepTest() throws GrammarException, IOException {
+    folder.write("number.gram", "root $number;\npublic $number = one | two;\n");
+    URI main = folder.write("main.gram", "meta \"dynamic\" is \"product\";\n"
+        + "root $main;\n"
+        + "public $main = $<number.gram> $product { out.p = rules.product; };\n"
+        + "$product = $VOID;\n");
+    URI number = folder.uri("number.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    assertNull(evaluate(manager, main, "two pizza"));
+    manager.updateAlternatives(main, "product",
+        Collections.singletonMap("pizza", null), Collections.emptySet());
+    assertEquals("{\"p\":\"pizza\"}", evaluate(manager, main, "two pizza"));
+
+    // recompiling the dependent main keeps the phrases
+    folder.write("number.gram",
+        "root $number;\npublic $number = one | two | three;\n");
+    manager.reloadGrammar(number);
+    assertEquals("{\"p\":\"pizza\"}", evaluate(manager, main, "three pizza"));
+
+    // and so does an image
+    Path image = folder.file("grammars.img").toPath();
+    manager.saveImage(image);
+    JVoiceXmlGrammarManager restored = new JVoiceXmlGrammarManager();
+    assertTrue(restored.loadImage(image));
+    assertEquals("{\"p\":\"pizza\"}", evaluate(restored, main, "one pizza"));
+    restored.updateAlternatives(main, "product",
+        Collections.singletonMap("cola", "drink"), Collections.emptySet());
+    assertEquals("{\"p\":\"drink\"}", evaluate(restored, main, "one cola"));
+    assertEquals("{\"p\":\"pizza\"}", evaluate(restored, main, "one pizza"));
+  }
+
+  @Test
+  public void collectedTest() throws Exception {
+    folder.write("number.gram", "root $number;\npublic $number = one | two;\n");
+    URI main = folder.write("main.gram", "meta \"dynamic\" is \"product\";\n"
+        + "root $main;\n"
+        + "public $main = $<number.gram> $product { out.p = rules.product; };\n"
+        + "$product = $VOID;\n");
+    URI other = folder.write("other.gram", "root $other;\n"
+        + "public $other = other;\n");
+    URI number = folder.uri("number.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    // it is not recompiled, and was built when the first main existed
+    manager.loadGrammar(other);
+    List<WeakReference<Object>> replaced = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      replaced.add(new WeakReference<>(((JVoiceXmlGrammar) manager
+          .getGrammar(main)).getDynamicRule("product").getRecognizer()));
+      manager.updateAlternatives(main, "product",
+          Collections.singletonMap("pizza" + i, null), Collections.emptySet());
+      replaced.add(new WeakReference<>(manager.getGrammar(main)));
+      folder.write("number.gram",
+          "root $number;\npublic $number = one | two | n" + i + ";\n");
+      manager.reloadGrammar(number);
+    }
+    assertEquals("{\"p\":\"pizza2\"}", evaluate(manager, main, "n4 pizza2"));
+    // neither the replaced phrases nor the replaced grammars are kept
+    for (int i = 0; i < replaced.size(); ++i) {
+      assertTrue("replaced " + i, isCollected(replaced.get(i)));
+    }
+  }
+
+  @Test
+  public void overlayTest() throws GrammarException, IOException {
+    URI main = grammars();
+    RuleReference contact =
+        new RuleReference(folder.uri("contacts.gram"), "contact");
+    for (boolean lc : new boolean[] { true, false }) {
+      AbstractParser.useLeftCorner = lc;
+      JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+      manager.loadGrammar(main);
+      Grammar g = manager.getGrammar(main);
+      AbstractParser alice = AbstractParser.getParser(manager);
+      alice.bind(contact, Collections.singletonMap("mom", "+4917"));
+      AbstractParser bob = AbstractParser.getParser(manager);
+      Map<String, String> bobs = new HashMap<>();
+      bobs.put("dentist", null);
+      bobs.put("Bob's mom", "+4930");
+      bob.bind(contact, bobs);
+
+      assertNotNull(alice.parse(g, "call mom".split(" ")));
+      assertEquals("{\"who\":\"+4917\"}", SemanticsInterpreter.interpret(
+          alice, alice.returnFirstResult()).toString());
+      assertNull(alice.parse(g, "call mary".split(" ")));
+      assertNull(bob.parse(g, "call mom".split(" ")));
+      assertNotNull(bob.parse(g, "call bob's MOM".split(" ")));
+      assertEquals("{\"who\":\"+4930\"}", SemanticsInterpreter.interpret(
+          bob, bob.returnFirstResult()).toString());
+      assertNotNull(bob.parse(g, "call dentist".split(" ")));
+      // the grammar is not changed
+      assertEquals("{\"who\":\"mary\"}", evaluate(manager, main, "call mary"));
+      assertNull(evaluate(manager, main, "call dentist"));
+      bob.unbind(contact);
+      assertNotNull(bob.parse(g, "call mary".split(" ")));
+
+      bob.bind(new RuleReference(main, "main"), bobs);
+      try {
+        bob.parse(g, "stop".split(" "));
+        fail("binding a static rule not detected");
+      } catch (GrammarException ex) {
+        assertTrue(ex.getMessage().contains("Not a dynamic rule"));
+      }
+    }
+  }
+
+  @Test
+  public void invalidTest() throws IOException {
+    URI main = folder.write("main.gram", "meta \"dynamic\" is \"main\";\n"
+        + "root $main;\npublic $main = yes { out = true; } | no;\n");
+    try {
+      new JVoiceXmlGrammarManager().loadGrammar(main);
+      fail("tag in dynamic rule not detected");
+    } catch (GrammarException ex) {
+      assertTrue(ex.getMessage().contains("only contain tokens"));
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class GrammarCacheTest {
+
+  private static URI grammar(String name) {
+    return testURI("cache/" + name);
+  }
+
+  private static URI[] independent() {
+    return new URI[] {
+        grammar("a.gram"), grammar("b.gram"), grammar("c.gram")
+    };
+  }
+
+  private static long size(JVoiceXmlGrammarManager manager, URI uri) {
+    return ((JVoiceXmlGrammar) manager.getVersion().getGrammar(uri))
+        .estimateSize();
+  }
+
+  /** Return true if the object is garbage collected after some tries */
+  static boolean isCollected(WeakReference<?> ref)
+      throws InterruptedException {
+    for (int i = 0; i < 20 && ref.get() != null; ++i) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    return ref.get() == null;
+  }
+
+  private static boolean parses(GrammarManager manager, Grammar g,
+      String input) throws GrammarException {
+    return AbstractParser.getParser(manager).parse(g, input.split(" ")) != null;
+  }
+
+  @Test
+  public void lruTest() throws GrammarException, IOException {
+    URI[] uris = independent();
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    for (URI uri : uris) {
+      manager.loadGrammar(uri);
+    }
+    long total = manager.getVersion().estimateSize();
+    assertTrue(total > 0);
+    assertEquals(total,
+        size(manager, uris[0]) + size(manager, uris[1]) + size(manager, uris[2]));
+    manager.getGrammar(uris[0]);
+    manager.setMemoryBudget(total - 1);
+    // b is the least recently used
+    assertEquals(2, manager.listGrammars().length);
+    assertTrue(manager.isEvicted(uris[1]));
+    assertNull(manager.getVersion().getGrammar(uris[1]));
+
+    // loaded again transparently, which evicts c now
+    Grammar b = manager.getGrammar(uris[1]);
+    assertNotNull(b);
+    assertTrue(parses(manager, b, "banana"));
+    assertFalse(manager.isEvicted(uris[1]));
+    assertTrue(manager.isEvicted(uris[2]));
+    assertEquals(2, manager.listGrammars().length);
+
+    manager.setMemoryBudget(0);
+    assertNotNull(manager.getGrammar(uris[2]));
+    assertEquals(3, manager.listGrammars().length);
+  }
+
+  @Test
+  public void lfuTest() throws GrammarException, IOException {
+    URI[] uris = independent();
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.setEvictionPolicy(JVoiceXmlGrammarManager.EvictionPolicy.LFU);
+    for (URI uri : uris) {
+      manager.loadGrammar(uri);
+    }
+    for (int i = 0; i < 3; ++i) {
+      manager.getGrammar(uris[0]);
+    }
+    manager.getGrammar(uris[2]);
+    manager.getGrammar(uris[1]);
+    manager.setMemoryBudget(manager.getVersion().estimateSize() - 1);
+    // the least recently used of the least frequently used ones
+    assertTrue(manager.isEvicted(uris[2]));
+    assertEquals(2, manager.listGrammars().length);
+  }
+
+  @Test
+  public void pinTest() throws GrammarException, IOException {
+    URI[] uris = independent();
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.pin(uris[0]);
+    manager.setMemoryBudget(1);
+    for (URI uri : uris) {
+      assertNotNull(manager.loadGrammar(uri));
+    }
+    // the last loaded grammar is kept until the next change
+    assertEquals(2, manager.listGrammars().length);
+    assertNotNull(manager.getVersion().getGrammar(uris[0]));
+    assertNotNull(manager.getVersion().getGrammar(uris[2]));
+    manager.unpin(uris[0]);
+    manager.setMemoryBudget(1);
+    assertEquals(0, manager.listGrammars().length);
+  }
+
+  @Test
+  public void sharedTest() throws GrammarException, IOException {
+    URI shared = grammar("shared.gram");
+    URI first = grammar("first.gram");
+    URI second = grammar("second.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(first);
+    manager.loadGrammar(second);
+    assertEquals(3, manager.listGrammars().length);
+    Grammar sharedGrammar = manager.getGrammar(shared);
+    long budget = manager.getVersion().estimateSize() - size(manager, first);
+    manager.getGrammar(second);
+
+    // first is the least recently used, shared is referenced by second
+    manager.setMemoryBudget(budget);
+    assertEquals(2, manager.listGrammars().length);
+    assertTrue(manager.isEvicted(first));
+    assertSame(sharedGrammar, manager.getVersion().getGrammar(shared));
+
+    manager.setMemoryBudget(1);
+    assertEquals(0, manager.listGrammars().length);
+    assertTrue(manager.isEvicted(shared));
+
+    // a parse resolves the evicted grammars
+    manager.setMemoryBudget(0);
+    Grammar g = manager.getGrammar(first);
+    assertTrue(parses(manager, g, "first sure"));
+    assertNotSame(sharedGrammar, manager.getGrammar(shared));
+    assertFalse(manager.isEvicted(shared));
+
+    manager.deleteGrammar(manager.getGrammar(second));
+    assertFalse(manager.isEvicted(second));
+    assertNull(manager.getGrammar(second));
+  }
+
+  @Test
+  public void heldGrammarTest() throws GrammarException, IOException {
+    URI uri = grammar("held.gram");
+    for (boolean lc : new boolean[] { true, false }) {
+      AbstractParser.useLeftCorner = lc;
+      JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+      Grammar g = manager.loadGrammar(uri);
+      manager.setMemoryBudget(1);
+      assertTrue(manager.isEvicted(uri));
+      // the parse reloads the grammar the reference resolves in
+      assertTrue(parses(manager, g, "hello world"));
+      assertFalse(manager.isEvicted(uri));
+    }
+    AbstractParser.useLeftCorner = true;
+  }
+
+  @Test
+  public void collectedTest() throws Exception {
+    URI a = grammar("a.gram");
+    URI b = grammar("b.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    WeakReference<Grammar> first = new WeakReference<>(manager.loadGrammar(a));
+    manager.loadGrammar(b);
+    manager.setMemoryBudget(size(manager, b) + 1);
+    assertTrue(manager.isEvicted(a));
+    // b was built in a version that contains a, it must not keep it
+    assertTrue(isCollected(first));
+  }
+}
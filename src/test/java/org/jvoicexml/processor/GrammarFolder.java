@@ -0,0 +1,64 @@
+package org.jvoicexml.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.json.JSONObject;
+import org.junit.rules.TemporaryFolder;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+/**
+ * A temporary folder for tests that write, change or delete ABNF grammars,
+ * e.g., to check reloading. Tests with grammars that do not change load them
+ * from the test resources.
+ */
+public class GrammarFolder extends TemporaryFolder {
+
+  /** Put in front of every grammar written */
+  public static final String HEADER = "#ABNF 1.0 UTF-8;\nlanguage en-US;\n"
+      + "mode voice;\ntag-format \"semantics/1.0\";\n";
+
+  /** Write the grammar with the given name, after HEADER */
+  public URI write(String name, String content) throws IOException {
+    File f = file(name);
+    Files.write(f.toPath(),
+        (HEADER + content).getBytes(StandardCharsets.UTF_8));
+    return f.toURI();
+  }
+
+  /** Return the file with the given name, which need not exist */
+  public File file(String name) {
+    return new File(getRoot(), name);
+  }
+
+  public URI uri(String name) {
+    return file(name).toURI();
+  }
+
+  /** Parse the input with the grammar, return the semantics, or null if the
+   *  grammar does not accept the input */
+  public static JSONObject interpret(GrammarManager manager, Grammar g,
+      String input) throws GrammarException {
+    AbstractParser parser = AbstractParser.getParser(manager);
+    ChartNode result = parser.parse(g, input.split(" +"));
+    return result == null ? null
+        : SemanticsInterpreter.interpret(parser, result);
+  }
+
+  /** Like interpret, with the semantics as JSON text */
+  public static String evaluate(GrammarManager manager, Grammar g,
+      String input) throws GrammarException {
+    JSONObject result = interpret(manager, g, input);
+    return result == null ? null : result.toString();
+  }
+
+  /** Like evaluate, with the grammar that is currently registered */
+  public static String evaluate(GrammarManager manager, URI grammar,
+      String input) throws GrammarException {
+    return evaluate(manager, manager.getGrammar(grammar), input);
+  }
+}
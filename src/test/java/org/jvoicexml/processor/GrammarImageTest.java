@@ -0,0 +1,115 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.jvoicexml.processor.GrammarFolder.evaluate;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class GrammarImageTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  @After
+  public void reset() {
+    AbstractParser.useLeftCorner = true;
+  }
+
+  private static void compare(JVoiceXmlGrammarManager source,
+      JVoiceXmlGrammarManager image, URI ref, String ... inputs)
+      throws GrammarException {
+    Grammar expected = source.getGrammar(ref);
+    Grammar actual = image.getGrammar(ref);
+    assertNotNull(ref.toString(), actual);
+    assertEquals(expected.getRoot(), actual.getRoot());
+    for (String input : inputs) {
+      String[] tokens = input.split(" +");
+      assertEquals(input, ((JVoiceXmlGrammar) expected).admits(tokens),
+          ((JVoiceXmlGrammar) actual).admits(tokens));
+      assertEquals(input, evaluate(source, expected, input),
+          evaluate(image, actual, input));
+    }
+  }
+
+  @Test
+  public void roundTripTest() throws GrammarException, IOException {
+    JVoiceXmlGrammarManager source = new JVoiceXmlGrammarManager();
+    URI pizza = testURI("pizza.srgs");
+    URI memo = testURI("memo.gram");
+    URI builtin = testURI("pincount.gram");
+    source.loadGrammar(pizza);
+    source.loadGrammar(memo);
+    source.loadGrammar(builtin);
+    Path image = folder.file("grammars.img").toPath();
+    source.saveImage(image);
+
+    JVoiceXmlGrammarManager loaded = new JVoiceXmlGrammarManager();
+    assertTrue(loaded.loadImage(image));
+    assertEquals(3, loaded.listGrammars().length);
+    compare(source, loaded, pizza, pizzainputs);
+    compare(source, loaded, memo, "one", "two again", "one plus two",
+        "three times three", "two two");
+    compare(source, loaded, builtin, "my pin is zero 8 one five",
+        "forty two items", "forty forty items");
+    for (boolean lc : new boolean[] { false, true }) {
+      AbstractParser.useLeftCorner = lc;
+      compare(source, loaded, pizza, pizzainputs);
+    }
+  }
+
+  @Test
+  public void staleTest() throws GrammarException, IOException {
+    folder.write("sub.gram", "root $answer;\n"
+        + "public $answer = yes { out = true; } | no { out = false; };\n");
+    URI main = folder.write("main.gram", "root $main;\n"
+        + "public $main = [please] $<sub.gram> { out.answer = $%1; };\n");
+    Path image = folder.file("grammars.img").toPath();
+
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar[] gs = manager.loadGrammars(image, main);
+    assertTrue(Files.exists(image));
+    assertEquals("{\"answer\":true}", evaluate(manager, gs[0], "please yes"));
+
+    manager = new JVoiceXmlGrammarManager();
+    assertTrue(manager.loadImage(image));
+    assertEquals(2, manager.listGrammars().length);
+    assertEquals("{\"answer\":false}",
+        evaluate(manager, manager.getGrammar(main), "no"));
+
+    // a changed referenced grammar makes the image stale
+    folder.write("sub.gram", "root $answer;\n"
+        + "public $answer = yeah { out = true; } | no { out = false; };\n");
+    assertFalse(new JVoiceXmlGrammarManager().loadImage(image));
+    manager = new JVoiceXmlGrammarManager();
+    gs = manager.loadGrammars(image, main);
+    assertNull(evaluate(manager, gs[0], "please yes"));
+    manager = new JVoiceXmlGrammarManager();
+    assertTrue(manager.loadImage(image));
+    assertEquals("{\"answer\":true}",
+        evaluate(manager, manager.getGrammar(main), "yeah"));
+
+    // as does a corrupted file
+    byte[] bytes = Files.readAllBytes(image);
+    bytes[bytes.length / 2] ^= 0x55;
+    Files.write(image, bytes);
+    assertFalse(new JVoiceXmlGrammarManager().loadImage(image));
+    assertFalse(new JVoiceXmlGrammarManager().loadImage(
+        folder.file("missing.img").toPath()));
+  }
+}
@@ -0,0 +1,126 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class GrammarVersionTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  private URI sub() throws IOException {
+    return folder.write("sub.gram", "root $yes;\n"
+        + "public $yes = yes { out = \"yes\"; } | okay { out = \"okay\"; };\n"
+        + "public $no = no { out = \"no\"; };\n");
+  }
+
+  private URI main(String rule) throws IOException {
+    return folder.write("main.gram", "root $main;\n"
+        + "public $main = please $<sub.gram#" + rule + "> { out.answer = $%1; };\n");
+  }
+
+  private static String answer(GrammarManager manager, Grammar g,
+      String input) throws GrammarException {
+    JSONObject result = GrammarFolder.interpret(manager, g, input);
+    return result == null ? null : result.getString("answer");
+  }
+
+  @Test
+  public void versionTest() throws GrammarException, IOException {
+    URI sub = sub();
+    URI main = main("yes");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    assertEquals(0, manager.getVersion().getNumber());
+    Grammar g = manager.loadGrammar(main);
+    JVoiceXmlGrammarManager.Version first = manager.getVersion();
+    assertEquals(1, first.getNumber());
+    assertEquals(2, first.listGrammars().length);
+
+    // a failed load publishes nothing
+    folder.write("broken.gram", "root $x;\npublic $x = (x;\n");
+    try {
+      manager.loadGrammar(folder.uri("broken.gram"));
+      fail("broken grammar loaded");
+    } catch (GrammarException ex) {
+      assertSame(first, manager.getVersion());
+    }
+
+    // the old version is not changed by a reload
+    Grammar h = manager.loadGrammar(main("no"));
+    assertEquals(2, manager.getVersion().getNumber());
+    assertEquals("no", answer(manager, h, "please no"));
+    assertEquals("okay", answer(first, g, "please okay"));
+    assertNull(answer(first, g, "please no"));
+    assertSame(g, first.getGrammar(main));
+    assertSame(h, manager.getGrammar(main));
+    // the sub grammar was loaded before, it is shared
+    assertSame(first.getGrammar(sub),
+        manager.getGrammar(sub));
+
+    manager.deleteGrammar(h);
+    assertEquals(3, manager.getVersion().getNumber());
+    assertNull(manager.getGrammar(main));
+    assertEquals(2, first.listGrammars().length);
+  }
+
+  @Test
+  public void hotSwapTest() throws Exception {
+    sub();
+    URI mainUri = main("yes");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(mainUri);
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] readers = new Thread[3];
+    for (int i = 0; i < readers.length; ++i) {
+      readers[i] = new Thread(() -> {
+        try {
+          while (running.get()) {
+            Grammar g = manager.getGrammar(mainUri);
+            String yes = answer(manager, g, "please yes");
+            String no = answer(manager, g, "please no");
+            // exactly one of them, from a complete version
+            assertTrue((yes == null) != (no == null));
+          }
+        } catch (Throwable ex) {
+          failure.set(ex);
+        }
+      });
+      readers[i].start();
+    }
+    for (int i = 0; i < 20; ++i) {
+      main(i % 2 == 0 ? "no" : "yes");
+      assertNotNull(manager.loadGrammarAsync(mainUri).join());
+    }
+    running.set(false);
+    for (Thread t : readers) {
+      t.join();
+    }
+    assertNull(String.valueOf(failure.get()), failure.get());
+    assertEquals(21, manager.getVersion().getNumber());
+
+    try {
+      manager.loadGrammarAsync(folder.uri("missing.gram")).join();
+      fail("missing grammar loaded");
+    } catch (CompletionException ex) {
+      assertTrue(ex.getCause() instanceof IOException);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.jvoicexml.processor.GrammarCacheTest.isCollected;
+import static org.jvoicexml.processor.GrammarFolder.evaluate;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class IncrementalReloadTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  private static final String[] INPUTS = {
+      "order one pizza", "order three cola and two pizza", "yes", "no please",
+      "order two", "maybe order one cola", "order many pizza"
+  };
+
+  private URI number(String more) throws IOException {
+    return folder.write("number.gram", "root $number;\n"
+        + "public $number = one { out = 1; } | two { out = 2; }" + more + ";\n");
+  }
+
+  /** number is used by item, which is used by order, used by main, and main
+   *  and answer use each other */
+  private URI grammars() throws IOException {
+    number("");
+    folder.write("item.gram", "root $item;\n"
+        + "public $item = $<number.gram> (pizza | cola) { out.n = $%1; };\n");
+    folder.write("answer.gram", "root $answer;\n"
+        + "public $answer = (yes | no) [please] { out = \"$$1\"; }"
+        + " | maybe $<main.gram>;\n");
+    folder.write("order.gram", "root $order;\n"
+        + "public $order = order $<item.gram> { out.first = $%1; }"
+        + " (and $<item.gram>) <0-> ;\n");
+    return folder.write("main.gram", "root $main;\n"
+        + "public $main = $<order.gram> { out.order = $%1; }"
+        + " | $<answer.gram> { out.answer = $%1; };\n");
+  }
+
+  private static String describe(JVoiceXmlGrammar g) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(g.getTerminals().size()).append(' ')
+        .append(g.getNonterminals().size()).append(' ')
+        .append(g.getReferences()).append(' ');
+    TreeSet<String> lcs = new TreeSet<>();
+    for (RuleComponent c : g.getNonterminals()) {
+      lcs.add(c.toString() + "=" + (c.getLeftCorner() == null ? -1
+          : c.getLeftCorner().size()));
+    }
+    return sb.append(lcs).toString();
+  }
+
+  private static List<String> results(JVoiceXmlGrammarManager manager,
+      URI main) throws GrammarException {
+    List<String> result = new ArrayList<>();
+    TreeSet<String> names = new TreeSet<>();
+    for (Grammar g : manager.listGrammars()) {
+      names.add(g.getReference().toString());
+    }
+    for (String name : names) {
+      result.add(describe(
+          (JVoiceXmlGrammar) manager.getGrammar(URI.create(name))));
+    }
+    for (String input : INPUTS) {
+      result.add(evaluate(manager, main, input));
+    }
+    return result;
+  }
+
+  @Test
+  public void reloadTest() throws GrammarException, IOException {
+    URI main = grammars();
+    URI number = folder.uri("number.gram");
+    URI alone = folder.write("alone.gram",
+        "root $alone;\npublic $alone = alone;\n");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    Grammar oldAlone = manager.loadGrammar(alone);
+    assertEquals(6, manager.listGrammars().length);
+    assertEquals(5, manager.getDependents(number).size());
+    Grammar oldNumber = manager.getGrammar(number);
+    Set<URI> changed = new HashSet<>();
+    manager.addListener(changed::add);
+
+    // nothing happens if the source is the same
+    long version = manager.getVersion().getNumber();
+    assertSame(oldNumber, manager.reloadGrammar(number));
+    assertEquals(version, manager.getVersion().getNumber());
+
+    number(" | three { out = 3; } | many { out = 99; }");
+    Grammar newNumber = manager.reloadGrammar(number);
+    assertNotSame(oldNumber, newNumber);
+    assertEquals(version + 1, manager.getVersion().getNumber());
+    assertEquals(manager.getDependents(number), changed);
+    assertEquals(5, changed.size());
+    assertSame(oldAlone, manager.getGrammar(alone));
+
+    JVoiceXmlGrammarManager fresh = new JVoiceXmlGrammarManager();
+    fresh.loadGrammar(main);
+    fresh.loadGrammar(alone);
+    List<String> expected = results(fresh, main);
+    // the new numbers are known
+    assertNotNull(expected.get(expected.size() - 6));
+    assertNotNull(expected.get(expected.size() - 1));
+    assertEquals(expected, results(manager, main));
+
+    // a grammar nothing depends on is recompiled alone
+    folder.write("alone.gram",
+        "root $alone;\npublic $alone = alone again;\n");
+    changed.clear();
+    manager.reloadGrammar(alone);
+    assertEquals(1, changed.size());
+    assertNotSame(oldAlone, manager.getGrammar(alone));
+    assertSame(newNumber, manager.getGrammar(number));
+  }
+
+  @Test
+  public void collectedTest() throws Exception {
+    URI main = grammars();
+    URI number = folder.uri("number.gram");
+    URI alone = folder.write("alone.gram",
+        "root $alone;\npublic $alone = alone;\n");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    // it is not recompiled, and was built when the first grammars existed
+    manager.loadGrammar(alone);
+    List<WeakReference<Grammar>> replaced = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      for (URI ref : manager.getDependents(number)) {
+        replaced.add(new WeakReference<>(manager.getGrammar(ref)));
+      }
+      number(" | many { out = " + i + "; }");
+      manager.reloadGrammar(number);
+    }
+    JVoiceXmlGrammarManager fresh = new JVoiceXmlGrammarManager();
+    fresh.loadGrammar(main);
+    fresh.loadGrammar(alone);
+    assertEquals(results(fresh, main), results(manager, main));
+    // the new grammars do not keep the ones they replaced
+    for (WeakReference<Grammar> ref : replaced) {
+      assertTrue(isCollected(ref));
+    }
+  }
+
+  @Test
+  public void watchTest() throws Exception {
+    URI main = grammars();
+    URI number = folder.uri("number.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    AbstractParser parser = AbstractParser.getParser(manager);
+    assertNull(parser.parse(manager.getGrammar(main), "order many cola".split(" ")));
+    long version = manager.getVersion().getNumber();
+    try (GrammarWatcher watcher = manager.watch()) {
+      number(" | many { out = 99; }");
+      long end = System.currentTimeMillis() + 20000;
+      while (manager.getVersion().getNumber() == version
+          && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+      }
+    }
+    assertTrue(manager.getVersion().getNumber() > version);
+    assertNotNull(parser.parse(manager.getGrammar(main),
+        "order many cola".split(" ")));
+    assertNotNull(manager.getGrammar(number));
+  }
+
+  @Test
+  public void watchDirectoriesTest() throws Exception {
+    URI main = grammars();
+    folder.newFolder("gone");
+    URI gone = folder.write("gone/gone.gram",
+        "root $gone;\npublic $gone = gone;\n");
+    folder.newFolder("sub");
+    URI sub = folder.write("sub/sub.gram", "root $sub;\npublic $sub = sub;\n");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    manager.loadGrammar(gone);
+    manager.loadGrammar(sub);
+    Files.delete(folder.file("gone/gone.gram").toPath());
+    Files.delete(folder.file("gone").toPath());
+    long version = manager.getVersion().getNumber();
+    try (GrammarWatcher watcher = manager.watch()) {
+      // a directory that can not be watched does not stop the others
+      assertEquals(2, watcher.getDirectories().size());
+      number(" | many { out = 99; }");
+      long end = System.currentTimeMillis() + 20000;
+      while (manager.getVersion().getNumber() == version
+          && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+      }
+      assertTrue(manager.getVersion().getNumber() > version);
+
+      // a directory without grammars is not watched anymore
+      manager.deleteGrammar(manager.getGrammar(sub));
+      while (watcher.getDirectories().size() > 1
+          && System.currentTimeMillis() < end) {
+        Thread.sleep(50);
+      }
+      assertEquals(Collections.singleton(folder.getRoot().toPath()
+          .toAbsolutePath().normalize()), watcher.getDirectories());
+    }
+  }
+}
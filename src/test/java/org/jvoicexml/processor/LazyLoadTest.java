@@ -0,0 +1,141 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.jvoicexml.processor.GrammarFolder.evaluate;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class LazyLoadTest {
+
+  private static final String[] INPUTS = {
+      "yes", "order two pizza", "help me now", "help now", "order pizza",
+      "no"
+  };
+
+  @After
+  public void reset() {
+    JVoiceXmlGrammarManager.loadLazily = false;
+    AbstractParser.useLeftCorner = true;
+  }
+
+  /** In main, help and order are only used after a first token, number is
+   *  used by order */
+  private static URI uri(String name) {
+    return testURI("lazy/" + name);
+  }
+
+  @Test
+  public void lazyTest() throws GrammarException, IOException {
+    URI main = uri("main.gram");
+    JVoiceXmlGrammarManager eager = new JVoiceXmlGrammarManager();
+    eager.loadGrammar(main);
+    assertEquals(4, eager.listGrammars().length);
+
+    for (boolean lc : new boolean[] { true, false }) {
+      AbstractParser.useLeftCorner = lc;
+      JVoiceXmlGrammarManager.loadLazily = true;
+      JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+      Grammar first = manager.loadGrammar(main);
+      assertEquals(1, manager.listGrammars().length);
+      assertTrue(manager.isDeferred(uri("help.gram")));
+      assertTrue(manager.isDeferred(uri("order.gram")));
+      // not seen yet, it is referenced by order
+      assertFalse(manager.isDeferred(uri("number.gram")));
+      assertTrue(((JVoiceXmlGrammar) first).isIncomplete());
+
+      assertEquals("{\"answer\":true}", evaluate(manager, main, "yes"));
+      assertEquals(1, manager.listGrammars().length);
+
+      assertEquals(evaluate(eager, main, "order two pizza"),
+          evaluate(manager, main, "order two pizza"));
+      assertEquals(3, manager.listGrammars().length);
+      assertTrue(manager.isDeferred(uri("help.gram")));
+      assertNotSame(first, manager.getGrammar(main));
+
+      for (String input : INPUTS) {
+        assertEquals(input, evaluate(eager, main, input),
+            evaluate(manager, main, input));
+      }
+      assertEquals(4, manager.listGrammars().length);
+      assertFalse(((JVoiceXmlGrammar) manager.getGrammar(main)).isIncomplete());
+    }
+  }
+
+  @Test
+  public void missingTest() throws IOException {
+    JVoiceXmlGrammarManager.loadLazily = true;
+    URI main = uri("dangling.gram");
+    try {
+      new JVoiceXmlGrammarManager().loadGrammar(main);
+      fail("missing grammar not detected");
+    } catch (GrammarException | IOException ex) {
+      assertTrue(ex.getMessage().contains("missing.gram"));
+    }
+  }
+
+  @Test
+  public void concurrentTest() throws Exception {
+    URI main = uri("main.gram");
+    JVoiceXmlGrammarManager.loadLazily = true;
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    assertEquals(1, manager.getVersion().getNumber());
+
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] = new Thread(() -> {
+        try {
+          start.await();
+          assertEquals("{\"help\":\"later\"}",
+              evaluate(manager, main, "help me later"));
+        } catch (Throwable ex) {
+          failure.set(ex);
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertNull(String.valueOf(failure.get()), failure.get());
+    // loaded once, in one new version
+    assertEquals(2, manager.getVersion().getNumber());
+    assertNotNull(manager.getVersion().getGrammar(uri("help.gram")));
+    assertFalse(manager.isDeferred(uri("help.gram")));
+  }
+
+  @Test
+  public void deletedRootTest() throws GrammarException, IOException {
+    URI main = uri("main.gram");
+    JVoiceXmlGrammarManager.loadLazily = true;
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(main);
+    manager.deleteGrammar(g);
+    try {
+      AbstractParser.getParser(manager).parse(g, "help now".split(" "));
+      fail("parse of a deleted grammar not detected");
+    } catch (GrammarException ex) {
+      assertTrue(ex.getMessage(),
+          ex.getMessage().contains("no longer registered"));
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class NativeTagTest {
+
+  @Test
+  public void subsetTest() {
+    String[] supported = {
+        "out = \"yes\";",
+        "out.size = rules.size;",
+        "out = $%1",
+        "out.val=$%1; out.tag=\"$$2\";",
+        "out = new Object(); out.order = new Object;",
+        "out.a = { b: 1.5, 'c': [ true, null, \"x\" ] }; out.a.d = out;",
+        "out[\"x\"] = -3 // comment",
+        "",
+    };
+    for (String s : supported) {
+      assertNotNull(s, NativeTag.parse(s));
+    }
+    String[] unsupported = {
+        "out = 1 + 2;",
+        "var x = 1; out = x;",
+        "out = $$1;",
+        "out = \"$%1\";",
+        "rules.x = 1;",
+        "out = rules.x.toString();",
+        "out.__proto__ = null;",
+        "out = 010;",
+        "if (true) out = 1;",
+    };
+    for (String s : unsupported) {
+      assertNull(s, NativeTag.parse(s));
+    }
+  }
+
+  private static void compare(String grammar, String ... inputs)
+      throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI(grammar));
+    for (String s : inputs) {
+      final AbstractParser checker = AbstractParser.getParser(manager);
+      ChartNode validRule = checker.parse(ruleGrammar, s.split(" +"));
+      JSONObject rhino = SemanticsInterpreter.execute(
+          new SemanticsInterpreter(checker).createProgram(validRule));
+      // throws a Fallback if the tags are not supported
+      JSONObject nat = NativeEvaluator.interpret(checker, validRule).toJSONObject();
+      assertEquals(s, rhino.toString(), nat.toString());
+    }
+  }
+
+  @Test
+  public void evaluationTest() throws GrammarException, IOException {
+    compare("pizza.srgs", pizzainputs);
+    compare("pizza2.gram", pizzainputs[pizzainputs.length - 1]);
+    compare("tags.gram", "1 is 2");
+    compare("alternatives.gram", "is it 2", "is it f", "is it ?");
+    compare("hysoc.xml", "gloria i also need the parcel tape");
+    // no tags at all
+    compare("mini.gram", "a pizza", "ham");
+  }
+
+  @Test(expected = NativeTag.Fallback.class)
+  public void fallbackTest() throws GrammarException, IOException {
+    compare("operators.gram", "1 plus 2");
+  }
+
+  @Test
+  public void rhinoTest() throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI("operators.gram"));
+    final AbstractParser checker = AbstractParser.getParser(manager);
+    ChartNode validRule = checker.parse(ruleGrammar, "1 plus 2".split(" "));
+    JSONObject o = SemanticsInterpreter.interpret(checker, validRule);
+    assertEquals(3, o.getInt("sum"));
+  }
+}
@@ -0,0 +1,112 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleComponent;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class ParallelLoadTest {
+
+  private static final String[] INPUTS = {
+      "order one pizza", "order two cola and one pizza", "yes", "no please",
+      "order 42 cola", "order two", "maybe yes", "order one pizza or maybe"
+  };
+
+  @After
+  public void reset() {
+    JVoiceXmlGrammarManager.loadInParallel = true;
+  }
+
+  /** main uses all others, item and number reference each other */
+  private static URI grammar(String name) {
+    return testURI("parallel/" + name);
+  }
+
+  private static String describe(JVoiceXmlGrammar g) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(g.getTerminals().size()).append(' ')
+        .append(g.getNonterminals().size()).append(' ')
+        .append(g.getReferences()).append(' ');
+    TreeSet<String> lcs = new TreeSet<>();
+    for (RuleComponent c : g.getNonterminals()) {
+      lcs.add(c.toString() + "=" + (c.getLeftCorner() == null ? -1
+          : c.getLeftCorner().size()));
+    }
+    return sb.append(lcs).toString();
+  }
+
+  private static List<String> load(URI main, boolean parallel)
+      throws GrammarException, IOException {
+    JVoiceXmlGrammarManager.loadInParallel = parallel;
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(main);
+    List<String> result = new ArrayList<>();
+    TreeSet<String> names = new TreeSet<>();
+    for (Grammar sub : manager.listGrammars()) {
+      names.add(sub.getReference().toString());
+    }
+    for (String name : names) {
+      result.add(describe(
+          (JVoiceXmlGrammar) manager.getGrammar(URI.create(name))));
+    }
+    for (String input : INPUTS) {
+      AbstractParser parser = AbstractParser.getParser(manager);
+      ChartNode n = parser.parse(g, input.split(" "));
+      result.add(n == null ? null
+          : SemanticsInterpreter.interpret(parser, n).toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void identicalTest() throws GrammarException, IOException {
+    URI main = grammar("main.gram");
+    List<String> serial = load(main, false);
+    assertNotNull(serial.get(serial.size() - INPUTS.length));
+    assertNull(serial.get(serial.size() - 3));
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(serial, load(main, true));
+    }
+  }
+
+  @Test
+  public void loadedBeforeTest() throws GrammarException, IOException {
+    URI main = grammar("main.gram");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar answer = manager.loadGrammar(grammar("answer.gram"));
+    manager.loadGrammar(main);
+    assertEquals(5, manager.listGrammars().length);
+    // not loaded again
+    assertSame(answer, manager.getGrammar(answer.getReference()));
+  }
+
+  @Test
+  public void failureTest() throws IOException {
+    // refers to a grammar with a syntax error and a missing one
+    URI main = grammar("failing.gram");
+    for (boolean parallel : new boolean[] { false, true }) {
+      JVoiceXmlGrammarManager.loadInParallel = parallel;
+      try {
+        new JVoiceXmlGrammarManager().loadGrammar(main);
+        fail("broken grammar loaded");
+      } catch (GrammarException | IOException ex) {
+        assertNotNull(ex.getMessage());
+      }
+    }
+  }
+}
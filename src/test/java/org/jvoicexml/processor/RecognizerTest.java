@@ -0,0 +1,184 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.Recognizer;
+import org.jvoicexml.processor.grammar.Recognizers;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class RecognizerTest {
+
+  /** Found with the ServiceLoader, see META-INF/services */
+  public static class PostalCode implements Recognizer {
+    @Override
+    public String getName() {
+      return "postalcode";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      return token.matches("\\d{5}");
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      if (accepts(input[start])) {
+        result.found(start + 1, input[start]);
+      }
+    }
+  }
+
+  /** Registered explicitly, with a structured value */
+  private static class ProductId implements Recognizer {
+    @Override
+    public String getName() {
+      return "product";
+    }
+
+    @Override
+    public boolean accepts(String token) {
+      return token.matches("[A-Z]{2}|\\d+");
+    }
+
+    @Override
+    public void match(String[] input, int start, Match result) {
+      if (input[start].matches("[A-Z]{2}") && start + 1 < input.length
+          && input[start + 1].matches("\\d+")) {
+        Map<String, Object> id = new HashMap<>();
+        id.put("series", input[start]);
+        id.put("number", Integer.valueOf(input[start + 1]));
+        result.found(start + 2, id);
+      }
+    }
+  }
+
+  @BeforeClass
+  public static void register() {
+    Recognizers.register(new ProductId());
+  }
+
+  @After
+  public void reset() {
+    AbstractParser.useLeftCorner = true;
+    SemanticsInterpreter.useNativeEvaluator = true;
+  }
+
+  private static Map<Integer, Object> matches(String name, String input) {
+    Map<Integer, Object> result = new HashMap<>();
+    Recognizers.get(name).getRecognizer().match(input.split(" "), 0,
+        (end, value) -> result.put(end, value));
+    return result;
+  }
+
+  @Test
+  public void builtinTest() {
+    assertEquals("4711", matches("digits", "four seven 1 one").get(4));
+    assertEquals(2005.0, matches("number", "two thousand and five").get(4));
+    assertEquals(1500.0, matches("number", "fifteen hundred").get(2));
+    assertEquals(2500000.0, matches("number", "2.5 million").get(2));
+    assertEquals(null, matches("number", "one two").get(2));
+    assertEquals("????0305", matches("date", "march the fifth").get(3));
+    assertEquals("20240305", matches("date", "5th of march 2024").get(4));
+    assertEquals("19840229", matches("date", "february twenty ninth "
+        + "nineteen eighty four").get(6));
+    assertNull(matches("date", "february 29 1983").get(3));
+    assertEquals("20240305", matches("date", "2024-03-05").get(1));
+    assertEquals("USD5.20", matches("currency", "$5.2").get(1));
+    assertEquals("EUR12.05", matches("currency",
+        "twelve euros and five cents").get(5));
+    assertNull(matches("currency", "twelve euros and five pence").get(5));
+  }
+
+  private static JSONObject evaluate(Grammar g,
+      JVoiceXmlGrammarManager manager, String input) throws GrammarException {
+    AbstractParser parser = AbstractParser.getParser(manager);
+    ChartNode result = parser.parse(g, input.split(" "));
+    if (result == null) {
+      return null;
+    }
+    JSONObject value = SemanticsInterpreter.interpret(parser, result);
+    // the same value from the generated program
+    assertTrue(input, SemanticsInterpreter.execute(
+        new SemanticsInterpreter(parser).createProgram(result)).similar(value));
+    return value;
+  }
+
+  private static void check(Grammar g, JVoiceXmlGrammarManager manager,
+      String expected, String input) throws GrammarException {
+    JSONObject value = evaluate(g, manager, input);
+    assertNotNull(input, value);
+    assertTrue(value.toString(), new JSONObject(expected).similar(value));
+  }
+
+  private void grammarTest() throws GrammarException, IOException {
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(testURI("builtin.gram"));
+    check(g, manager, "{pin:'0815'}", "my pin is zero 8 one five");
+    check(g, manager, "{amount:'USD1005.00',date:'????1224'}",
+        "transfer one thousand and five dollars on december 24");
+    check(g, manager, "{amount:'GBP3.50'}",
+        "transfer three pounds fifty pence");
+    check(g, manager, "{count:42}", "forty two items");
+    check(g, manager, "{zip:'66123'}", "zip code 66123");
+    check(g, manager, "{series:'AB',number:17}", "product AB 17");
+    assertNull(evaluate(g, manager, "my pin is zero eight x"));
+    assertNull(evaluate(g, manager, "zip code 6612"));
+    assertNull(evaluate(g, manager, "forty forty items"));
+  }
+
+  @Test
+  public void leftCornerTest() throws GrammarException, IOException {
+    grammarTest();
+  }
+
+  @Test
+  public void earleyTest() throws GrammarException, IOException {
+    AbstractParser.useLeftCorner = false;
+    grammarTest();
+  }
+
+  @Test
+  public void rhinoTest() throws GrammarException, IOException {
+    SemanticsInterpreter.useNativeEvaluator = false;
+    grammarTest();
+  }
+
+  @Test
+  public void filterTest() throws GrammarException, IOException {
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    JVoiceXmlGrammar g =
+        (JVoiceXmlGrammar) manager.loadGrammar(testURI("builtin.gram"));
+    assertTrue(g.covers("my pin is 4 seven".split(" ")));
+    assertTrue(g.admits("my pin is 4 seven".split(" ")));
+    assertTrue(g.covers("zip code 12345".split(" ")));
+    assertFalse(g.covers("zip code 1234x".split(" ")));
+    assertFalse(g.admits("my pin is items".split(" ")));
+  }
+
+  @Test
+  public void unknownTest() throws IOException {
+    try {
+      new JVoiceXmlGrammarManager().loadGrammar(
+          testURI("unknownbuiltin.gram"));
+      fail("unknown recognizer accepted");
+    } catch (GrammarException ex) {
+      assertNotNull(ex.getMessage());
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class ResultCacheTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  private URI sub(String value) throws IOException {
+    return folder.write("sub.gram",
+        "root $answer;\npublic $answer = yes { out = \""
+        + value + "\"; } | no { out = \"false\"; };\n");
+  }
+
+  @Test
+  public void cacheTest() throws GrammarException, IOException {
+    URI sub = sub("true");
+    URI main = folder.write("main.gram", "root $main;\n"
+        + "public $main = [please] $<sub.gram> { out.answer = $%1; };\n");
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(main);
+    ResultCache cache = new ResultCache(manager, 10);
+
+    ResultCache.Result r = cache.get(g, "please yes".split(" "));
+    assertTrue(r.isAccepted());
+    assertEquals("true", r.getSemantics().get("answer"));
+    // normalized input
+    assertSame(r, cache.get(g, new String[] { "please", " yes", "" }));
+    assertFalse(cache.get(g, "yes please".split(" ")).isAccepted());
+    assertFalse(cache.get(g, "yes please".split(" ")).isAccepted());
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+
+    // reloading the same content keeps the entries
+    manager.loadGrammar(sub);
+    assertEquals(0, cache.getInvalidations());
+    assertSame(r, cache.get(g, "please yes".split(" ")));
+
+    // changing the grammar invalidates the entries
+    g = manager.loadGrammar(folder.write("main.gram", "root $main;\n"
+        + "public $main = $<sub.gram> { out.reply = $%1; };\n"));
+    assertEquals(2, cache.getInvalidations());
+    assertEquals(0, cache.size());
+    r = cache.get(g, "yes".split(" "));
+    assertEquals("true", r.getSemantics().get("reply"));
+
+    // as well as changing a referenced grammar
+    manager.loadGrammar(sub("yes"));
+    assertEquals(3, cache.getInvalidations());
+    cache.get(g, "no".split(" "));
+    manager.deleteGrammar(g);
+    assertEquals(4, cache.getInvalidations());
+    cache.close();
+  }
+
+  @Test
+  public void evictionTest() throws GrammarException, IOException {
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(testURI("mini.gram"));
+    ResultCache cache = new ResultCache(manager, 2);
+    for (String s : new String[] { "a pizza", "ham", "pizza", "a pizza" }) {
+      assertTrue(s, cache.get(g, s.split(" ")).isAccepted());
+    }
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getEvictions());
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  public void settingsTest() throws GrammarException, IOException {
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    Grammar g = manager.loadGrammar(folder.write("main.gram", "root $main;\n"
+        + "public $main = yes { out.answer = \"a long enough answer\"; };\n"));
+    ResultCache cache = new ResultCache(manager, 10);
+    ResultCache.Result r = cache.get(g, "yes".split(" "));
+    assertSame(r, cache.get(g, "yes".split(" ")));
+    try {
+      // the cached result would exceed the new limit
+      SemanticsInterpreter.maxOutputSize = 10;
+      cache.get(g, "yes".split(" "));
+      fail("output limit not checked");
+    } catch (SemanticsLimitException ex) {
+      assertEquals(SemanticsLimitException.Limit.OUTPUT_SIZE, ex.getLimit());
+    } finally {
+      SemanticsInterpreter.maxOutputSize = 0;
+    }
+    SemanticsInterpreter.useNativeEvaluator = false;
+    try {
+      ResultCache.Result js = cache.get(g, "yes".split(" "));
+      assertNotSame(r, js);
+      assertEquals(r.getSemantics().toString(), js.getSemantics().toString());
+    } finally {
+      SemanticsInterpreter.useNativeEvaluator = true;
+    }
+    assertSame(r, cache.get(g, "yes".split(" ")));
+  }
+}
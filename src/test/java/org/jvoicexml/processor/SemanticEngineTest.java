@@ -0,0 +1,75 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class SemanticEngineTest {
+
+  @After
+  public void reset() {
+    SemanticsInterpreter.engine = new RhinoEngine();
+    SemanticsInterpreter.useNativeEvaluator = true;
+  }
+
+  /** Compare the results of engine with the Rhino results */
+  private static void compare(SemanticEngine engine, String grammar,
+      String ... inputs) throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI(grammar));
+    final SemanticEngine rhino = new RhinoEngine();
+    for (String s : inputs) {
+      final AbstractParser checker = AbstractParser.getParser(manager);
+      ChartNode validRule = checker.parse(ruleGrammar, s.split(" +"));
+      String[] tokens = s.split(" +");
+      assertEquals(s, rhino.evaluate(tokens, validRule),
+          engine.evaluate(tokens, validRule));
+      SemanticsInterpreter.engine = engine;
+      assertEquals(s, rhino.evaluate(tokens, validRule),
+          SemanticsInterpreter.evaluate(checker, validRule));
+      SemanticsInterpreter.engine = rhino;
+    }
+  }
+
+  private static void compareAll(SemanticEngine engine)
+      throws GrammarException, IOException {
+    SemanticsInterpreter.useNativeEvaluator = false;
+    compare(engine, "pizza.srgs", pizzainputs);
+    compare(engine, "tags.gram", "1 is 2");
+    compare(engine, "operators.gram", "1 plus 2");
+    compare(engine, "hysoc.xml", "gloria i also need the parcel tape");
+  }
+
+  @Test
+  public void programTest() throws GrammarException, IOException {
+    // only uses the programs created by SemanticsInterpreter
+    final SemanticEngine rhino = new RhinoEngine();
+    compareAll(new SemanticEngine() {
+      @Override
+      public String getName() {
+        return "program";
+      }
+
+      @Override
+      public Program compile(String source) {
+        return rhino.compile(source);
+      }
+    });
+  }
+
+  @Test
+  public void scriptEngineTest() throws GrammarException, IOException {
+    // there may be no JavaScript engine for javax.script at all
+    ScriptEngineSemantics engine = ScriptEngineSemantics.find();
+    assumeNotNull(engine);
+    compareAll(engine);
+  }
+}
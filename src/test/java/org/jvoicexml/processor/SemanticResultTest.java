@@ -0,0 +1,72 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.EcmaError;
+import org.mozilla.javascript.NativeJSON;
+import org.mozilla.javascript.Scriptable;
+
+public class SemanticResultTest {
+
+  private static final String VALUE = "({a: 1, b: -1.5e-7, c: 'x\"ä', "
+      + "d: [1, undefined, null, function(){}], e: undefined, f: function(){},"
+      + " g: new Date(0), h: {i: true, j: new String('s')}, n: NaN, "
+      + "l: 12345678901, o: 1e21 })";
+
+  @Test
+  public void conversionTest() throws IOException {
+    Context ctx = RhinoSupport.enter();
+    try {
+      Scriptable global = RhinoSupport.newGlobal(ctx);
+      Object value = ctx.evaluateString(global, VALUE, "<test>", 1, null);
+      String json =
+          NativeJSON.stringify(ctx, global, value, null, null).toString();
+      SemanticResult result = SemanticResult.fromRhino(ctx, global, value);
+
+      assertEquals(json, result.toJson());
+      assertEquals(new JSONObject(json).toString(),
+          result.toJSONObject().toString());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      result.writeJson(out);
+      assertEquals(json, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+      assertTrue(result.isObject());
+      assertEquals(1, result.get("a"));
+      assertEquals(12345678901L, result.get("l"));
+      assertFalse(result.asMap().containsKey("e"));
+      assertEquals(4, ((List<?>) result.get("d")).size());
+      assertEquals("s", ((Map<?, ?>) result.get("h")).get("j"));
+    } finally {
+      RhinoSupport.exit();
+    }
+  }
+
+  @Test(expected = EcmaError.class)
+  public void cyclicTest() {
+    SemanticsInterpreter.execute("rules = {}; rules.root = {}; "
+        + "rules.root.a = rules.root;");
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void immutableTest() {
+    Context ctx = RhinoSupport.enter();
+    try {
+      Scriptable global = RhinoSupport.newGlobal(ctx);
+      Object value = ctx.evaluateString(global, VALUE, "<test>", 1, null);
+      SemanticResult.fromRhino(ctx, global, value).asMap().put("x", "y");
+    } finally {
+      RhinoSupport.exit();
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.pizzainputs;
+import static org.jvoicexml.processor.srgs.abnf.AbnfParserTest.testURI;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.Grammar;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class SubtreeMemoTest {
+
+  private static final String[] INPUTS = {
+      "one", "two again", "three again", "one plus two", "two plus two",
+      "one times three", "three times three", "one plus one", "two again"
+  };
+
+  @After
+  public void reset() {
+    SemanticsInterpreter.subtreeCacheSize = 0;
+    SemanticsInterpreter.useNativeEvaluator = true;
+    SemanticsInterpreter.clearSubtreeCache();
+  }
+
+  private static void compare(String grammar, String ... inputs)
+      throws GrammarException, IOException {
+    final GrammarManager manager = new JVoiceXmlGrammarManager();
+    final Grammar ruleGrammar = manager.loadGrammar(testURI(grammar));
+    for (int round = 0; round < 2; ++round) {
+      for (String s : inputs) {
+        final AbstractParser checker = AbstractParser.getParser(manager);
+        ChartNode validRule = checker.parse(ruleGrammar, s.split(" +"));
+        assertNotNull(s, validRule);
+        String expected = SemanticsInterpreter.execute(
+            new SemanticsInterpreter(checker).createProgram(validRule))
+            .toString();
+        String result =
+            SemanticsInterpreter.interpret(checker, validRule).toString();
+        assertEquals(s, expected, result);
+      }
+    }
+  }
+
+  private static void compareAll() throws GrammarException, IOException {
+    compare("memo.gram", INPUTS);
+    compare("pizza.srgs", pizzainputs);
+    compare("operators.gram", "1 plus 2", "2 plus 2");
+  }
+
+  @Test
+  public void nativeTest() throws GrammarException, IOException {
+    SemanticsInterpreter.subtreeCacheSize = 1000;
+    SubtreeMemo.clear();
+    compareAll();
+    assertTrue(SemanticsInterpreter.getSubtreeCacheStatistics(),
+        SubtreeMemo.getCache().getHits() > 0);
+  }
+
+  @Test
+  public void rhinoTest() throws GrammarException, IOException {
+    SemanticsInterpreter.subtreeCacheSize = 1000;
+    SemanticsInterpreter.useNativeEvaluator = false;
+    SubtreeMemo.clear();
+    compareAll();
+    assertTrue(SemanticsInterpreter.getSubtreeCacheStatistics(),
+        SubtreeMemo.getCache().getHits() > 0);
+  }
+
+  @Test
+  public void mixedTest() throws GrammarException, IOException {
+    SemanticsInterpreter.subtreeCacheSize = 1000;
+    // values stored by the Rhino evaluation, used by the native one
+    SemanticsInterpreter.useNativeEvaluator = false;
+    compare("memo.gram", INPUTS);
+    SemanticsInterpreter.useNativeEvaluator = true;
+    compare("memo.gram", INPUTS);
+  }
+
+  @Test
+  public void smallCacheTest() throws GrammarException, IOException {
+    SemanticsInterpreter.subtreeCacheSize = 2;
+    compareAll();
+    assertTrue(SubtreeMemo.getCache().getEvictions() > 0);
+  }
+}
@@ -0,0 +1,150 @@
+package org.jvoicexml.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.jvoicexml.processor.GrammarFolder.evaluate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvoicexml.processor.grammar.JVoiceXmlGrammar;
+import org.jvoicexml.processor.grammar.RuleTag;
+import org.jvoicexml.processor.grammar.RuleTrie;
+import org.jvoicexml.processor.srgs.GrammarException;
+
+public class TrieRuleTest {
+
+  @Rule
+  public GrammarFolder folder = new GrammarFolder();
+
+  private static final String[] INPUTS = {
+      "call name7 person7", "call NAME1199 person1199", "call name3 person3",
+      "call name5", "call name5 person5 junior", "call name10 person11",
+      "call name2 person2", "call name11 person11", "call mom", "stop"
+  };
+
+  @After
+  public void reset() {
+    AbstractParser.useLeftCorner = true;
+    SemanticsInterpreter.useNativeEvaluator = true;
+    JVoiceXmlGrammar.trieThreshold = 1000;
+  }
+
+  /** A rule with 1200 alternatives, with and without tags and weights */
+  private URI write() throws IOException {
+    StringBuilder sb = new StringBuilder("root $main;\n"
+        + "public $main = call $contact { out.who = rules.contact; }"
+        + " | stop { out.who = \"nobody\"; };\n$contact = mom");
+    for (int i = 0; i < 1200; ++i) {
+      sb.append(" | ");
+      if (i % 3 == 0) {
+        sb.append("/2/ ");
+      }
+      sb.append("name").append(i).append(" person").append(i);
+      if (i % 5 == 0) {
+        sb.append(" junior");
+      }
+      if (i % 4 == 1) {
+        sb.append(" { out = \"id").append(i).append("\"; }");
+      } else if (i % 4 == 2) {
+        // needs JavaScript
+        sb.append(" { out = \"id\" + ").append(i % 10).append("; }");
+      } else if (i % 8 == 3) {
+        // only $$n and $%n prevent the trie
+        sb.append(" { out = \"$").append(i).append("\"; }");
+      }
+    }
+    return folder.write("main.gram", sb.append(";\n").toString());
+  }
+
+  @Test
+  public void trieTest() throws GrammarException, IOException {
+    URI main = write();
+    JVoiceXmlGrammar.trieThreshold = 0;
+    JVoiceXmlGrammarManager plain = new JVoiceXmlGrammarManager();
+    plain.loadGrammar(main);
+    JVoiceXmlGrammar.trieThreshold = 1000;
+    JVoiceXmlGrammarManager compact = new JVoiceXmlGrammarManager();
+    compact.loadGrammar(main);
+
+    long plainSize = ((JVoiceXmlGrammar) plain.getGrammar(main)).estimateSize();
+    long compactSize =
+        ((JVoiceXmlGrammar) compact.getGrammar(main)).estimateSize();
+    assertTrue(plainSize + " vs. " + compactSize,
+        5 * compactSize < plainSize);
+
+    assertEquals("{\"who\":\"id1\"}",
+        evaluate(compact, main, "call name1 person1"));
+    assertNull(evaluate(compact, main, "call name5 person5"));
+    assertEquals("{\"who\":\"$11\"}",
+        evaluate(compact, main, "call name11 person11"));
+
+    // only the five distinct tags that need JavaScript are compiled in
+    // advance, and the two that were evaluated
+    RuleTrie trie = (RuleTrie) ((JVoiceXmlGrammar) compact.getGrammar(main))
+        .getRule("contact").getRuleComponent();
+    int compiled = 0;
+    for (RuleTag tag : trie.getTags()) {
+      if (tag.getCompiled() != null) {
+        ++compiled;
+      }
+    }
+    assertEquals(5 + 2, compiled);
+    for (boolean lc : new boolean[] { true, false }) {
+      AbstractParser.useLeftCorner = lc;
+      for (boolean nat : new boolean[] { true, false }) {
+        SemanticsInterpreter.useNativeEvaluator = nat;
+        for (String input : INPUTS) {
+          assertEquals(input, evaluate(plain, main, input),
+              evaluate(compact, main, input));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void importTest() throws GrammarException, IOException {
+    write();
+    // the trie is matched through the vocabulary of the importing grammar,
+    // which shares some of its words
+    URI outer = folder.write("outer.gram", "root $outer;\n"
+        + "public $outer = $<main.gram> { out = $%1; }"
+        + " | name7 person8 { out.who = \"direct\"; };\n");
+    JVoiceXmlGrammar.trieThreshold = 0;
+    JVoiceXmlGrammarManager plain = new JVoiceXmlGrammarManager();
+    plain.loadGrammar(outer);
+    JVoiceXmlGrammar.trieThreshold = 1000;
+    JVoiceXmlGrammarManager compact = new JVoiceXmlGrammarManager();
+    compact.loadGrammar(outer);
+    for (String input : INPUTS) {
+      assertEquals(input, evaluate(plain, outer, input),
+          evaluate(compact, outer, input));
+    }
+    assertEquals("{\"who\":\"direct\"}",
+        evaluate(compact, outer, "NAME7 person8"));
+    assertTrue(((JVoiceXmlGrammar) compact.getGrammar(outer))
+        .covers("call Name1199 person1199".split(" ")));
+  }
+
+  @Test
+  public void imageTest() throws GrammarException, IOException {
+    URI main = write();
+    JVoiceXmlGrammarManager manager = new JVoiceXmlGrammarManager();
+    manager.loadGrammar(main);
+    Path image = folder.file("grammars.img").toPath();
+    manager.saveImage(image);
+    JVoiceXmlGrammarManager restored = new JVoiceXmlGrammarManager();
+    assertTrue(restored.loadImage(image));
+    for (String input : INPUTS) {
+      assertEquals(input, evaluate(manager, main, input),
+          evaluate(restored, main, input));
+    }
+    assertEquals("{\"who\":\"id8\"}",
+        evaluate(restored, main, "call name1198 person1198"));
+  }
+}